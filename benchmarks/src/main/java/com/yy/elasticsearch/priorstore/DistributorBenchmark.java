@@ -0,0 +1,102 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choosing a directory for a new Lucene file, i.e. {@link PriorStoreDistributor#doAnyDir}, with N delegate directories.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class DistributorBenchmark {
+
+	@Param({"2", "4", "8", "16"})
+	public int dirs;
+
+	/**
+	 * true: read the sampled space of {@link PriorStoreSpaceService}, false: statfs every directory on each call
+	 */
+	@Param({"true", "false"})
+	public boolean sampled;
+
+	/**
+	 * used ratio over which a directory is skipped, negative means no threshold
+	 */
+	@Param({"-1", "0.85"})
+	public double threshold;
+
+	private Path root;
+	private Directory[] directories;
+	private int[] slots;
+	private long[] spaces;
+	private Double maxThreshold;
+	private PriorStoreDistributor distributor;
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("prior-store-distributor");
+		directories = new Directory[dirs];
+		slots = new int[dirs];
+		spaces = new long[dirs * 2];
+		Random random = new Random(0);
+		for (int i = 0; i < dirs; ++i) {
+			directories[i] = new SimpleFSDirectory(Files.createDirectories(root.resolve(String.valueOf(i))).toFile());
+			slots[i] = sampled ? i : -1;
+			long total = 1L << 40;
+			spaces[i * 2] = (long) (total * random.nextDouble());
+			spaces[i * 2 + 1] = total;
+		}
+		maxThreshold = threshold < 0 ? null : threshold;
+		// doAnyDir doesn't touch the state of the distributor, so skip the constructor which needs a whole shard
+		Field field = Unsafe.class.getDeclaredField("theUnsafe");
+		field.setAccessible(true);
+		distributor = (PriorStoreDistributor) ((Unsafe) field.get(null)).allocateInstance(PriorStoreDistributor.class);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (Directory directory : directories) {
+			directory.close();
+		}
+		FileSystemUtils.deleteRecursively(root.toFile());
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public Directory throughput() {
+		return distributor.doAnyDir(directories, slots, spaces, maxThreshold);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Directory latency() {
+		return distributor.doAnyDir(directories, slots, spaces, maxThreshold);
+	}
+}
@@ -0,0 +1,98 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link YYOLAPMigrationPolicy#getMigrationIndices} over a synthetic node path, which is scanned on every call.
+ * Files are sparse, so large trees don't take real disk space.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MigrationPolicyBenchmark {
+
+	@Param({"100", "1000"})
+	public int indices;
+
+	@Param({"5"})
+	public int shards;
+
+	@Param({"8"})
+	public int files;
+
+	/**
+	 * ratio of the indices named like 'base@yyyyMMdd'
+	 */
+	@Param({"0.8"})
+	public double partitioned;
+
+	private Path root;
+	private NodeEnvironment.NodePath nodePath;
+	private MigrationPolicy policy;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("prior-store-policy");
+		nodePath = new NodeEnvironment.NodePath(root);
+		Random random = new Random(0);
+		for (int i = 0; i < indices; ++i) {
+			String index;
+			if (random.nextDouble() < partitioned)
+				index = String.format("base%d@2016%02d%02d", i % 10, 1 + i / 28 % 12, 1 + i % 28);
+			else
+				index = "index" + i;
+			for (int shard = 0; shard < shards; ++shard) {
+				Path indexDir = Files.createDirectories(nodePath.indicesPath.resolve(index).resolve(String.valueOf(shard)).resolve("index"));
+				for (int file = 0; file < files; ++file) {
+					try (RandomAccessFile raf = new RandomAccessFile(indexDir.resolve("_" + file + ".cfs").toFile(), "rw")) {
+						raf.setLength(1 + (long) (random.nextDouble() * (1 << 30)));
+					}
+				}
+			}
+		}
+		policy = new YYOLAPMigrationPolicy(ImmutableSettings.EMPTY);
+	}
+
+	@TearDown
+	public void tearDown() {
+		FileSystemUtils.deleteRecursively(root.toFile());
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public MigrationInfo throughput() throws Exception {
+		return policy.getMigrationIndices(nodePath);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public MigrationInfo latency() throws Exception {
+		return policy.getMigrationIndices(nodePath);
+	}
+}
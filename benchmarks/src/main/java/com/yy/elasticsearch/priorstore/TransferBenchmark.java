@@ -0,0 +1,151 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.store.support.AbstractIndexStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving a whole shard between two data paths (under the same temp directory) with {@link PriorStoreTransferEngine},
+ * unthrottled. The shard is re-created before every invocation, which is not measured.
+ * The 'bytes' counter of the throughput benchmark is the copy rate in bytes per second.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+
+	private static final ShardId SHARD_ID = new ShardId("bench", 0);
+
+	@Param({"16"})
+	public int files;
+
+	@Param({"1", "16"})
+	public int fileSizeMb;
+
+	@Param({"true", "false"})
+	public boolean verifyChecksum;
+
+	@Param({"1", "2"})
+	public int concurrentPerDevice;
+
+	private Path root;
+	private NodeEnvironment nodeEnv;
+	private PriorStoreTransferEngine engine;
+	private NodeEnvironment.NodePath source;
+	private NodeEnvironment.NodePath target;
+	private Path sourceShard;
+	private Path targetShard;
+
+	/**
+	 * copied bytes, reported as bytes per second
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("prior-store-transfer");
+		Settings settings = ImmutableSettings.builder()
+				.put("path.home", root.toString())
+				.putArray("path.data", root.resolve("prior").toString(), root.resolve("other").toString())
+				.put(Plugin.PRIOR_PATH_KEY, root.resolve("prior").toString())
+				.put(PriorStoreTransferEngine.MIGRATION_MAX_BYTES_PER_SEC, 0)
+				.put(PriorStoreTransferEngine.VERIFY_CHECKSUM, verifyChecksum)
+				.put(PriorStoreTransferEngine.COPY_CONCURRENT_PER_DEVICE, concurrentPerDevice)
+				.build();
+		nodeEnv = new NodeEnvironment(settings, new Environment(settings));
+		engine = new PriorStoreTransferEngine(settings, new PriorStoreEnvironment(nodeEnv, settings));
+		source = nodeEnv.nodePaths()[0];
+		sourceShard = source.indicesPath.resolve(SHARD_ID.index().name()).resolve(String.valueOf(SHARD_ID.id()));
+		target = nodeEnv.nodePaths()[1];
+		targetShard = target.indicesPath.resolve(SHARD_ID.index().name()).resolve(String.valueOf(SHARD_ID.id()));
+	}
+
+	@Setup(Level.Invocation)
+	public void createShard() throws IOException {
+		FileSystemUtils.deleteRecursively(targetShard.toFile());
+		Files.createDirectories(targetShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
+		Files.createDirectories(targetShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
+		Files.createDirectories(sourceShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
+		Random random = new Random(0);
+		byte[] buffer = new byte[64 * 1024];
+		try (Directory dir = new SimpleFSDirectory(Files.createDirectories(sourceShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME)).toFile())) {
+			for (int i = 0; i < files; ++i) {
+				// lucene files end with a checksum footer, which is verified while copying
+				try (IndexOutput out = dir.createOutput("_" + i + ".cfs", IOContext.DEFAULT)) {
+					for (long written = 0; written < fileSizeMb * 1024L * 1024L; written += buffer.length) {
+						random.nextBytes(buffer);
+						out.writeBytes(buffer, buffer.length);
+					}
+					CodecUtil.writeFooter(out);
+				}
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		nodeEnv.close();
+		FileSystemUtils.deleteRecursively(root.toFile());
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long throughput(Bytes bytes) throws IOException {
+		long moved = moveShard();
+		bytes.bytes += moved;
+		return moved;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long latency() throws IOException {
+		return moveShard();
+	}
+
+	private long moveShard() throws IOException {
+		PriorStoreTransferEngine.ShardTransfer transfer = engine.newTransfer(SHARD_ID, source, target, targetShard);
+		transfer.addDir(sourceShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME), targetShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
+		transfer.addDir(sourceShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME), targetShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
+		transfer.copy();
+		transfer.finish();
+		return transfer.bytes();
+	}
+}
@@ -0,0 +1,146 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.carrotsearch.hppc.ObjectLongOpenHashMap;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.joda.time.format.DateTimeFormat;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Migrates the shards of the oldest indices first, aiming to free {@link #MIGRATION_PER} of the device. The age of an
+ * index is read from the cluster metadata: the date at the end of its name by {@link #DATE_FORMAT}(e.g. yyyy.MM.dd for
+ * logs-2016.02.01), or its creation_date if the name has no date. The bytes of the shards on the path are read from
+ * {@link ShardUsageIndex}, the node path is not scanned.
+ * <p/>
+ * With {@link #RETENTION}, indices which will be deleted within {@link #RETENTION_HORIZON} are not migrated at all,
+ * there's no point in moving data which is about to be dropped.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class AgeMigrationPolicy implements MigrationPolicy {
+
+	public static final String MIGRATION_PER = "store.prior.migration.policy.age.per";
+	/**
+	 * joda pattern of the date at the end of the index names, unset to use the creation date only
+	 */
+	public static final String DATE_FORMAT = "store.prior.migration.policy.age.date_format";
+	/**
+	 * how long indices are kept before they are deleted(e.g. by curator), -1 if they are kept forever
+	 */
+	public static final String RETENTION = "store.prior.migration.policy.age.retention";
+	public static final String RETENTION_HORIZON = "store.prior.migration.policy.age.retention_horizon";
+	public static final TimeValue DEFAULT_RETENTION_HORIZON = TimeValue.timeValueHours(24);
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final ClusterService clusterService;
+	private final ShardUsageIndex usageIndex;
+	private final double migrationPer;
+	private final DateTimeFormatter dateFormat;
+	/**
+	 * length of the dates printed by {@link #dateFormat}
+	 */
+	private final int dateLength;
+	private final long retentionMillis;
+	private final long horizonMillis;
+
+	@Inject
+	public AgeMigrationPolicy(Settings settings, ClusterService clusterService, ShardUsageIndex usageIndex) {
+		this.clusterService = clusterService;
+		this.usageIndex = usageIndex;
+		this.migrationPer = settings.getAsDouble(MIGRATION_PER, 0.1);
+		String format = settings.get(DATE_FORMAT);
+		if (null == format) {
+			dateFormat = null;
+			dateLength = 0;
+		} else {
+			dateFormat = DateTimeFormat.forPattern(format).withZoneUTC();
+			dateLength = dateFormat.print(0).length();
+		}
+		this.retentionMillis = settings.getAsTime(RETENTION, TimeValue.timeValueMillis(-1)).millis();
+		this.horizonMillis = settings.getAsTime(RETENTION_HORIZON, DEFAULT_RETENTION_HORIZON).millis();
+	}
+
+	@Override
+	public MigrationInfo getMigrationIndices(NodeEnvironment.NodePath nodePath) throws Exception {
+		MetaData metaData = clusterService.state().metaData();
+		long now = System.currentTimeMillis();
+		ObjectLongOpenHashMap<ShardId> shardsSize = usageIndex.shardsSize(nodePath);
+		ObjectLongOpenHashMap<String> indicesSize = new ObjectLongOpenHashMap<>();
+		for (ObjectLongCursor<ShardId> cursor : shardsSize) {
+			indicesSize.putOrAdd(cursor.key.index().name(), cursor.value, cursor.value);
+		}
+		List<AgedIndex> indices = new ArrayList<>(indicesSize.size());
+		for (ObjectLongCursor<String> cursor : indicesSize) {
+			IndexMetaData indexMetaData = metaData.index(cursor.key);
+			if (null == indexMetaData)
+				continue; // being deleted
+			long date = dateOf(indexMetaData);
+			if (date < 0) {
+				// created before es 1.4 without a date in the name, taken as the youngest
+				date = now;
+			} else if (retentionMillis >= 0 && now - date + horizonMillis >= retentionMillis) {
+				logger.trace("index [{}] will be deleted within [{}], skip migration", cursor.key, TimeValue.timeValueMillis(horizonMillis));
+				continue;
+			}
+			indices.add(new AgedIndex(cursor.key, date, cursor.value));
+		}
+		// oldest first, the larger one of the same age
+		Collections.sort(indices, new Comparator<AgedIndex>() {
+			@Override
+			public int compare(AgedIndex index1, AgedIndex index2) {
+				int cmp = Long.compare(index1.date, index2.date);
+				return cmp != 0 ? cmp : Long.compare(index2.size, index1.size);
+			}
+		});
+
+		Map<String, List<MigrationInfo.Shard>> shardsByIndex = MigrationInfo.shardsByIndex(shardsSize);
+		MigrationInfo mgInfo = new MigrationInfo();
+		for (AgedIndex index : indices) {
+			mgInfo.addShards(shardsByIndex.get(index.name));
+		}
+		mgInfo.setTarget((long) (nodePath.fileStore.getTotalSpace() * migrationPer));
+		return mgInfo;
+	}
+
+	/**
+	 * @return the date in the name of the index, or its creation date, -1 if unknown
+	 */
+	long dateOf(IndexMetaData indexMetaData) {
+		String name = indexMetaData.index();
+		if (null != dateFormat && name.length() >= dateLength) {
+			try {
+				return dateFormat.parseMillis(name.substring(name.length() - dateLength));
+			} catch (IllegalArgumentException e) {
+				// no date in the name
+			}
+		}
+		return indexMetaData.creationDate();
+	}
+
+	private static class AgedIndex {
+		final String name;
+		final long date;
+		final long size;
+
+		AgedIndex(String name, long date, long size) {
+			this.name = name;
+			this.date = date;
+			this.size = size;
+		}
+	}
+}
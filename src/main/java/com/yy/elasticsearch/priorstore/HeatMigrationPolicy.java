@@ -0,0 +1,58 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.carrotsearch.hppc.ObjectDoubleOpenHashMap;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Migrates the coldest bytes first: shards in the prior path are ranked by their access heat per byte
+ * (see {@link ShardHeatService}), aiming to free {@link #MIGRATION_PER} of the device.
+ * Among shards equally cold(e.g. never accessed), larger ones go first.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class HeatMigrationPolicy implements MigrationPolicy {
+
+	public static final String MIGRATION_PER = "store.prior.migration.policy.heat.per";
+
+	private final Settings settings;
+	private final ShardUsageIndex usageIndex;
+	private final ShardHeatService heatService;
+
+	@Inject
+	public HeatMigrationPolicy(Settings settings, ShardUsageIndex usageIndex, ShardHeatService heatService) {
+		this.settings = settings;
+		this.usageIndex = usageIndex;
+		this.heatService = heatService;
+	}
+
+	@Override
+	public MigrationInfo getMigrationIndices(NodeEnvironment.NodePath nodePath) throws Exception {
+		List<MigrationInfo.Shard> shards = new ArrayList<>();
+		final ObjectDoubleOpenHashMap<ShardId> heatPerByte = new ObjectDoubleOpenHashMap<>();
+		for (ObjectLongCursor<ShardId> cursor : usageIndex.shardsSize(nodePath)) {
+			shards.add(new MigrationInfo.Shard(cursor.key, cursor.value));
+			heatPerByte.put(cursor.key, cursor.value <= 0 ? 0 : heatService.heat(cursor.key) / cursor.value);
+		}
+		Collections.sort(shards, new Comparator<MigrationInfo.Shard>() {
+			@Override
+			public int compare(MigrationInfo.Shard shard1, MigrationInfo.Shard shard2) {
+				int cmp = Double.compare(heatPerByte.get(shard1.getShardId()), heatPerByte.get(shard2.getShardId()));
+				return cmp != 0 ? cmp : MigrationInfo.LARGER_FIRST.compare(shard1, shard2);
+			}
+		});
+
+		MigrationInfo mgInfo = new MigrationInfo();
+		mgInfo.addShards(shards);
+		mgInfo.setTarget((long) (nodePath.fileStore.getTotalSpace() * settings.getAsDouble(MIGRATION_PER, 0.1)));
+		return mgInfo;
+	}
+}
@@ -1,28 +1,120 @@
 package com.yy.elasticsearch.priorstore;
 
+import com.carrotsearch.hppc.ObjectLongOpenHashMap;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
+ * The shards a {@link MigrationPolicy} would like to move out of a node path, the ones to move first come first, and
+ * how many bytes it wants to free. Which of them are moved is decided by {@link ShardSelector}, so a policy ranks
+ * every candidate instead of cutting the list at the target itself.
+ *
  * @author colin.ke keqinwu@163.com
  */
 public class MigrationInfo {
 
-	private Set<String> indices;
-	private long size;
+	private final List<Shard> shards = new ArrayList<>();
+	private long target;
+
+	public void addShard(ShardId shardId, long size) {
+		shards.add(new Shard(shardId, size));
+	}
+
+	public void addShards(List<Shard> shards) {
+		this.shards.addAll(shards);
+	}
+
+	public void setTarget(long target) {
+		this.target = target;
+	}
 
-	public void setIndices(Set<String> indices) {
-		this.indices = indices;
+	/**
+	 * @return the candidates, by rank
+	 */
+	public List<Shard> getShards() {
+		return shards;
 	}
 
-	public void setSize(long size) {
-		this.size = size;
+	/**
+	 * @return bytes to be freed
+	 */
+	public long getTarget() {
+		return target;
 	}
 
+	/**
+	 * @return indices of the candidates, by rank
+	 */
 	public Set<String> getIndices() {
+		Set<String> indices = new LinkedHashSet<>();
+		for (Shard shard : shards) {
+			indices.add(shard.shardId.index().name());
+		}
 		return indices;
 	}
 
+	/**
+	 * @return bytes of all the candidates
+	 */
 	public long getSize() {
+		long size = 0;
+		for (Shard shard : shards) {
+			size += shard.size;
+		}
 		return size;
 	}
+
+	/**
+	 * @return the shards of every index, the larger first: fewer shards are taken offline for the same bytes
+	 */
+	static Map<String, List<Shard>> shardsByIndex(ObjectLongOpenHashMap<ShardId> shardsSize) {
+		Map<String, List<Shard>> byIndex = new HashMap<>();
+		for (ObjectLongCursor<ShardId> cursor : shardsSize) {
+			String index = cursor.key.index().name();
+			List<Shard> shards = byIndex.get(index);
+			if (null == shards) {
+				shards = new ArrayList<>();
+				byIndex.put(index, shards);
+			}
+			shards.add(new Shard(cursor.key, cursor.value));
+		}
+		for (List<Shard> shards : byIndex.values()) {
+			Collections.sort(shards, LARGER_FIRST);
+		}
+		return byIndex;
+	}
+
+	static final Comparator<Shard> LARGER_FIRST = new Comparator<Shard>() {
+		@Override
+		public int compare(Shard shard1, Shard shard2) {
+			return Long.compare(shard2.size, shard1.size);
+		}
+	};
+
+	public static class Shard {
+		private final ShardId shardId;
+		private final long size;
+
+		public Shard(ShardId shardId, long size) {
+			this.shardId = shardId;
+			this.size = size;
+		}
+
+		public ShardId getShardId() {
+			return shardId;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
 }
@@ -0,0 +1,200 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.google.common.base.Charsets;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of the shard transfers out of one node path, so that a transfer interrupted by a crash is
+ * finished or rolled back when the node starts again, before any shard is opened. Each line is a phase of a transfer,
+ * keyed by its staging folder:
+ * <pre>
+ *     BEGIN  staging shardId              files are being copied into the staging folder
+ *     FILE   staging source staged target one line per file, written before STAGED
+ *     STAGED staging                      all the files are fsync'ed in the staging folder, being moved into place
+ *     SYNCED staging                      all the files are in place and fsync'ed, the sources are being deleted
+ *     DONE / ABORTED staging
+ * </pre>
+ * On replay a transfer which didn't reach STAGED is rolled back: the sources are intact, and the staging folder is
+ * kept, its manifest tells the next attempt which copies can be reused. One which did reach STAGED is finished: the remaining staged files are moved into place and the sources deleted.
+ * The journal is emptied whenever no transfer is open.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+class MigrationJournal {
+
+	static final String FILE_NAME = "prior_migration.journal";
+
+	static final String BEGIN = "BEGIN";
+	static final String FILE = "FILE";
+	static final String STAGED = "STAGED";
+	static final String SYNCED = "SYNCED";
+	static final String DONE = "DONE";
+	static final String ABORTED = "ABORTED";
+
+	private static final ESLogger logger = Loggers.getLogger(MigrationJournal.class);
+
+	private final Path file;
+	private FileChannel channel;
+	private boolean closed;
+	/**
+	 * transfers begun and not ended yet
+	 */
+	private int open;
+
+	MigrationJournal(Path dir) {
+		this.file = dir.resolve(FILE_NAME);
+	}
+
+	synchronized void begin(Path stagingDir, String shardId) throws IOException {
+		append(BEGIN + '\t' + stagingDir + '\t' + shardId + '\n', true);
+		++open;
+	}
+
+	/**
+	 * @param files source, staged and target of every file
+	 */
+	synchronized void staged(Path stagingDir, List<Path[]> files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Path[] f : files) {
+			sb.append(FILE).append('\t').append(stagingDir).append('\t').append(f[0]).append('\t').append(f[1]).append('\t').append(f[2]).append('\n');
+		}
+		sb.append(STAGED).append('\t').append(stagingDir).append('\n');
+		append(sb.toString(), true);
+	}
+
+	synchronized void synced(Path stagingDir) throws IOException {
+		append(SYNCED + '\t' + stagingDir + '\n', true);
+	}
+
+	/**
+	 * @param done false if the transfer was aborted
+	 */
+	synchronized void end(Path stagingDir, boolean done) throws IOException {
+		--open;
+		if (open <= 0) {
+			open = 0;
+			truncate();
+		} else {
+			// not fsync'ed, replaying an ended transfer again is harmless
+			append((done ? DONE : ABORTED) + '\t' + stagingDir + '\n', false);
+		}
+	}
+
+	private void append(String line, boolean sync) throws IOException {
+		if (closed)
+			throw new IOException("migration journal [" + file + "] is closed");
+		if (null == channel)
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(Charsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		if (sync)
+			channel.force(false);
+	}
+
+	private void truncate() throws IOException {
+		if (!closed && null != channel) {
+			channel.truncate(0);
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * transfers still open fail from now on, they are replayed when the node starts again
+	 */
+	synchronized void close() {
+		closed = true;
+		IOUtils.closeWhileHandlingException(channel);
+		channel = null;
+	}
+
+	/**
+	 * finish or roll back the transfers left open in the journal of the node path, then empty it
+	 *
+	 * @return count of the transfers which were open
+	 */
+	static int replay(Path dir) throws IOException {
+		Path file = dir.resolve(FILE_NAME);
+		if (!Files.exists(file))
+			return 0;
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, Charsets.UTF_8)) {
+			String line;
+			while (null != (line = reader.readLine())) {
+				String[] parts = line.split("\t");
+				if (parts.length < 2)
+					continue; // torn write
+				Entry entry = entries.get(parts[1]);
+				if (BEGIN.equals(parts[0]) && parts.length >= 3) {
+					entries.put(parts[1], new Entry(Paths.get(parts[1]), parts[2]));
+				} else if (null == entry) {
+					continue;
+				} else if (FILE.equals(parts[0]) && parts.length >= 5) {
+					entry.files.add(new Path[]{Paths.get(parts[2]), Paths.get(parts[3]), Paths.get(parts[4])});
+				} else if (STAGED.equals(parts[0]) || SYNCED.equals(parts[0])) {
+					entry.phase = parts[0];
+				} else if (DONE.equals(parts[0]) || ABORTED.equals(parts[0])) {
+					entries.remove(parts[1]);
+				}
+			}
+		}
+		for (Entry entry : entries.values()) {
+			if (BEGIN.equals(entry.phase)) {
+				// the manifest in the staging folder decides what the next attempt reuses
+				logger.info("{} rolling back the migration interrupted while copying to [{}], the staged files are kept", entry.shardId, entry.stagingDir);
+				continue;
+			}
+			logger.info("{} finishing the migration interrupted while moving files to [{}]", entry.shardId, entry.stagingDir);
+			if (STAGED.equals(entry.phase)) {
+				Set<Path> targetDirs = new LinkedHashSet<>();
+				for (Path[] f : entry.files) {
+					if (Files.exists(f[1]))
+						Files.move(f[1], f[2], StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					targetDirs.add(f[2].getParent());
+				}
+				for (Path targetDir : targetDirs) {
+					IOUtils.fsync(targetDir.toFile(), true);
+				}
+			}
+			for (Path[] f : entry.files) {
+				if (Files.exists(f[2]))
+					Files.deleteIfExists(f[0]);
+			}
+			FileSystemUtils.deleteRecursively(entry.stagingDir.toFile());
+		}
+		Files.delete(file);
+		return entries.size();
+	}
+
+	private static class Entry {
+		final Path stagingDir;
+		final String shardId;
+		final List<Path[]> files = new ArrayList<>();
+		String phase = BEGIN;
+
+		Entry(Path stagingDir, String shardId) {
+			this.stagingDir = stagingDir;
+			this.shardId = shardId;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.action.admin.indices.stats.CommonStatsFlags;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.search.stats.SearchStats;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+
+/**
+ * Adapts the migrations to the load of the node with AIMD: every {@link #ADAPTIVE_INTERVAL} the search, index and
+ * bulk thread pools and the search latency are sampled, and if the node looks busy the copy rate and the shards in
+ * flight are halved, otherwise they grow back by a step, up to {@link PriorStoreTransferEngine#MIGRATION_MAX_BYTES_PER_SEC}
+ * and {@link PriorStoreMigrationEngine#MIGRATION_CONCURRENT}. The node is busy if
+ * <ul>
+ * <li>the queues of those pools hold at least {@link #ADAPTIVE_QUEUE_SIZE} tasks, or</li>
+ * <li>any of them rejected a task since the last sample, or</li>
+ * <li>the average query latency since the last sample is above {@link #ADAPTIVE_LATENCY_RATIO} of the baseline,
+ * which is the average latency while no shard is being migrated.</li>
+ * </ul>
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class MigrationThrottle {
+
+	public static final String ADAPTIVE_ENABLED = "store.prior.migration.adaptive.enabled";
+	public static final String ADAPTIVE_INTERVAL = "store.prior.migration.adaptive.interval";
+	public static final TimeValue DEFAULT_ADAPTIVE_INTERVAL = TimeValue.timeValueSeconds(1);
+	/**
+	 * the copy rate is never lowered under this
+	 */
+	public static final String ADAPTIVE_MIN_BYTES_PER_SEC = "store.prior.migration.adaptive.min_bytes_per_sec";
+	public static final ByteSizeValue DEFAULT_ADAPTIVE_MIN_BYTES_PER_SEC = new ByteSizeValue(5, ByteSizeUnit.MB);
+	public static final String ADAPTIVE_QUEUE_SIZE = "store.prior.migration.adaptive.queue_size";
+	public static final int DEFAULT_ADAPTIVE_QUEUE_SIZE = 10;
+	public static final String ADAPTIVE_LATENCY_RATIO = "store.prior.migration.adaptive.latency_ratio";
+	public static final double DEFAULT_ADAPTIVE_LATENCY_RATIO = 1.5;
+
+	private static final String[] POOLS = new String[]{ThreadPool.Names.SEARCH, ThreadPool.Names.INDEX, ThreadPool.Names.BULK};
+	/**
+	 * the rate grows back by this ratio of the max rate per sample
+	 */
+	private static final double INCREASE_RATIO = 0.1;
+	/**
+	 * weight of a new sample in the latency baseline
+	 */
+	private static final double BASELINE_WEIGHT = 0.1;
+	/**
+	 * samples with fewer queries don't tell the latency
+	 */
+	private static final long MIN_QUERIES = 10;
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final ThreadPool threadPool;
+	private final IndicesService indicesService;
+	private final PriorStoreMigrationEngine migrationEngine;
+	private final PriorStoreTransferEngine transferEngine;
+	private final PriorStoreStats stats;
+	private final double minMbPerSec;
+	private final int queueSize;
+	private final double latencyRatio;
+
+	private long lastRejected = -1;
+	private long lastQueryCount = -1;
+	private long lastQueryMillis;
+	/**
+	 * average millis per query while nothing is migrated, -1 until known
+	 */
+	private double baselineLatency = -1;
+
+	@Inject
+	public MigrationThrottle(Settings settings, ThreadPool threadPool, IndicesService indicesService, PriorStoreMigrationEngine migrationEngine,
+							 PriorStoreTransferEngine transferEngine, PriorStoreStats stats) {
+		this.threadPool = threadPool;
+		this.indicesService = indicesService;
+		this.migrationEngine = migrationEngine;
+		this.transferEngine = transferEngine;
+		this.stats = stats;
+		this.minMbPerSec = settings.getAsBytesSize(ADAPTIVE_MIN_BYTES_PER_SEC, DEFAULT_ADAPTIVE_MIN_BYTES_PER_SEC).mbFrac();
+		this.queueSize = settings.getAsInt(ADAPTIVE_QUEUE_SIZE, DEFAULT_ADAPTIVE_QUEUE_SIZE);
+		this.latencyRatio = settings.getAsDouble(ADAPTIVE_LATENCY_RATIO, DEFAULT_ADAPTIVE_LATENCY_RATIO);
+		if (!settings.getAsBoolean(ADAPTIVE_ENABLED, true))
+			return;
+		stats.throttleMbPerSec = transferEngine.mbPerSec();
+		stats.throttleConcurrency = migrationEngine.concurrencyLimit();
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					adjust();
+				} catch (Exception e) {
+					logger.warn("failed to adjust the migration throttle", e);
+				}
+			}
+		}, settings.getAsTime(ADAPTIVE_INTERVAL, DEFAULT_ADAPTIVE_INTERVAL));
+	}
+
+	synchronized void adjust() {
+		boolean busy = busy(migrationEngine.activeCount() > 0);
+		double maxMbPerSec = transferEngine.maxMbPerSec();
+		if (busy) {
+			stats.throttleBackoffs.inc();
+			if (maxMbPerSec > 0)
+				transferEngine.setMbPerSec(Math.max(Math.min(minMbPerSec, maxMbPerSec), transferEngine.mbPerSec() / 2));
+			migrationEngine.setConcurrencyLimit(migrationEngine.concurrencyLimit() / 2);
+			logger.debug("node is busy, migrating at [{}]mb/s with [{}] shards at most", transferEngine.mbPerSec(), migrationEngine.concurrencyLimit());
+		} else {
+			if (maxMbPerSec > 0)
+				transferEngine.setMbPerSec(transferEngine.mbPerSec() + maxMbPerSec * INCREASE_RATIO);
+			migrationEngine.setConcurrencyLimit(migrationEngine.concurrencyLimit() + 1);
+		}
+		stats.throttleMbPerSec = transferEngine.mbPerSec();
+		stats.throttleConcurrency = migrationEngine.concurrencyLimit();
+	}
+
+	/**
+	 * sample the thread pools and the search latency, the first sample is never busy
+	 *
+	 * @param migrating whether shards are being migrated, the latency baseline is only learned when they aren't
+	 */
+	private boolean busy(boolean migrating) {
+		int queued = 0;
+		long rejected = 0;
+		for (ThreadPoolStats.Stats poolStats : threadPool.stats()) {
+			for (String pool : POOLS) {
+				if (pool.equals(poolStats.getName())) {
+					queued += poolStats.getQueue();
+					rejected += poolStats.getRejected();
+				}
+			}
+		}
+		boolean busy = queued >= queueSize || (lastRejected >= 0 && rejected > lastRejected);
+		lastRejected = rejected;
+
+		SearchStats.Stats search = indicesService.stats(false, new CommonStatsFlags(CommonStatsFlags.Flag.Search)).getSearch().getTotal();
+		long queries = search.getQueryCount() - lastQueryCount;
+		long millis = search.getQueryTimeInMillis() - lastQueryMillis;
+		boolean first = lastQueryCount < 0;
+		lastQueryCount = search.getQueryCount();
+		lastQueryMillis = search.getQueryTimeInMillis();
+		// the counters go backwards when shards are removed from the node
+		if (first || queries < MIN_QUERIES || millis < 0)
+			return busy;
+		double latency = millis * 1.0 / queries;
+		if (!migrating) {
+			baselineLatency = baselineLatency < 0 ? latency : baselineLatency * (1 - BASELINE_WEIGHT) + latency * BASELINE_WEIGHT;
+			return busy;
+		}
+		return busy || (baselineLatency > 0 && latency > baselineLatency * latencyRatio);
+	}
+}
@@ -0,0 +1,155 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * posix_fadvise and sync_file_range on the files being migrated, so that copying a shard doesn't push the hot pages
+ * of other shards out of the page cache. It goes through the JNA shipped with es, bound at runtime since the plugin doesn't depend on it,
+ * and does nothing if JNA is missing or the platform isn't linux.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+final class PageCache {
+
+	private static final ESLogger logger = Loggers.getLogger(PageCache.class);
+
+	static final int POSIX_FADV_WILLNEED = 3;
+	static final int POSIX_FADV_DONTNEED = 4;
+
+	static final int SYNC_FILE_RANGE_WAIT_BEFORE = 1;
+	static final int SYNC_FILE_RANGE_WRITE = 2;
+	static final int SYNC_FILE_RANGE_WAIT_AFTER = 4;
+
+	/**
+	 * FileChannelImpl.fd and FileDescriptor.fd, null if not accessible
+	 */
+	private static final Field channelFd;
+	private static final Field descriptorFd;
+	private static final boolean available;
+	private static final boolean syncFileRangeAvailable;
+
+	static {
+		Field cfd = null, dfd = null;
+		boolean ok = false, syncOk = false;
+		if (Constants.LINUX) {
+			try {
+				cfd = Class.forName("sun.nio.ch.FileChannelImpl").getDeclaredField("fd");
+				cfd.setAccessible(true);
+				dfd = FileDescriptor.class.getDeclaredField("fd");
+				dfd.setAccessible(true);
+				Method register = Class.forName("com.sun.jna.Native").getMethod("register", Class.class, String.class);
+				register.invoke(null, CLibrary.class, "c");
+				ok = true;
+				// bound on its own, so posix_fadvise still works without it
+				register.invoke(null, SyncFileRange.class, "c");
+				syncOk = true;
+			} catch (Throwable t) {
+				if (ok)
+					logger.debug("sync_file_range is not available, the pages of the migrated copies are left to the kernel", t);
+				else
+					logger.debug("posix_fadvise is not available, migrations will go through the page cache", t);
+			}
+		}
+		channelFd = cfd;
+		descriptorFd = dfd;
+		available = ok;
+		syncFileRangeAvailable = syncOk;
+	}
+
+	private PageCache() {
+	}
+
+	static boolean available() {
+		return available;
+	}
+
+	/**
+	 * drop the cached pages of the range, dirty pages are kept so they should be synced first
+	 */
+	static void dontNeed(FileChannel channel, long offset, long length) {
+		fadvise(channel, offset, length, POSIX_FADV_DONTNEED);
+	}
+
+	/**
+	 * start reading the range into the page cache in the background
+	 */
+	static void willNeed(FileChannel channel, long offset, long length) {
+		fadvise(channel, offset, length, POSIX_FADV_WILLNEED);
+	}
+
+	/**
+	 * start writing back the dirty pages of the range, returns right away
+	 *
+	 * @return false if it couldn't be started
+	 */
+	static boolean startWriteback(FileChannel channel, long offset, long length) {
+		return syncFileRange(channel, offset, length, SYNC_FILE_RANGE_WRITE);
+	}
+
+	/**
+	 * write back the dirty pages of the range and wait for them, unlike fsync it doesn't flush the metadata or the
+	 * disk cache, it only makes the pages clean so they can be dropped
+	 *
+	 * @return false if the pages may still be dirty
+	 */
+	static boolean writeback(FileChannel channel, long offset, long length) {
+		return syncFileRange(channel, offset, length, SYNC_FILE_RANGE_WAIT_BEFORE | SYNC_FILE_RANGE_WRITE | SYNC_FILE_RANGE_WAIT_AFTER);
+	}
+
+	private static boolean syncFileRange(FileChannel channel, long offset, long length, int flags) {
+		if (!syncFileRangeAvailable || length <= 0)
+			return false;
+		try {
+			int fd = descriptorFd.getInt(channelFd.get(channel));
+			int ret = SyncFileRange.sync_file_range(fd, offset, length, flags);
+			if (ret != 0)
+				logger.trace("sync_file_range({}) failed with [{}]", flags, ret);
+			return ret == 0;
+		} catch (Throwable t) {
+			logger.trace("sync_file_range({}) failed", t, flags);
+			return false;
+		}
+	}
+
+	/**
+	 * @return false if the advice wasn't taken, it's only a hint so the caller carries on anyway
+	 */
+	private static boolean fadvise(FileChannel channel, long offset, long length, int advice) {
+		if (!available || length <= 0)
+			return false;
+		try {
+			int fd = descriptorFd.getInt(channelFd.get(channel));
+			int ret = CLibrary.posix_fadvise(fd, offset, length, advice);
+			if (ret != 0)
+				logger.trace("posix_fadvise({}) failed with [{}]", advice, ret);
+			return ret == 0;
+		} catch (Throwable t) {
+			logger.trace("posix_fadvise({}) failed", t, advice);
+			return false;
+		}
+	}
+
+	/**
+	 * bound by JNA direct mapping
+	 */
+	static final class CLibrary {
+		static native int posix_fadvise(int fd, long offset, long len, int advice);
+
+		private CLibrary() {
+		}
+	}
+
+	static final class SyncFileRange {
+		static native int sync_file_range(int fd, long offset, long nbytes, int flags);
+
+		private SyncFileRange() {
+		}
+	}
+}
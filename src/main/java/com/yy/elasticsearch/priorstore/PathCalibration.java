@@ -0,0 +1,226 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.env.NodeEnvironment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measured sequential read / write throughput and fsync latency of a node path, see {@link #measure(NodeEnvironment.NodePath, long)}.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PathCalibration implements Streamable, ToXContent {
+
+	static final String SCRATCH_FILE_NAME = "prior_calibration.tmp";
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int FSYNC_ROUNDS = 10;
+
+	private long readBytesPerSec;
+	private long writeBytesPerSec;
+	private long fsyncMicros;
+	/**
+	 * whether the read throughput was measured on the existing index files, otherwise on the scratch file just
+	 * written, which is likely in the page cache
+	 */
+	private boolean coldRead;
+	private long timestamp;
+
+	PathCalibration() {
+	}
+
+	public PathCalibration(long readBytesPerSec, long writeBytesPerSec, long fsyncMicros, boolean coldRead, long timestamp) {
+		this.readBytesPerSec = readBytesPerSec;
+		this.writeBytesPerSec = writeBytesPerSec;
+		this.fsyncMicros = fsyncMicros;
+		this.coldRead = coldRead;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Write a scratch file of the given size and fsync it for the write throughput, then fsync small appends for the
+	 * fsync latency. The read throughput is measured on the index files of the path(up to the same size), which are
+	 * less likely cached than the scratch file.
+	 */
+	public static PathCalibration measure(NodeEnvironment.NodePath nodePath, long size) throws IOException {
+		Files.createDirectories(nodePath.path);
+		Path scratch = nodePath.path.resolve(SCRATCH_FILE_NAME);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			new Random().nextBytes(buffer.array()); // not compressible by the device
+			long writeNanos, written = 0;
+			try (FileChannel out = FileChannel.open(scratch, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long start = System.nanoTime();
+				for (; written < size; written += CHUNK_SIZE) {
+					buffer.clear();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+				}
+				out.force(true);
+				writeNanos = System.nanoTime() - start;
+
+				ByteBuffer small = ByteBuffer.allocate(4096);
+				start = System.nanoTime();
+				for (int i = 0; i < FSYNC_ROUNDS; ++i) {
+					small.clear();
+					out.write(small);
+					out.force(false);
+				}
+				long fsyncMicros = (System.nanoTime() - start) / FSYNC_ROUNDS / 1000;
+
+				List<Path> indexFiles = indexFiles(nodePath.indicesPath, size);
+				boolean coldRead = !indexFiles.isEmpty();
+				if (!coldRead)
+					indexFiles.add(scratch);
+				long read = 0;
+				start = System.nanoTime();
+				for (Path file : indexFiles) {
+					read += read(file, buffer, size - read);
+				}
+				long readNanos = System.nanoTime() - start;
+				return new PathCalibration(rate(read, readNanos), rate(written, writeNanos), fsyncMicros,
+						coldRead, System.currentTimeMillis());
+			}
+		} finally {
+			Files.deleteIfExists(scratch);
+		}
+	}
+
+	/**
+	 * @return index files of at least 1mb, till they add up to the given size
+	 */
+	private static List<Path> indexFiles(Path indicesPath, final long size) throws IOException {
+		final List<Path> files = new ArrayList<>();
+		if (!Files.isDirectory(indicesPath))
+			return files;
+		Files.walkFileTree(indicesPath, new SimpleFileVisitor<Path>() {
+			long total;
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() && attrs.size() >= CHUNK_SIZE) {
+					files.add(file);
+					total += attrs.size();
+				}
+				return total >= size ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				return FileVisitResult.CONTINUE; // e.g. deleted by a merge
+			}
+		});
+		return files;
+	}
+
+	private static long read(Path file, ByteBuffer buffer, long limit) {
+		long read = 0;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (read < limit) {
+				buffer.clear();
+				int n = in.read(buffer, read);
+				if (n < 0)
+					break;
+				read += n;
+			}
+		} catch (IOException e) {
+			// deleted by a merge, just count what has been read
+		}
+		return read;
+	}
+
+	private static long rate(long bytes, long nanos) {
+		return nanos <= 0 ? 0 : (long) (bytes * 1000000000.0 / nanos);
+	}
+
+	public long getReadBytesPerSec() {
+		return readBytesPerSec;
+	}
+
+	public long getWriteBytesPerSec() {
+		return writeBytesPerSec;
+	}
+
+	public long getFsyncMicros() {
+		return fsyncMicros;
+	}
+
+	/**
+	 * @return estimated millis to copy the bytes from the source to the target path, by the slower of the two
+	 */
+	public static long estimateMillis(PathCalibration source, PathCalibration target, long bytes) {
+		long rate = Long.MAX_VALUE;
+		if (null != source && source.readBytesPerSec > 0)
+			rate = source.readBytesPerSec;
+		if (null != target && target.writeBytesPerSec > 0)
+			rate = Math.min(rate, target.writeBytesPerSec);
+		return rate == Long.MAX_VALUE ? -1 : bytes * 1000 / rate;
+	}
+
+	public static PathCalibration readPathCalibration(StreamInput in) throws IOException {
+		PathCalibration calibration = new PathCalibration();
+		calibration.readFrom(in);
+		return calibration;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		readBytesPerSec = in.readVLong();
+		writeBytesPerSec = in.readVLong();
+		fsyncMicros = in.readVLong();
+		coldRead = in.readBoolean();
+		timestamp = in.readVLong();
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		out.writeVLong(readBytesPerSec);
+		out.writeVLong(writeBytesPerSec);
+		out.writeVLong(fsyncMicros);
+		out.writeBoolean(coldRead);
+		out.writeVLong(timestamp);
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		builder.byteSizeField(Fields.READ_IN_BYTES_PER_SEC, Fields.READ_PER_SEC, readBytesPerSec);
+		builder.field("cold_read", coldRead);
+		builder.byteSizeField(Fields.WRITE_IN_BYTES_PER_SEC, Fields.WRITE_PER_SEC, writeBytesPerSec);
+		builder.field("fsync_micros", fsyncMicros);
+		builder.field("timestamp", timestamp);
+		builder.endObject();
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		return "read [" + new ByteSizeValue(readBytesPerSec) + "/s]" + (coldRead ? "" : "(cached)") + ", write [" + new ByteSizeValue(writeBytesPerSec)
+				+ "/s], fsync [" + fsyncMicros + "micros]";
+	}
+
+	static final class Fields {
+		static final XContentBuilderString READ_IN_BYTES_PER_SEC = new XContentBuilderString("read_in_bytes_per_sec");
+		static final XContentBuilderString READ_PER_SEC = new XContentBuilderString("read_per_sec");
+		static final XContentBuilderString WRITE_IN_BYTES_PER_SEC = new XContentBuilderString("write_in_bytes_per_sec");
+		static final XContentBuilderString WRITE_PER_SEC = new XContentBuilderString("write_per_sec");
+	}
+}
@@ -1,10 +1,19 @@
 package com.yy.elasticsearch.priorstore;
 
+import com.yy.elasticsearch.priorstore.action.PriorStorePlanAction;
+import com.yy.elasticsearch.priorstore.action.PriorStoreStatsAction;
+import com.yy.elasticsearch.priorstore.action.TransportPriorStorePlanAction;
+import com.yy.elasticsearch.priorstore.action.TransportPriorStoreStatsAction;
+import com.yy.elasticsearch.priorstore.rest.RestPriorStorePlanAction;
+import com.yy.elasticsearch.priorstore.rest.RestPriorStoreStatsAction;
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.store.StoreModule;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -23,7 +32,8 @@ public class Plugin extends AbstractPlugin {
 
 	public Plugin(Settings settings) {
 		String priorPath = settings.get(PRIOR_PATH_KEY);
-		enabled = settings.getAsBoolean(PRIOR_STORE_ENABLED_KEY, true) && null != priorPath && Files.isDirectory(Paths.get(priorPath));
+		boolean tiered = settings.getAsArray(PriorStoreModule.TIERS).length > 0;
+		enabled = settings.getAsBoolean(PRIOR_STORE_ENABLED_KEY, true) && (tiered || (null != priorPath && Files.isDirectory(Paths.get(priorPath))));
 	}
 
 	@Override
@@ -41,6 +51,13 @@ public class Plugin extends AbstractPlugin {
 		return (Collection) Collections.singletonList(PriorStoreModule.class);
 	}
 
+	@Override
+	public Collection<Class<? extends LifecycleComponent>> services() {
+		if (enabled)
+			return (Collection) Collections.singletonList(PriorStoreService.class);
+		return Collections.emptyList();
+	}
+
 	@Override
 	public Settings additionalSettings() {
 		if (enabled)
@@ -48,6 +65,20 @@ public class Plugin extends AbstractPlugin {
 		return ImmutableSettings.EMPTY;
 	}
 
+	public void onModule(ActionModule module) {
+		if (enabled) {
+			module.registerAction(PriorStoreStatsAction.INSTANCE, TransportPriorStoreStatsAction.class);
+			module.registerAction(PriorStorePlanAction.INSTANCE, TransportPriorStorePlanAction.class);
+		}
+	}
+
+	public void onModule(RestModule module) {
+		if (enabled) {
+			module.addRestAction(RestPriorStoreStatsAction.class);
+			module.addRestAction(RestPriorStorePlanAction.class);
+		}
+	}
+
 	public static boolean enabled() {
 		return enabled;
 	}
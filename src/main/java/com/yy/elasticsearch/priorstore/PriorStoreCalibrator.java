@@ -0,0 +1,62 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Measures every node path once the node starts, and again on demand(see the plan api), and keeps the results in
+ * {@link PriorStoreEnvironment}. They are used to choose the migration targets, throttle the copies per device and
+ * estimate how long the migrations take.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreCalibrator {
+
+	public static final String CALIBRATION_ENABLED = "store.prior.calibration.enabled";
+	public static final boolean DEFAULT_CALIBRATION_ENABLED = true;
+	/**
+	 * bytes written and read on each node path
+	 */
+	public static final String CALIBRATION_SIZE = "store.prior.calibration.size";
+	public static final ByteSizeValue DEFAULT_CALIBRATION_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final PriorStoreEnvironment psEnv;
+	private final long size;
+
+	@Inject
+	public PriorStoreCalibrator(Settings settings, ThreadPool threadPool, PriorStoreEnvironment psEnv) {
+		this.psEnv = psEnv;
+		this.size = settings.getAsBytesSize(CALIBRATION_SIZE, DEFAULT_CALIBRATION_SIZE).bytes();
+		if (settings.getAsBoolean(CALIBRATION_ENABLED, DEFAULT_CALIBRATION_ENABLED)) {
+			threadPool.generic().execute(new Runnable() {
+				@Override
+				public void run() {
+					calibrate();
+				}
+			});
+		}
+	}
+
+	/**
+	 * measure the node paths one by one, so they don't disturb each other if they share a device
+	 */
+	public synchronized void calibrate() {
+		NodeEnvironment.NodePath[] nodePaths = psEnv.getNodePaths();
+		for (int i = 0; i < nodePaths.length; ++i) {
+			try {
+				PathCalibration calibration = PathCalibration.measure(nodePaths[i], size);
+				psEnv.setCalibration(i, calibration);
+				logger.info("calibrated {}: {}", nodePaths[i].path, calibration);
+			} catch (Exception e) {
+				logger.warn("failed to calibrate {}", e, nodePaths[i].path);
+			}
+		}
+	}
+}
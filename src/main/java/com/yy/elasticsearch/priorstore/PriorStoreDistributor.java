@@ -1,9 +1,16 @@
 package com.yy.elasticsearch.priorstore;
 
+import com.google.common.primitives.Ints;
+import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.merge.OnGoingMerge;
+import org.elasticsearch.index.merge.scheduler.MergeSchedulerProvider;
 import org.elasticsearch.index.store.DirectoryService;
 import org.elasticsearch.index.store.DirectoryUtils;
 import org.elasticsearch.index.store.IndexStore;
@@ -12,6 +19,7 @@ import org.elasticsearch.index.store.distributor.AbstractDistributor;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -20,51 +28,155 @@ import java.util.concurrent.ThreadLocalRandom;
  */
 public class PriorStoreDistributor extends AbstractDistributor {
 
-	private PriorStoreEnvironment priorStoreEnv;
-	private final Directory[] priorStoreDirs;
+	private final PriorStoreSpaceService spaceService;
+	private final PriorStoreStats stats;
+	private final PriorStoreMigrationScheduler scheduler;
+	/**
+	 * directories in the paths of each tier, fastest tier first, null if no tier is configured
+	 */
+	private final Directory[][] tierDirs;
+	/**
+	 * slots(in {@link PriorStoreSpaceService}) of {@link #tierDirs} and {@link #delegates}, -1 if unknown
+	 */
+	private final int[][] tierSlots;
+	private final double[] tierMaxThresholds;
+	private final int[] delegateSlots;
+	/**
+	 * directories which are in no tier, large merge outputs go there directly
+	 */
+	private final Directory[] nonPriorDirs;
+	private final int[] nonPriorSlots;
+	private final long largeMergeSize;
+	/**
+	 * the tier level of each of {@link #delegates}, -1 if it's in no tier
+	 */
+	private final int[] delegateTiers;
+
+	/**
+	 * estimated size of the merge running on the current thread, set by the merge listener of each shard
+	 */
+	private static final ThreadLocal<Long> currentMergeSize = new ThreadLocal<>();
 
 	@Inject
-	public PriorStoreDistributor(DirectoryService directoryService, PriorStoreEnvironment psEnv, IndexStore indexStore) throws IOException {
+	public PriorStoreDistributor(DirectoryService directoryService, PriorStoreEnvironment psEnv, PriorStoreSpaceService spaceService,
+								 ShardUsageIndex usageIndex, PriorStoreStats stats, PriorStoreMigrationScheduler scheduler, IndexStore indexStore, MergeSchedulerProvider mergeScheduler) throws IOException {
 		super(directoryService);
+		this.spaceService = spaceService;
+		this.stats = stats;
+		this.scheduler = scheduler;
+		this.largeMergeSize = psEnv.getLargeMergeSize();
+		if (largeMergeSize > 0)
+			mergeScheduler.addListener(new MergeSizeListener());
 		Path[] locations = indexStore.shardIndexLocations(directoryService.shardId());
 		assert delegates.length == locations.length : "delegates dir array's length should be the same as shard location array";
+		ShardUsageIndex.ShardUsage usage = usageIndex.register(directoryService.shardId());
+		for (int i = 0; i < delegates.length; ++i) {
+			delegates[i] = new UsageTrackingDirectory(delegates[i], usage, usageIndex.slotOf(locations[i]));
+		}
+		if (psEnv.isSegmentAffinity() && delegates.length > 1) {
+			SegmentAffinityDirectory.Affinity affinity = new SegmentAffinityDirectory.Affinity(delegates.clone(), new SegmentAffinityDirectory.Placer() {
+				@Override
+				public boolean hasRoom(int dir) {
+					return delegateHasRoom(dir);
+				}
+			});
+			for (int i = 0; i < delegates.length; ++i) {
+				delegates[i] = new SegmentAffinityDirectory(delegates[i], i, affinity);
+			}
+		}
+		delegateSlots = new int[locations.length];
+		for (int i = 0; i < locations.length; ++i) {
+			delegateSlots[i] = spaceService.slotOf(locations[i]);
+		}
 
-		NodeEnvironment.NodePath[] psPaths = psEnv.getPriorStorePaths();
-		if (null == psPaths || psPaths.length == 0) {
-			priorStoreDirs = null;
+		StorageTier[] tiers = psEnv.getTiers();
+		delegateTiers = new int[locations.length];
+		Arrays.fill(delegateTiers, -1);
+		if (tiers.length == 0) {
+			tierDirs = null;
+			tierSlots = null;
+			tierMaxThresholds = null;
+			nonPriorDirs = delegates;
+			nonPriorSlots = delegateSlots;
 			return;
 		}
-		List<Directory> priorDirList = new ArrayList<>();
-		for (NodeEnvironment.NodePath priorStorePath : psPaths) {
-			for (int i = 0; i < locations.length; ++i) {
-				if (locations[i].startsWith(priorStorePath.indicesPath))
-					priorDirList.add(delegates[i]);
+		tierDirs = new Directory[tiers.length][];
+		tierSlots = new int[tiers.length][];
+		tierMaxThresholds = new double[tiers.length];
+		for (StorageTier tier : tiers) {
+			List<Directory> dirList = new ArrayList<>();
+			List<Integer> slotList = new ArrayList<>();
+			for (NodeEnvironment.NodePath path : tier.getPaths()) {
+				for (int i = 0; i < locations.length; ++i) {
+					if (locations[i].startsWith(path.indicesPath)) {
+						dirList.add(delegates[i]);
+						slotList.add(delegateSlots[i]);
+						delegateTiers[i] = tier.getLevel();
+					}
+				}
 			}
+			tierDirs[tier.getLevel()] = dirList.toArray(new Directory[dirList.size()]);
+			tierSlots[tier.getLevel()] = Ints.toArray(slotList);
+			tierMaxThresholds[tier.getLevel()] = tier.getMaxThreshold();
 		}
-		priorStoreDirs = priorDirList.toArray(new Directory[priorDirList.size()]);
-		this.priorStoreEnv = psEnv;
+
+		List<Directory> nonPriorDirList = new ArrayList<>();
+		List<Integer> nonPriorSlotList = new ArrayList<>();
+		for (int i = 0; i < locations.length; ++i) {
+			if (delegateTiers[i] < 0) {
+				nonPriorDirList.add(delegates[i]);
+				nonPriorSlotList.add(delegateSlots[i]);
+			}
+		}
+		nonPriorDirs = nonPriorDirList.toArray(new Directory[nonPriorDirList.size()]);
+		nonPriorSlots = Ints.toArray(nonPriorSlotList);
 	}
 
 	@Override
 	protected Directory doAny() {
-		if (null == priorStoreDirs || priorStoreDirs.length == 0)
-			return doAnyDir(delegates, null);
+		// read the snapshot once, so that all the directories are compared against the same view
+		long[] spaces = spaceService.snapshot();
+		if (null == tierDirs) {
+			stats.nonPriorPlacements.inc();
+			return doAnyDir(delegates, delegateSlots, spaces, null);
+		}
 
-		Directory directory;
-		directory = doAnyDir(priorStoreDirs, priorStoreEnv.getPriorStoreMaxThreshold());
-		if (null == directory)
-			directory = doAnyDir(delegates, null);
-		return directory;
+		Directory directory = null;
+		Long mergeSize = currentMergeSize.get();
+		if (null != mergeSize && mergeSize >= largeMergeSize && nonPriorDirs.length > 0) {
+			// large merged segments are mostly cold, don't let them take the prior store and be migrated later
+			directory = doAnyDir(nonPriorDirs, nonPriorSlots, spaces, null);
+			if (null != directory) {
+				stats.largeMergePlacements.inc();
+				return directory;
+			}
+		}
+		// the fastest tier which has room
+		for (int level = 0; level < tierDirs.length; ++level) {
+			directory = doAnyDir(tierDirs[level], tierSlots[level], spaces, tierMaxThresholds[level]);
+			if (null != directory) {
+				if (level > 0)
+					scheduler.onPriorStoreFull();
+				stats.priorPlacements.inc();
+				return directory;
+			}
+		}
+		stats.fallbackPlacements.inc();
+		// all the tiers are over their max thresholds, don't wait for the next scheduled migration
+		scheduler.onPriorStoreFull();
+		return doAnyDir(delegates, delegateSlots, spaces, null);
 	}
 
-	public Directory doAnyDir(Directory[] dirs, Double threshold) {
+	public Directory doAnyDir(Directory[] dirs, int[] slots, long[] spaces, Double threshold) {
 		Directory directory = null;
 		long size = Long.MIN_VALUE;
 		int sameSize = 0;
-		for (Directory dir : dirs) {
-			long currentSize = getUsableSpace(dir);
+		for (int i = 0; i < dirs.length; ++i) {
+			Directory dir = dirs[i];
+			long currentSize = slots[i] < 0 ? getUsableSpace(dir) : PriorStoreSpaceService.usableSpace(spaces, slots[i]);
 			if (null != threshold) {
-				double curPercent = 1.0 - (currentSize * 1.0 / getTotalSpace(dir));
+				long totalSize = slots[i] < 0 ? getTotalSpace(dir) : PriorStoreSpaceService.totalSpace(spaces, slots[i]);
+				double curPercent = 1.0 - (currentSize * 1.0 / totalSize);
 				if (curPercent >= threshold)
 					continue;
 			}
@@ -83,6 +195,20 @@ public class PriorStoreDistributor extends AbstractDistributor {
 		return directory;
 	}
 
+	/**
+	 * @return false if the delegate is in a tier and over the max threshold of the tier
+	 */
+	private boolean delegateHasRoom(int i) {
+		if (delegateTiers[i] < 0)
+			return true;
+		Directory dir = delegates[i];
+		int slot = delegateSlots[i];
+		long[] spaces = spaceService.snapshot();
+		long usable = slot < 0 ? getUsableSpace(dir) : PriorStoreSpaceService.usableSpace(spaces, slot);
+		long total = slot < 0 ? getTotalSpace(dir) : PriorStoreSpaceService.totalSpace(spaces, slot);
+		return total <= 0 || 1.0 - (usable * 1.0 / total) < tierMaxThresholds[delegateTiers[i]];
+	}
+
 	protected long getTotalSpace(Directory directory) {
 		final FSDirectory leaf = DirectoryUtils.getLeaf(directory, FSDirectory.class);
 		if (leaf != null) {
@@ -92,6 +218,130 @@ public class PriorStoreDistributor extends AbstractDistributor {
 		}
 	}
 
+	/**
+	 * The distributor isn't told the {@link IOContext} of the file it chooses a directory for, but merges run on their
+	 * own threads and create all their files there, so the estimated merge size is passed through a thread local.
+	 */
+	static class MergeSizeListener implements MergeSchedulerProvider.Listener {
+
+		@Override
+		public void beforeMerge(OnGoingMerge merge) {
+			long size = 0;
+			for (SegmentCommitInfo info : merge.getMergedSegments()) {
+				try {
+					int maxDoc = info.info.getDocCount();
+					double liveRatio = maxDoc <= 0 ? 1.0 : 1.0 - ((double) info.getDelCount() / maxDoc);
+					size += (long) (info.sizeInBytes() * liveRatio);
+				} catch (IOException e) {
+					// ignore, the merge size is just an estimation
+				}
+			}
+			currentMergeSize.set(size);
+		}
+
+		@Override
+		public void afterMerge(OnGoingMerge merge) {
+			currentMergeSize.remove();
+		}
+	}
+
+	/**
+	 * reports the length of every file written or deleted to the shard's usage
+	 */
+	static class UsageTrackingDirectory extends FilterDirectory {
+
+		private final ShardUsageIndex.ShardUsage usage;
+		/**
+		 * slot of the node path in {@link ShardUsageIndex}
+		 */
+		private final int slot;
+
+		UsageTrackingDirectory(Directory in, ShardUsageIndex.ShardUsage usage, int slot) {
+			super(in);
+			this.usage = usage;
+			this.slot = slot;
+		}
+
+		@Override
+		public IndexOutput createOutput(String name, IOContext context) throws IOException {
+			IndexOutput output = super.createOutput(name, context);
+			usage.opened(slot, name);
+			return new UsageTrackingOutput(name, output);
+		}
+
+		@Override
+		public void deleteFile(String name) throws IOException {
+			long length;
+			try {
+				length = in.fileLength(name);
+			} catch (IOException e) {
+				length = 0; // already gone
+			}
+			super.deleteFile(name);
+			usage.deleted(slot, length);
+		}
+
+		private class UsageTrackingOutput extends IndexOutput {
+			private final String name;
+			private final IndexOutput out;
+			private boolean closed;
+
+			UsageTrackingOutput(String name, IndexOutput out) {
+				this.name = name;
+				this.out = out;
+			}
+
+			@Override
+			public void writeByte(byte b) throws IOException {
+				out.writeByte(b);
+			}
+
+			@Override
+			public void writeBytes(byte[] b, int offset, int length) throws IOException {
+				out.writeBytes(b, offset, length);
+			}
+
+			@Override
+			@Deprecated
+			public void flush() throws IOException {
+				out.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					out.close();
+				} finally {
+					usage.closed(slot, name, out.getFilePointer());
+				}
+			}
+
+			@Override
+			public long getFilePointer() {
+				return out.getFilePointer();
+			}
+
+			@Override
+			public long getChecksum() throws IOException {
+				return out.getChecksum();
+			}
+
+			@Override
+			@Deprecated
+			public long length() throws IOException {
+				return out.length();
+			}
+
+			@Override
+			public String toString() {
+				return out.toString();
+			}
+		}
+	}
+
 	@Override
 	protected String name() {
 		return "prior_store";
@@ -7,7 +7,11 @@ import org.elasticsearch.env.NodeEnvironment;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * @author colin.ke keqinwu@163.com
@@ -15,34 +19,149 @@ import java.util.List;
 public class PriorStoreEnvironment {
 
 	private final Settings settings;
+	private final NodeEnvironment.NodePath[] nodePaths;
+	/**
+	 * fastest first, the paths in no tier are the bottom tier
+	 */
+	private final StorageTier[] tiers;
+	/**
+	 * the paths of all the tiers
+	 */
 	private final NodeEnvironment.NodePath[] priorStorePaths;
+	/**
+	 * measured by {@link PriorStoreCalibrator}, indexed like {@link #getNodePaths()}, null until measured
+	 */
+	private final AtomicReferenceArray<PathCalibration> calibrations;
 
 	@Inject
 	public PriorStoreEnvironment(NodeEnvironment nodeEnv, Settings settings) {
-		NodeEnvironment.NodePath[] nodePaths = nodeEnv.nodePaths();
-		String[] priorStoreSetting = settings.getAsArray(Plugin.PRIOR_PATH_KEY);
+		this.settings = settings;
+		nodePaths = nodeEnv.nodePaths();
+		String[] tierNames = settings.getAsArray(PriorStoreModule.TIERS);
+		List<StorageTier> tierList = new ArrayList<>();
+		Set<NodeEnvironment.NodePath> assigned = new HashSet<>();
+		if (tierNames.length == 0) {
+			NodeEnvironment.NodePath[] paths = resolvePaths(settings.getAsArray(Plugin.PRIOR_PATH_KEY), assigned);
+			if (paths.length > 0)
+				tierList.add(new StorageTier("prior", 0, paths, getPriorStoreMaxThreshold(), getMigrationThreshold(), PriorStoreModule.loadMgPolicy(settings)));
+		} else {
+			for (String name : tierNames) {
+				Settings tierSettings = settings.getByPrefix(PriorStoreModule.TIER_PREFIX + name + ".");
+				NodeEnvironment.NodePath[] paths = resolvePaths(tierSettings.getAsArray("path"), assigned);
+				if (paths.length == 0)
+					continue;
+				tierList.add(new StorageTier(name, tierList.size(), paths,
+						tierSettings.getAsDouble("max.threshold", getPriorStoreMaxThreshold()),
+						tierSettings.getAsDouble("migration.threshold", getMigrationThreshold()),
+						tierSettings.getAsClass("migration.policy", PriorStoreModule.loadMgPolicy(settings))));
+			}
+		}
+		tiers = tierList.toArray(new StorageTier[tierList.size()]);
 		List<NodeEnvironment.NodePath> tmp = new ArrayList<>();
-		for (String psPathStr : priorStoreSetting) {
-			Path psPath = Paths.get(psPathStr);
+		for (StorageTier tier : tiers) {
+			tmp.addAll(Arrays.asList(tier.getPaths()));
+		}
+		priorStorePaths = tmp.toArray(new NodeEnvironment.NodePath[tmp.size()]);
+		calibrations = new AtomicReferenceArray<>(nodePaths.length);
+	}
+
+	/**
+	 * @return the node paths under the given paths, a node path belongs to the first tier listing it
+	 */
+	private NodeEnvironment.NodePath[] resolvePaths(String[] pathStrs, Set<NodeEnvironment.NodePath> assigned) {
+		List<NodeEnvironment.NodePath> tmp = new ArrayList<>();
+		for (String pathStr : pathStrs) {
+			Path path = Paths.get(pathStr);
 			for (NodeEnvironment.NodePath nodePath : nodePaths) {
-				if (nodePath.path.startsWith(psPath)) {
-					tmp.add(nodePath);
+				if (nodePath.path.startsWith(path)) {
+					if (assigned.add(nodePath))
+						tmp.add(nodePath);
 					break;
 				}
 			}
 		}
-		priorStorePaths = tmp.toArray(new NodeEnvironment.NodePath[tmp.size()]);
-		this.settings = settings;
+		return tmp.toArray(new NodeEnvironment.NodePath[tmp.size()]);
+	}
+
+	/**
+	 * @return the configured tiers fastest first, without the bottom one
+	 */
+	public StorageTier[] getTiers() {
+		return tiers;
+	}
+
+	/**
+	 * @return the tier of the node path, null if it's in the bottom tier
+	 */
+	public StorageTier tierOf(NodeEnvironment.NodePath nodePath) {
+		for (StorageTier tier : tiers) {
+			if (tier.contains(nodePath))
+				return tier;
+		}
+		return null;
 	}
 
+	/**
+	 * @return the paths shards are migrated to from the tier, i.e. the next tier down, or the bottom tier
+	 */
+	public List<NodeEnvironment.NodePath> lowerPaths(StorageTier tier) {
+		List<NodeEnvironment.NodePath> paths = new ArrayList<>();
+		if (tier.getLevel() + 1 < tiers.length) {
+			paths.addAll(Arrays.asList(tiers[tier.getLevel() + 1].getPaths()));
+		} else {
+			for (NodeEnvironment.NodePath nodePath : nodePaths) {
+				if (null == tierOf(nodePath))
+					paths.add(nodePath);
+			}
+		}
+		return paths;
+	}
+
+	public NodeEnvironment.NodePath[] getNodePaths() {
+		return nodePaths;
+	}
+
+	/**
+	 * @return the paths of all the tiers
+	 */
 	public NodeEnvironment.NodePath[] getPriorStorePaths() {
 		return priorStorePaths;
 	}
 
+	/**
+	 * @return the last calibration of the node path, null if it hasn't been measured
+	 */
+	public PathCalibration getCalibration(NodeEnvironment.NodePath nodePath) {
+		for (int i = 0; i < nodePaths.length; ++i) {
+			if (nodePaths[i] == nodePath)
+				return calibrations.get(i);
+		}
+		return null;
+	}
+
+	public PathCalibration getCalibration(int slot) {
+		return calibrations.get(slot);
+	}
+
+	void setCalibration(int slot, PathCalibration calibration) {
+		calibrations.set(slot, calibration);
+	}
+
 	public double getPriorStoreMaxThreshold() {
 		return settings.getAsDouble(PriorStoreModule.PRIOR_STORE_MAX_THRESHOLD, PriorStoreModule.DEFAULT_PRIOR_STORE_MAX_THRESHOLD);
 	}
 
+	/**
+	 * @return merges whose estimated output is larger than this are written to non-prior paths directly, -1 if disabled
+	 */
+	public long getLargeMergeSize() {
+		return settings.getAsBytesSize(PriorStoreModule.LARGE_MERGE_SIZE, PriorStoreModule.DEFAULT_LARGE_MERGE_SIZE).bytes();
+	}
+
+	public boolean isSegmentAffinity() {
+		return settings.getAsBoolean(PriorStoreModule.SEGMENT_AFFINITY, PriorStoreModule.DEFAULT_SEGMENT_AFFINITY);
+	}
+
 	public double getMigrationThreshold() {
 		return settings.getAsDouble(PriorStoreModule.MIGRATION_THRESHOLD, PriorStoreModule.DEFAULT_MIGRATION_THRESHOLD);
 	}
@@ -0,0 +1,935 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.store.LockObtainFailedException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.flush.FlushRequest;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeRequest;
+import org.elasticsearch.cluster.routing.LocalShardStateAction;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.env.ShardLock;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.store.support.AbstractIndexStore;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.flush.ShardsSyncedFlushResult;
+import org.elasticsearch.indices.flush.SyncedFlushService;
+import org.elasticsearch.indices.recovery.RecoveryState;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the shard migrations planned by {@link PriorStoreMigrationScheduler}. Every shard is a {@link MigrationJob}:
+ * <pre>
+ *     PLANNED -> MERGING -> FLUSHING -> UNASSIGNING -> COPYING -> STARTING -> DONE
+ *                                           |             |          |
+ *                                           +-------------+----------+-> PLANNED(retry with backoff) / FAILED
+ * </pre>
+ * With {@link #MIGRATION_MERGE_ENABLED}, a shard moved down to a slower tier is force merged to
+ * {@link #MIGRATION_MERGE_MAX_NUM_SEGMENTS} first, while it's still on the faster device, if it hasn't been written for
+ * {@link #MIGRATION_MERGE_INACTIVE_TIME}(so it's merged once) and the node isn't busy(see {@link MigrationThrottle}).
+ * The merge holds the slot of the shard like the rest of the migration.
+ * The shards are flushed before being unassigned, with a synced flush if {@link #MIGRATION_SYNCED_FLUSH}, so the moved
+ * copy has an empty translog and the same commit as the other copies, and recovers from the local files when it's
+ * reopened. How much the recovery reused is logged and counted in {@link PriorStoreStats}.
+ * Jobs wait in a bounded queue and are unassigned and started in waves of {@link #MIGRATION_BATCH_SIZE}, with at most
+ * {@link #MIGRATION_CONCURRENT} shards in flight, and at most {@link #MIGRATION_CONCURRENT_PER_SOURCE} /
+ * {@link #MIGRATION_CONCURRENT_PER_TARGET} of them reading / writing the same device. A job may have several eligible
+ * target paths, one of them is chosen when the job is dispatched, see {@link #chooseTarget}. Nothing blocks: transport
+ * callbacks only hand over to the dedicated migration executor, which does all the disk I/O.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreMigrationEngine {
+
+	public static final String MIGRATION_CONCURRENT = "store.prior.migration.concurrent";
+	public static final int DEFAULT_MIGRATION_CONCURRENT = 5;
+	/**
+	 * max count of shards which are unassigned and started in one request, no more than {@link #MIGRATION_CONCURRENT}
+	 */
+	public static final String MIGRATION_BATCH_SIZE = "store.prior.migration.batch_size";
+	public static final int DEFAULT_MIGRATION_BATCH_SIZE = 5;
+	/**
+	 * max count of shards being migrated from one device
+	 */
+	public static final String MIGRATION_CONCURRENT_PER_SOURCE = "store.prior.migration.concurrent_per_source_device";
+	public static final int DEFAULT_MIGRATION_CONCURRENT_PER_SOURCE = 4;
+	/**
+	 * max count of shards being migrated to one device, spindles do best with a single sequential writer
+	 */
+	public static final String MIGRATION_CONCURRENT_PER_TARGET = "store.prior.migration.concurrent_per_target_device";
+	public static final int DEFAULT_MIGRATION_CONCURRENT_PER_TARGET = 1;
+	/**
+	 * max count of jobs waiting to be run, jobs submitted when the queue is full are dropped
+	 */
+	public static final String MIGRATION_QUEUE_SIZE = "store.prior.migration.queue_size";
+	public static final int DEFAULT_MIGRATION_QUEUE_SIZE = 1000;
+	public static final String MIGRATION_MAX_RETRIES = "store.prior.migration.max_retries";
+	public static final int DEFAULT_MIGRATION_MAX_RETRIES = 3;
+	/**
+	 * delay before the first retry of a job, doubled on every further retry
+	 */
+	public static final String MIGRATION_RETRY_BACKOFF = "store.prior.migration.retry_backoff";
+	public static final TimeValue DEFAULT_MIGRATION_RETRY_BACKOFF = TimeValue.timeValueMinutes(1);
+	/**
+	 * a shard moved in either direction won't be moved again within this
+	 */
+	public static final String MIGRATION_COOLDOWN = "store.prior.migration.cooldown";
+	public static final TimeValue DEFAULT_MIGRATION_COOLDOWN = TimeValue.timeValueHours(24);
+	/**
+	 * whether to seal the shards with a synced flush before unassigning them, a normal flush is done if it's disabled or fails
+	 */
+	public static final String MIGRATION_SYNCED_FLUSH = "store.prior.migration.synced_flush";
+	public static final boolean DEFAULT_MIGRATION_SYNCED_FLUSH = true;
+
+	/**
+	 * force merge the shards moved down to a slower tier before copying them, fewer segments means fewer seeks and open
+	 * files on spindles
+	 */
+	public static final String MIGRATION_MERGE_ENABLED = "store.prior.migration.merge.enabled";
+	public static final String MIGRATION_MERGE_MAX_NUM_SEGMENTS = "store.prior.migration.merge.max_num_segments";
+	public static final int DEFAULT_MIGRATION_MERGE_MAX_NUM_SEGMENTS = 1;
+	/**
+	 * only shards not written for this long are merged, a shard still being written would need merging again
+	 */
+	public static final String MIGRATION_MERGE_INACTIVE_TIME = "store.prior.migration.merge.inactive_time";
+	public static final TimeValue DEFAULT_MIGRATION_MERGE_INACTIVE_TIME = TimeValue.timeValueHours(1);
+
+	public enum State {
+		PLANNED, MERGING, FLUSHING, UNASSIGNING, COPYING, STARTING, DONE, FAILED
+	}
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final ThreadPool threadPool;
+	private final NodeEnvironment nodeEnv;
+	private final ShardUsageIndex usageIndex;
+	private final PriorStoreTransferEngine transferEngine;
+	private final PriorStoreStats stats;
+	private final LocalShardStateAction shardStateAction;
+	private final PriorStoreSpaceService spaceService;
+	private final PriorStoreEnvironment psEnv;
+	private final IndicesService indicesService;
+	private final SyncedFlushService syncedFlushService;
+	private final ShardHeatService heatService;
+
+	private final ExecutorService executor;
+	private final BlockingQueue<MigrationJob> queue;
+	/**
+	 * unfinished jobs, including the ones waiting for a retry
+	 */
+	private final ConcurrentMap<ShardId, MigrationJob> jobs = ConcurrentCollections.newConcurrentMap();
+	/**
+	 * shard -> when it was moved last time
+	 */
+	private final ConcurrentMap<ShardId, Long> lastMoved = ConcurrentCollections.newConcurrentMap();
+	/**
+	 * moved shards whose recovery hasn't finished yet
+	 */
+	private final ConcurrentMap<ShardId, MigrationJob> recovering = ConcurrentCollections.newConcurrentMap();
+	private final Semaphore migrating;
+	private final int concurrent;
+	/**
+	 * shards in flight are kept under this, lowered by {@link MigrationThrottle} while the node is busy
+	 */
+	private volatile int concurrencyLimit;
+	private final int batchSize;
+	private final int concurrentPerSource;
+	private final int concurrentPerTarget;
+	/**
+	 * load of the devices by the dispatched jobs, guarded by this
+	 */
+	private final Map<FileStore, DeviceLoad> deviceLoads = new HashMap<>();
+	private final int maxRetries;
+	private final long retryBackoffMillis;
+	private final long cooldownMillis;
+	private final long leaseTimeoutMillis;
+	private final boolean syncedFlush;
+	private final boolean mergeEnabled;
+	private final int mergeMaxNumSegments;
+	private final long mergeInactiveMillis;
+
+	@Inject
+	public PriorStoreMigrationEngine(Settings settings, ThreadPool threadPool, NodeEnvironment nodeEnv, ShardUsageIndex usageIndex,
+									 PriorStoreTransferEngine transferEngine, PriorStoreStats stats, LocalShardStateAction shardStateAction,
+									 PriorStoreSpaceService spaceService, PriorStoreEnvironment psEnv, IndicesService indicesService,
+									 SyncedFlushService syncedFlushService, ShardHeatService heatService) {
+		this.threadPool = threadPool;
+		this.nodeEnv = nodeEnv;
+		this.usageIndex = usageIndex;
+		this.transferEngine = transferEngine;
+		this.stats = stats;
+		this.shardStateAction = shardStateAction;
+		this.spaceService = spaceService;
+		this.psEnv = psEnv;
+		this.indicesService = indicesService;
+		this.syncedFlushService = syncedFlushService;
+		this.heatService = heatService;
+
+		concurrent = Math.max(1, settings.getAsInt(MIGRATION_CONCURRENT, DEFAULT_MIGRATION_CONCURRENT));
+		concurrencyLimit = concurrent;
+		migrating = new Semaphore(concurrent);
+		batchSize = Math.max(1, Math.min(concurrent, settings.getAsInt(MIGRATION_BATCH_SIZE, DEFAULT_MIGRATION_BATCH_SIZE)));
+		concurrentPerSource = Math.max(1, settings.getAsInt(MIGRATION_CONCURRENT_PER_SOURCE, DEFAULT_MIGRATION_CONCURRENT_PER_SOURCE));
+		concurrentPerTarget = Math.max(1, settings.getAsInt(MIGRATION_CONCURRENT_PER_TARGET, DEFAULT_MIGRATION_CONCURRENT_PER_TARGET));
+		queue = new ArrayBlockingQueue<>(Math.max(1, settings.getAsInt(MIGRATION_QUEUE_SIZE, DEFAULT_MIGRATION_QUEUE_SIZE)));
+		maxRetries = settings.getAsInt(MIGRATION_MAX_RETRIES, DEFAULT_MIGRATION_MAX_RETRIES);
+		retryBackoffMillis = settings.getAsTime(MIGRATION_RETRY_BACKOFF, DEFAULT_MIGRATION_RETRY_BACKOFF).millis();
+		cooldownMillis = settings.getAsTime(MIGRATION_COOLDOWN, DEFAULT_MIGRATION_COOLDOWN).millis();
+		leaseTimeoutMillis = settings.getAsTime(LocalShardStateAction.MIGRATION_LEASE_TIMEOUT, LocalShardStateAction.DEFAULT_MIGRATION_LEASE_TIMEOUT).millis();
+		syncedFlush = settings.getAsBoolean(MIGRATION_SYNCED_FLUSH, DEFAULT_MIGRATION_SYNCED_FLUSH);
+		mergeEnabled = settings.getAsBoolean(MIGRATION_MERGE_ENABLED, false);
+		mergeMaxNumSegments = Math.max(1, settings.getAsInt(MIGRATION_MERGE_MAX_NUM_SEGMENTS, DEFAULT_MIGRATION_MERGE_MAX_NUM_SEGMENTS));
+		mergeInactiveMillis = settings.getAsTime(MIGRATION_MERGE_INACTIVE_TIME, DEFAULT_MIGRATION_MERGE_INACTIVE_TIME).millis();
+		// one thread per shard in flight, plus one for the rounds of the scheduler
+		executor = EsExecutors.newScaling(1, concurrent + 1, 5, TimeUnit.MINUTES, EsExecutors.daemonThreadFactory(settings, "prior_store_migration"));
+		indicesService.indicesLifecycle().addListener(new IndicesLifecycle.Listener() {
+			@Override
+			public void afterIndexShardPostRecovery(IndexShard indexShard) {
+				MigrationJob job = recovering.remove(indexShard.shardId());
+				if (null != job)
+					onShardRecovered(job, indexShard.recoveryState());
+			}
+
+			@Override
+			public void afterIndexShardDeleted(ShardId shardId, Settings indexSettings) {
+				// allocated to another node
+				recovering.remove(shardId);
+			}
+		});
+	}
+
+	/**
+	 * run a task on the migration executor
+	 */
+	public void execute(Runnable runnable) {
+		executor.execute(runnable);
+	}
+
+	/**
+	 * stop taking tasks, the shards in flight fail and are left to the journals
+	 */
+	void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param targets the paths the shard can be moved to, one of them will be chosen when the job is run
+	 * @return false if the shard is being migrated already or the queue is full
+	 */
+	public boolean submit(ShardId shardId, NodeEnvironment.NodePath source, NodeEnvironment.NodePath... targets) {
+		MigrationJob job = new MigrationJob(shardId, source, targets, usageIndex.shardSize(shardId, source));
+		if (null != jobs.putIfAbsent(shardId, job))
+			return false;
+		if (!queue.offer(job)) {
+			jobs.remove(shardId, job);
+			logger.warn("migration queue is full, drop {}", job);
+			return false;
+		}
+		stats.queuedShards.inc();
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * @return true if any unfinished job moves shards from the given path
+	 */
+	public boolean hasJobsFrom(NodeEnvironment.NodePath source) {
+		for (MigrationJob job : jobs.values()) {
+			if (job.source == source)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the shard is being migrated, or has been moved within {@link #MIGRATION_COOLDOWN}
+	 */
+	public boolean isMovingOrCooling(ShardId shardId) {
+		if (jobs.containsKey(shardId))
+			return true;
+		Long moved = lastMoved.get(shardId);
+		if (null == moved)
+			return false;
+		if (System.currentTimeMillis() - moved < cooldownMillis)
+			return true;
+		lastMoved.remove(shardId, moved);
+		return false;
+	}
+
+	/**
+	 * @return true if the shard is merged before being migrated, and hasn't been written for {@link #MIGRATION_MERGE_INACTIVE_TIME}
+	 */
+	public boolean isMergeable(ShardId shardId) {
+		return mergeEnabled && heatService.millisSinceLastWrite(shardId) >= mergeInactiveMillis;
+	}
+
+	public boolean mergeEnabled() {
+		return mergeEnabled;
+	}
+
+	public TimeValue cooldown() {
+		return TimeValue.timeValueMillis(cooldownMillis);
+	}
+
+	/**
+	 * @return {@link #MIGRATION_CONCURRENT}
+	 */
+	public int maxConcurrency() {
+		return concurrent;
+	}
+
+	public int concurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Limit the shards in flight, between 1 and {@link #MIGRATION_CONCURRENT}. Lowering it doesn't stop the shards
+	 * already in flight, no more are started until they drop under the limit.
+	 */
+	public void setConcurrencyLimit(int limit) {
+		limit = Math.max(1, Math.min(concurrent, limit));
+		int old = concurrencyLimit;
+		concurrencyLimit = limit;
+		if (limit > old)
+			dispatch();
+	}
+
+	/**
+	 * @return count of shards in flight
+	 */
+	public int activeCount() {
+		return concurrent - migrating.availablePermits();
+	}
+
+	/**
+	 * start as many waves as the free slots allow, never blocks. Jobs whose devices are busy are skipped, so a busy
+	 * disk doesn't hold back the jobs of the others.
+	 */
+	private synchronized void dispatch() {
+		while (!queue.isEmpty()) {
+			int permits = Math.min(Math.min(batchSize, migrating.availablePermits()), concurrencyLimit - activeCount());
+			if (permits <= 0 || !migrating.tryAcquire(permits))
+				return;
+			List<MigrationJob> wave = new ArrayList<>(permits);
+			long[] spaces = spaceService.snapshot();
+			for (Iterator<MigrationJob> it = queue.iterator(); it.hasNext() && wave.size() < permits; ) {
+				MigrationJob job = it.next();
+				if (load(job.source).sources >= concurrentPerSource)
+					continue;
+				NodeEnvironment.NodePath target;
+				if (null != job.staged && hasRoom(job, job.staged, spaces)) {
+					// wait for the target which has the files of the last attempt
+					if (load(job.staged).targets >= concurrentPerTarget)
+						continue;
+					target = job.staged;
+				} else {
+					target = chooseTarget(job, spaces);
+					if (null == target) {
+						if (!fitsAnyTarget(job, spaces)) {
+							it.remove();
+							stats.queuedShards.dec();
+							job.failure = new IllegalStateException("no target path has [" + job.size + "] bytes usable");
+							fail(job);
+						}
+						continue;
+					}
+					if (null != job.staged)
+						discardStaging(job);
+				}
+				it.remove();
+				job.target = target;
+				load(job.source).sources++;
+				DeviceLoad targetLoad = load(target);
+				targetLoad.targets++;
+				targetLoad.bytes += job.size;
+				wave.add(job);
+			}
+			if (wave.size() < permits)
+				migrating.release(permits - wave.size());
+			if (wave.isEmpty())
+				return;
+			stats.queuedShards.dec(wave.size());
+			stats.activeShards.inc(wave.size());
+			merge(wave.toArray(new MigrationJob[wave.size()]));
+		}
+	}
+
+	/**
+	 * choose the target for a job among its eligible paths: if they are calibrated, the device which would finish
+	 * writing the bytes in flight and this shard first, otherwise the devices with fewer shards being written come
+	 * first. Ties go to the one with the most usable space after the bytes in flight and this shard.
+	 *
+	 * @return null if all the target devices are busy or don't have enough space
+	 */
+	private NodeEnvironment.NodePath chooseTarget(MigrationJob job, long[] spaces) {
+		NodeEnvironment.NodePath target = null;
+		int targetJobs = Integer.MAX_VALUE;
+		long targetSpace = Long.MIN_VALUE;
+		double targetEta = -1;
+		for (NodeEnvironment.NodePath path : job.targets) {
+			if (path.fileStore.equals(job.source.fileStore))
+				continue;
+			DeviceLoad load = load(path);
+			if (load.targets >= concurrentPerTarget)
+				continue;
+			int slot = spaceService.slotOf(path);
+			long usable = slot < 0 ? 0 : PriorStoreSpaceService.usableSpace(spaces, slot);
+			long space = usable - load.bytes - job.size;
+			if (space < 0)
+				continue;
+			PathCalibration calibration = psEnv.getCalibration(path);
+			double eta = null == calibration || calibration.getWriteBytesPerSec() <= 0 ? -1 : (load.bytes + job.size) * 1.0 / calibration.getWriteBytesPerSec();
+			boolean better;
+			if (null == target)
+				better = true;
+			else if (eta >= 0 && targetEta >= 0)
+				better = eta < targetEta || (eta == targetEta && space > targetSpace);
+			else
+				better = load.targets < targetJobs || (load.targets == targetJobs && space > targetSpace);
+			if (better) {
+				target = path;
+				targetJobs = load.targets;
+				targetSpace = space;
+				targetEta = eta;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * @return whether the shard fits any of its targets once they are idle
+	 */
+	private boolean fitsAnyTarget(MigrationJob job, long[] spaces) {
+		for (NodeEnvironment.NodePath path : job.targets) {
+			if (hasRoom(job, path, spaces))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the shard fits the path once it's idle
+	 */
+	private boolean hasRoom(MigrationJob job, NodeEnvironment.NodePath path, long[] spaces) {
+		int slot = spaceService.slotOf(path);
+		return slot >= 0 && !path.fileStore.equals(job.source.fileStore)
+				&& PriorStoreSpaceService.usableSpace(spaces, slot) - load(path).bytes >= job.size;
+	}
+
+	/**
+	 * the job goes to another target than its last attempt or gives up, delete the files staged on the old one in the
+	 * background
+	 */
+	private void discardStaging(final MigrationJob job) {
+		final NodeEnvironment.NodePath staged = job.staged;
+		job.staged = null;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				String index = job.shardId.index().name();
+				transferEngine.discardStaging(job.shardId, staged.indicesPath.resolve(index).resolve(String.valueOf(job.shardId.id())));
+			}
+		});
+	}
+
+	private DeviceLoad load(NodeEnvironment.NodePath path) {
+		DeviceLoad load = deviceLoads.get(path.fileStore);
+		if (null == load) {
+			load = new DeviceLoad();
+			deviceLoads.put(path.fileStore, load);
+		}
+		return load;
+	}
+
+	private synchronized void release(MigrationJob[] wave) {
+		for (MigrationJob job : wave) {
+			load(job.source).sources--;
+			DeviceLoad targetLoad = load(job.target);
+			targetLoad.targets--;
+			targetLoad.bytes -= job.size;
+		}
+		migrating.release(wave.length);
+	}
+
+	/**
+	 * force merge the shards of the wave which are worth it on the optimize thread pool, so the migration threads
+	 * aren't blocked meanwhile, and then flush them. A shard which can't be merged is migrated as it is.
+	 */
+	private void merge(final MigrationJob[] wave) {
+		// the throttle has backed off, don't add merges to the load
+		if (!mergeEnabled || concurrencyLimit < concurrent) {
+			flush(wave);
+			return;
+		}
+		final long[] spaces = spaceService.snapshot();
+		final AtomicInteger remaining = new AtomicInteger(wave.length);
+		for (final MigrationJob job : wave) {
+			job.state = State.MERGING;
+			Runnable merge = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mergeLocally(job, spaces);
+					} finally {
+						if (remaining.decrementAndGet() == 0)
+							flush(wave);
+					}
+				}
+			};
+			if (!isDemotion(job) || !isMergeable(job.shardId)) {
+				merge.run();
+				continue;
+			}
+			try {
+				threadPool.executor(ThreadPool.Names.OPTIMIZE).execute(merge);
+			} catch (EsRejectedExecutionException e) {
+				logger.debug("failed to schedule the merge of {}", e, job.shardId);
+				if (remaining.decrementAndGet() == 0)
+					flush(wave);
+			}
+		}
+	}
+
+	private void mergeLocally(MigrationJob job, long[] spaces) {
+		if (!isDemotion(job) || !isMergeable(job.shardId))
+			return;
+		IndexService indexService = indicesService.indexService(job.shardId.index().name());
+		IndexShard indexShard = null == indexService ? null : indexService.shard(job.shardId.id());
+		if (null == indexShard)
+			return;
+		// the merged segments take up to the size of the shard until the old ones are deleted
+		int slot = spaceService.slotOf(job.source);
+		if (slot < 0 || PriorStoreSpaceService.usableSpace(spaces, slot) < job.size) {
+			logger.debug("not enough space on {} to merge {}", job.source, job.shardId);
+			return;
+		}
+		try {
+			long segments = indexShard.segmentStats().getCount();
+			if (segments <= mergeMaxNumSegments)
+				return;
+			long start = System.currentTimeMillis();
+			indexShard.optimize(new OptimizeRequest().maxNumSegments(mergeMaxNumSegments).flush(false));
+			logger.info("{} merged from [{}] to [{}] segments before migration, took [{}]", job.shardId, segments,
+					indexShard.segmentStats().getCount(), TimeValue.timeValueMillis(System.currentTimeMillis() - start));
+		} catch (Exception e) {
+			logger.warn("failed to merge {} before migrating it", e, job.shardId);
+		}
+	}
+
+	/**
+	 * @return whether the job moves the shard to a slower tier
+	 */
+	private boolean isDemotion(MigrationJob job) {
+		StorageTier sourceTier = psEnv.tierOf(job.source), targetTier = psEnv.tierOf(job.target);
+		return null != sourceTier && (null == targetTier || targetTier.getLevel() > sourceTier.getLevel());
+	}
+
+	/**
+	 * flush the shards of the wave and then unassign them, a shard which can't be flushed is unassigned anyway,
+	 * it will just recover more from the primary.
+	 */
+	private void flush(final MigrationJob[] wave) {
+		final AtomicInteger remaining = new AtomicInteger(wave.length);
+		for (final MigrationJob job : wave) {
+			job.state = State.FLUSHING;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!syncedFlush) {
+						flushed(job, false);
+						return;
+					}
+					syncedFlushService.attemptSyncedFlush(job.shardId, new ActionListener<ShardsSyncedFlushResult>() {
+						@Override
+						public void onResponse(ShardsSyncedFlushResult result) {
+							if (result.failed())
+								logger.debug("synced flush of {} failed: {}", job.shardId, result.failureReason());
+							else if (result.successfulShards() < result.totalShards())
+								logger.debug("synced flush of {} succeeded on {}/{} copies", job.shardId, result.successfulShards(), result.totalShards());
+							handOver(!result.failed());
+						}
+
+						@Override
+						public void onFailure(Throwable e) {
+							logger.debug("failed to synced flush {}", e, job.shardId);
+							handOver(false);
+						}
+
+						private void handOver(final boolean synced) {
+							executor.execute(new Runnable() {
+								@Override
+								public void run() {
+									flushed(job, synced);
+								}
+							});
+						}
+					});
+				}
+
+				private void flushed(MigrationJob job, boolean synced) {
+					if (!synced)
+						flushLocally(job.shardId);
+					if (remaining.decrementAndGet() == 0)
+						unassign(wave);
+				}
+			});
+		}
+	}
+
+	private void flushLocally(ShardId shardId) {
+		IndexService indexService = indicesService.indexService(shardId.index().name());
+		IndexShard indexShard = null == indexService ? null : indexService.shard(shardId.id());
+		if (null == indexShard)
+			return;
+		try {
+			indexShard.flush(new FlushRequest().force(true).waitIfOngoing(true));
+		} catch (Exception e) {
+			logger.warn("failed to flush {} before migrating it", e, shardId);
+		}
+	}
+
+	private void onShardRecovered(MigrationJob job, RecoveryState recoveryState) {
+		if (null == recoveryState)
+			return;
+		RecoveryState.Index index = recoveryState.getIndex();
+		stats.onShardRecovered(index.recoveredBytes(), index.reusedBytes());
+		logger.info("{} recovered after migration by {}, recovered [{}], reused [{}], translog ops [{}]", job.shardId,
+				recoveryState.getType(), new ByteSizeValue(index.recoveredBytes()), new ByteSizeValue(index.reusedBytes()),
+				recoveryState.getTranslog().recoveredOperations());
+	}
+
+	private void unassign(final MigrationJob[] wave) {
+		logger.info("migrating shards {}", Arrays.toString(wave));
+		for (MigrationJob job : wave) {
+			job.state = State.UNASSIGNING;
+			job.copied = false;
+		}
+		// 3. unassign the shards in src path(release shard lock)
+		shardStateAction.unassignShards(shardIds(wave), new LocalShardStateAction.Listener() {
+			@Override
+			public void onResponse(LocalShardStateAction.ShardStateResponse response) {
+				if (!response.ack()) {
+					onFailure(new IllegalStateException("remove shards action returned false ack"));
+					return;
+				}
+				final List<MigrationJob> unassigned = new ArrayList<>(wave.length);
+				final List<MigrationJob> rejected = new ArrayList<>();
+				for (MigrationJob job : wave) {
+					if (response.rejected().contains(job.shardId)) {
+						rejected.add(job);
+					} else {
+						job.deferredSince = 0;
+						unassigned.add(job);
+					}
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (!rejected.isEmpty())
+							defer(rejected.toArray(new MigrationJob[rejected.size()]));
+						if (!unassigned.isEmpty())
+							copy(unassigned.toArray(new MigrationJob[unassigned.size()]));
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(final Throwable e) {
+				logger.warn("failed to unassign the shards {}", e, Arrays.toString(wave));
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						for (MigrationJob job : wave) {
+							job.failure = e;
+						}
+						finish(wave, false);
+					}
+				});
+			}
+		});
+	}
+
+	private void copy(final MigrationJob[] wave) {
+		final long unassignedAt = System.currentTimeMillis();
+		final AtomicInteger remaining = new AtomicInteger(wave.length);
+		for (final MigrationJob job : wave) {
+			job.state = State.COPYING;
+			job.unassignedAt = unassignedAt;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.copied = migrateShard(job);
+						if (job.copied)
+							recovering.put(job.shardId, job);
+					} finally {
+						if (remaining.decrementAndGet() == 0)
+							start(wave, 0);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return true if the shard files have been moved
+	 */
+	@SuppressWarnings("try")
+	private boolean migrateShard(MigrationJob job) {
+		ShardId shardId = job.shardId;
+		PriorStoreTransferEngine.ShardTransfer transfer = null;
+		// 4. obtain shard lock
+		try (ShardLock shardLock = nodeEnv.shardLock(shardId, 60)) {
+			// do migrating shard file
+			String index = shardId.index().name();
+			Path srcShard = job.source.indicesPath.resolve(index).resolve(String.valueOf(shardId.id()));
+			Path dstShard = job.target.indicesPath.resolve(index).resolve(String.valueOf(shardId.id()));
+			transfer = transferEngine.newTransfer(shardId, job.source, job.target, dstShard);
+			Files.createDirectories(dstShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
+			Files.createDirectories(dstShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
+			transfer.addDir(srcShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME), dstShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
+			transfer.addDir(srcShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME), dstShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
+			long copyStart = System.currentTimeMillis();
+			transfer.copy();
+			transfer.finish();
+			stats.onShardMigrated(transfer.files(), transfer.bytes(), transfer.reusedBytes(), System.currentTimeMillis() - copyStart);
+			logger.info("{} moved {} files, copied [{}], reused [{}]", shardId, transfer.files(), new ByteSizeValue(transfer.bytes()), new ByteSizeValue(transfer.reusedBytes()));
+			usageIndex.markDirty(shardId);
+			return true;
+		} catch (LockObtainFailedException e) {
+			job.failure = e;
+			logger.error("failed to obtain shard lock [{}]", e, shardId);
+		} catch (Exception e) {
+			job.failure = e;
+			if (null != transfer)
+				transfer.abort();
+			logger.error("failed to migrate shard [{}]", e, shardId);
+		}
+		return false;
+	}
+
+	private void start(final MigrationJob[] wave, final int attempt) {
+		for (MigrationJob job : wave) {
+			job.state = State.STARTING;
+		}
+		// 5. re-assign the shards to local node
+		shardStateAction.startShards(shardIds(wave), new LocalShardStateAction.Listener() {
+			@Override
+			public void onResponse(LocalShardStateAction.ShardStateResponse response) {
+				if (!response.ack()) {
+					onFailure(new IllegalStateException("start shards action returned false ack"));
+					return;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						finish(wave, true);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				if (attempt >= maxRetries) {
+					// they are unassigned, the master will allocate them anyway
+					logger.error("failed to start shards {}, give up after {} retries", e, Arrays.toString(wave), attempt);
+					for (MigrationJob job : wave) {
+						job.failure = e;
+					}
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							finish(wave, true);
+						}
+					});
+					return;
+				}
+				// the shards are unassigned now, keep trying to get them back
+				logger.warn("failed to start shards {}, retrying", e, Arrays.toString(wave));
+				schedule(backoff(attempt + 1), new Runnable() {
+					@Override
+					public void run() {
+						start(wave, attempt + 1);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @param reassigned whether the shards have been unassigned and started again
+	 */
+	private void finish(MigrationJob[] wave, boolean reassigned) {
+		long now = System.currentTimeMillis();
+		stats.activeShards.dec(wave.length);
+		release(wave);
+		for (final MigrationJob job : wave) {
+			if (reassigned)
+				stats.onShardReassigned(now - job.unassignedAt);
+			if (job.copied) {
+				job.state = State.DONE;
+				jobs.remove(job.shardId, job);
+				lastMoved.put(job.shardId, now);
+				logger.info("successfully migrating shard[{}]", job.shardId);
+			} else if (++job.attempts <= maxRetries) {
+				TimeValue delay = backoff(job.attempts);
+				logger.info("restarted shard {} without migrating any data, retry in [{}]", job.shardId, delay);
+				retry(job, delay);
+			} else {
+				fail(job);
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * the master rejected unassigning the shards since other copies of them are out for migration, wait for them
+	 * without counting an attempt. A lease outlives no migration by more than
+	 * {@link LocalShardStateAction#MIGRATION_LEASE_TIMEOUT}, a shard still rejected after that, e.g. its index stays
+	 * yellow, is given up.
+	 */
+	private void defer(MigrationJob[] wave) {
+		stats.activeShards.dec(wave.length);
+		release(wave);
+		long now = System.currentTimeMillis();
+		TimeValue delay = backoff(1);
+		for (MigrationJob job : wave) {
+			if (0 == job.deferredSince)
+				job.deferredSince = now;
+			if (now - job.deferredSince > leaseTimeoutMillis) {
+				job.failure = new IllegalStateException("other copies of the shard have been out for migration for more than ["
+						+ TimeValue.timeValueMillis(leaseTimeoutMillis) + "]");
+				fail(job);
+				continue;
+			}
+			logger.debug("another copy of {} is being migrated, retry in [{}]", job.shardId, delay);
+			retry(job, delay);
+		}
+		dispatch();
+	}
+
+	private void retry(final MigrationJob job, TimeValue delay) {
+		job.state = State.PLANNED;
+		// it goes back to the same target while that has room, so the staged files are reused
+		if (null != job.target)
+			job.staged = job.target;
+		job.target = null;
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				if (queue.offer(job)) {
+					stats.queuedShards.inc();
+					dispatch();
+				} else {
+					fail(job);
+				}
+			}
+		});
+	}
+
+	private void fail(MigrationJob job) {
+		job.state = State.FAILED;
+		jobs.remove(job.shardId, job);
+		stats.failedShards.inc();
+		logger.error("failed to migrate shard {} after {} attempts", job.failure, job.shardId, job.attempts);
+		// a later round may choose another target, the staged files are of no use
+		if (null != job.target)
+			job.staged = job.target;
+		if (null != job.staged)
+			discardStaging(job);
+	}
+
+	private TimeValue backoff(int attempt) {
+		return TimeValue.timeValueMillis(retryBackoffMillis << Math.min(attempt - 1, 16));
+	}
+
+	private void schedule(TimeValue delay, final Runnable runnable) {
+		// the scheduler thread only hands it over
+		threadPool.schedule(delay, ThreadPool.Names.SAME, new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(runnable);
+			}
+		});
+	}
+
+	private static ShardId[] shardIds(MigrationJob[] wave) {
+		ShardId[] shardIds = new ShardId[wave.length];
+		for (int i = 0; i < wave.length; ++i) {
+			shardIds[i] = wave[i].shardId;
+		}
+		return shardIds;
+	}
+
+	private static class DeviceLoad {
+		int sources;
+		int targets;
+		/**
+		 * bytes of the shards being written to the device
+		 */
+		long bytes;
+	}
+
+	public static class MigrationJob {
+		final ShardId shardId;
+		final NodeEnvironment.NodePath source;
+		final NodeEnvironment.NodePath[] targets;
+		final long size;
+		volatile NodeEnvironment.NodePath target;
+		/**
+		 * the target of the last attempt, the files staged there are deleted if the job goes elsewhere
+		 */
+		volatile NodeEnvironment.NodePath staged;
+		volatile State state = State.PLANNED;
+		volatile int attempts;
+		volatile boolean copied;
+		volatile long unassignedAt;
+		/**
+		 * when the master first rejected unassigning the shard in a row, 0 if it didn't
+		 */
+		volatile long deferredSince;
+		volatile Throwable failure;
+
+		MigrationJob(ShardId shardId, NodeEnvironment.NodePath source, NodeEnvironment.NodePath[] targets, long size) {
+			this.shardId = shardId;
+			this.source = source;
+			this.targets = targets;
+			this.size = size;
+		}
+
+		public State state() {
+			return state;
+		}
+
+		@Override
+		public String toString() {
+			return shardId + "[" + state + "]";
+		}
+	}
+}
@@ -1,251 +1,567 @@
 package com.yy.elasticsearch.priorstore;
 
-import com.google.common.primitives.Ints;
-import org.apache.lucene.index.IndexFileNames;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.store.LockObtainFailedException;
-import org.apache.lucene.util.IOUtils;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
+import com.yy.elasticsearch.priorstore.action.NodePriorStorePlan;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
-import org.elasticsearch.client.Client;
-import org.elasticsearch.cluster.routing.LocalShardStateAction;
+import org.elasticsearch.action.admin.cluster.health.ClusterIndexHealth;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.env.NodeEnvironment;
-import org.elasticsearch.env.ShardLock;
 import org.elasticsearch.index.shard.ShardId;
-import org.elasticsearch.index.store.support.AbstractIndexStore;
-import org.elasticsearch.indices.IndicesService;
-import org.elasticsearch.node.Node;
 import org.elasticsearch.threadpool.ThreadPool;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Decides what to migrate: in every round the policy of each tier(see {@link StorageTier}) chooses indices to move
+ * down to the next tier, and optionally hot shards are promoted back to the fastest tier. The shards are handed to {@link PriorStoreMigrationEngine} to be moved.
+ *
  * @author colin.ke keqinwu@163.com
  */
 public class PriorStoreMigrationScheduler {
 
+	/**
+	 * a migration round runs at least this often, besides being triggered by the watermark
+	 */
 	public static String MIGRATION_SCHEDULE_INTERVAL = "store.prior.migration.schedule.interval";
-	public static String MIGRATION_CONCURRENT = "store.prior.migration.concurrent"; // default 5
+	/**
+	 * how often the usage of the tiers is checked against their migration thresholds
+	 */
+	public static final String MIGRATION_PROBE_INTERVAL = "store.prior.migration.probe.interval";
+	public static final TimeValue DEFAULT_MIGRATION_PROBE_INTERVAL = TimeValue.timeValueSeconds(10);
+	/**
+	 * min interval between the starts of two migration rounds
+	 */
+	public static final String MIGRATION_MIN_INTERVAL = "store.prior.migration.min_interval";
+	public static final TimeValue DEFAULT_MIGRATION_MIN_INTERVAL = TimeValue.timeValueMinutes(1);
 
-	private static AtomicBoolean running = new AtomicBoolean(false);
+	/**
+	 * move hot shards from every tier up to the tier above it
+	 */
+	public static final String PROMOTION_ENABLED = "store.prior.promotion.enabled";
+	/**
+	 * shards are promoted only while the usage of the tier they're moved to stays under this(and its migration
+	 * threshold), which should be lower than {@link PriorStoreModule#MIGRATION_THRESHOLD} so that promoted shards
+	 * won't be migrated back right away
+	 */
+	public static final String PROMOTION_WATERMARK = "store.prior.promotion.watermark";
+	public static final double DEFAULT_PROMOTION_WATERMARK = 0.7;
+	/**
+	 * shards colder than this(see {@link ShardHeatService}) are never promoted, and if promotion is enabled, hotter
+	 * ones are never migrated down
+	 */
+	public static final String PROMOTION_MIN_HEAT = "store.prior.promotion.min_heat";
+	public static final double DEFAULT_PROMOTION_MIN_HEAT = 100;
+	/**
+	 * read the files of a promoted shard into the page cache once they're moved, see {@link PriorStoreTransferEngine}
+	 */
+	public static final String PROMOTION_PREWARM = "store.prior.promotion.prewarm";
+
+	/**
+	 * a round may move this ratio more than the target of the policy, to land closer to it than without
+	 */
+	public static final String SELECTION_OVERSHOOT = "store.prior.migration.selection.overshoot";
+	public static final double DEFAULT_SELECTION_OVERSHOOT = 0.1;
+	/**
+	 * how many of the first ranked shards are considered in a round, see {@link ShardSelector}
+	 */
+	public static final String SELECTION_CANDIDATES = "store.prior.migration.selection.candidates";
+	public static final int DEFAULT_SELECTION_CANDIDATES = 64;
+	/**
+	 * the fixed downtime of migrating a shard(flush, unassign, recover), besides copying it
+	 */
+	public static final String SELECTION_SHARD_DOWNTIME = "store.prior.migration.selection.shard_downtime";
+	public static final TimeValue DEFAULT_SELECTION_SHARD_DOWNTIME = TimeValue.timeValueSeconds(30);
+	/**
+	 * the cost added to a shard for every position the policy ranks it after the first
+	 */
+	public static final String SELECTION_RANK_PENALTY = "store.prior.migration.selection.rank_penalty";
+	public static final TimeValue DEFAULT_SELECTION_RANK_PENALTY = TimeValue.timeValueSeconds(1);
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	/**
+	 * a round has been submitted and hasn't started yet
+	 */
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+	private volatile long lastRoundStart;
+	private final long minIntervalMillis;
 
 	private final PriorStoreEnvironment psEnv;
 	private final NodeEnvironment nodeEnv;
-	private final MigrationPolicy mgPolicy;
-	private final IndicesService indicesService;
-	private final LocalShardStateAction shardStateAction;
-	private final Semaphore migrating;
+	/**
+	 * by tier level
+	 */
+	private final MigrationPolicy[] mgPolicies;
+	private final ShardUsageIndex usageIndex;
+	private final PriorStoreSpaceService spaceService;
+	private final ShardHeatService heatService;
+	private final PriorStoreMigrationEngine migrationEngine;
+	private final PriorStoreTransferEngine transferEngine;
+	private final ClusterService clusterService;
+	private final ThreadPool threadPool;
+	private final boolean promotionEnabled;
+	private final double promotionWatermark;
+	private final double promotionMinHeat;
+	private final double selectionOvershoot;
+	private final int selectionCandidates;
+	private final long shardDowntimeMillis;
+	private final long rankPenaltyMillis;
 
 	private final ESLogger logger = Loggers.getLogger(getClass());
-	private final Node node;
 
 	@Inject
-	public PriorStoreMigrationScheduler(final ThreadPool threadPool, final NodeEnvironment nodeEnv, final PriorStoreEnvironment psEnv, final MigrationPolicy mgPolicy,
-										final IndicesService indicesService, LocalShardStateAction shardStateAction, Settings settings, Node node) {
+	public PriorStoreMigrationScheduler(final ThreadPool threadPool, final NodeEnvironment nodeEnv, final PriorStoreEnvironment psEnv, final MigrationPolicy mgPolicy, final Injector injector,
+										final ShardUsageIndex usageIndex, final PriorStoreSpaceService spaceService, final ShardHeatService heatService,
+										final PriorStoreMigrationEngine migrationEngine, final PriorStoreTransferEngine transferEngine,
+										final ClusterService clusterService, Settings settings) {
 		this.nodeEnv = nodeEnv;
 		this.psEnv = psEnv;
-		this.mgPolicy = mgPolicy;
-		this.indicesService = indicesService;
-		this.shardStateAction = shardStateAction;
-		this.node = node;
+		StorageTier[] tiers = psEnv.getTiers();
+		mgPolicies = new MigrationPolicy[tiers.length];
+		for (int i = 0; i < tiers.length; ++i) {
+			mgPolicies[i] = tiers[i].getPolicy() == mgPolicy.getClass() ? mgPolicy : injector.getInstance(tiers[i].getPolicy());
+		}
+		this.usageIndex = usageIndex;
+		this.spaceService = spaceService;
+		this.heatService = heatService;
+		this.migrationEngine = migrationEngine;
+		this.transferEngine = transferEngine;
+		this.clusterService = clusterService;
 
-		migrating = new Semaphore(settings.getAsInt(MIGRATION_CONCURRENT, 5));
+		this.threadPool = threadPool;
+
+		promotionEnabled = settings.getAsBoolean(PROMOTION_ENABLED, false);
+		promotionWatermark = settings.getAsDouble(PROMOTION_WATERMARK, DEFAULT_PROMOTION_WATERMARK);
+		promotionMinHeat = settings.getAsDouble(PROMOTION_MIN_HEAT, DEFAULT_PROMOTION_MIN_HEAT);
+		selectionOvershoot = settings.getAsDouble(SELECTION_OVERSHOOT, DEFAULT_SELECTION_OVERSHOOT);
+		selectionCandidates = settings.getAsInt(SELECTION_CANDIDATES, DEFAULT_SELECTION_CANDIDATES);
+		shardDowntimeMillis = settings.getAsTime(SELECTION_SHARD_DOWNTIME, DEFAULT_SELECTION_SHARD_DOWNTIME).millis();
+		rankPenaltyMillis = settings.getAsTime(SELECTION_RANK_PENALTY, DEFAULT_SELECTION_RANK_PENALTY).millis();
+		minIntervalMillis = settings.getAsTime(MIGRATION_MIN_INTERVAL, DEFAULT_MIGRATION_MIN_INTERVAL).millis();
 		TimeValue interval = settings.getAsTime(MIGRATION_SCHEDULE_INTERVAL, TimeValue.timeValueHours(1));
-		threadPool.scheduleWithFixedDelay(migrationRunnable, interval);
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				trigger("scheduled");
+			}
+		}, interval);
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (aboveMigrationThreshold())
+					trigger("watermark");
+			}
+		}, settings.getAsTime(MIGRATION_PROBE_INTERVAL, DEFAULT_MIGRATION_PROBE_INTERVAL));
+	}
+
+	/**
+	 * called by {@link PriorStoreDistributor} when the fastest tier is too full to take a new file
+	 */
+	public void onPriorStoreFull() {
+		trigger("prior store full");
+	}
+
+	/**
+	 * start a migration round as soon as possible, but never two rounds at the same time, or two starts within
+	 * {@link #MIGRATION_MIN_INTERVAL}. It's cheap when a round is already pending. If a round is running, another one
+	 * starts after it.
+	 */
+	public void trigger(String reason) {
+		if (pending.get() || !pending.compareAndSet(false, true))
+			return;
+		logger.debug("migration round triggered by [{}]", reason);
+		if (!running.get())
+			start();
+	}
+
+	private void start() {
+		long delay = lastRoundStart + minIntervalMillis - System.currentTimeMillis();
+		logger.debug("migration round starting in [{}]", TimeValue.timeValueMillis(Math.max(0, delay)));
+		if (delay <= 0) {
+			migrationEngine.execute(migrationRunnable);
+		} else {
+			threadPool.schedule(TimeValue.timeValueMillis(delay), ThreadPool.Names.SAME, new Runnable() {
+				@Override
+				public void run() {
+					migrationEngine.execute(migrationRunnable);
+				}
+			});
+		}
+	}
+
+	private boolean aboveMigrationThreshold() {
+		long[] spaces = spaceService.snapshot();
+		for (StorageTier tier : psEnv.getTiers()) {
+			for (NodeEnvironment.NodePath nodePath : tier.getPaths()) {
+				if (usedRatio(spaces, nodePath) >= tier.getMigrationThreshold())
+					return true;
+			}
+		}
+		return false;
 	}
 
 	private final Runnable migrationRunnable = new Runnable() {
 		@Override
 		public void run() {
+			if (running.getAndSet(true))
+				return; // the running one starts another round when it finishes
+			if (!pending.getAndSet(false)) {
+				finish();
+				return;
+			}
+			lastRoundStart = System.currentTimeMillis();
 			try {
-				if (running.getAndSet(true))
-					return; // if it's already running and haven't finished yet, return;
-
 				// 1. start running migration checking runnable
-				if (null == psEnv.getPriorStorePaths() || psEnv.getPriorStorePaths().length == 0)
-					return;
-				for (NodeEnvironment.NodePath psNodePath : psEnv.getPriorStorePaths()) {
-					if ((psNodePath.fileStore.getUsableSpace() * 1.0 / psNodePath.fileStore.getTotalSpace()) > (1.0 - psEnv.getMigrationThreshold()))
-						continue;
-
-					MigrationInfo mgInfo = mgPolicy.getMigrationIndices(psNodePath);
-					NodeEnvironment.NodePath target = null;
-					for (NodeEnvironment.NodePath nodePath : nodeEnv.nodePaths()) { // 目标路径跟源路径不是同一个硬盘，且目标硬盘的可用空间最大
-						if (nodePath.fileStore.equals(psNodePath.fileStore) || nodePath.fileStore.getUsableSpace() < mgInfo.getSize())
+				StorageTier[] tiers = psEnv.getTiers();
+				// the lowest tier first, so that it makes room before the upper ones migrate into it
+				for (int level = tiers.length - 1; level >= 0; --level) {
+					StorageTier tier = tiers[level];
+					for (NodeEnvironment.NodePath psNodePath : tier.getPaths()) {
+						if (usedRatio(spaceService.snapshot(), psNodePath) < tier.getMigrationThreshold())
 							continue;
-						if (null == target)
-							target = nodePath;
-						else if (nodePath.fileStore.getUsableSpace() > target.fileStore.getUsableSpace())
-							target = nodePath;
-					}
-					if (null != target) {
-						for (String index : mgInfo.getIndices()) {
-//							logger.debug("starting migrating index [{}] from {} to {}", index, psNodePath.path, target.path);
-							ClusterHealthStatus indexStatus = node.client().admin().cluster().prepareHealth(index).setLocal(true).execute().actionGet().getStatus();
-							if(indexStatus.equals(ClusterHealthStatus.GREEN))
-								migrateIndex(index, psNodePath, target);
-							else
-								logger.debug("index[{}] status is {}, ignore migration", index, indexStatus);
+						if (migrationEngine.hasJobsFrom(psNodePath)) {
+							// the space freed by them isn't seen yet
+							logger.debug("shards are still being migrated from {}, skip this round", psNodePath);
+							continue;
+						}
+
+						MigrationInfo mgInfo = mgPolicies[level].getMigrationIndices(psNodePath);
+						// 目标路径跟源路径不是同一个硬盘，具体用哪个由迁移引擎按各硬盘的负载和空间决定
+						List<NodeEnvironment.NodePath> targets = targetPaths(tier, spaceService.snapshot());
+						if (!targets.isEmpty()) {
+							NodeEnvironment.NodePath[] dsts = targets.toArray(new NodeEnvironment.NodePath[targets.size()]);
+							List<MigrationInfo.Shard> shards = selectShards(mgInfo, psNodePath, targets, clusterService.state(), null);
+							migrateShards(shards, mgInfo.getTarget(), psNodePath, dsts);
+						} else {
+							logger.warn("no target store can be migrated to from " + psNodePath.path.toString() + " of " + tier);
 						}
-					} else {
-						logger.warn("no target store can be migrated to from " + psNodePath.path.toString());
 					}
 				}
+				if (promotionEnabled)
+					promote();
 			} catch (Exception e) {
-				throw new IllegalStateException("failed to migrate", e);
+				logger.error("failed to migrate", e);
 			} finally {
-				running.set(false);
+				finish();
 			}
 		}
 	};
 
-	private void migrateIndex(final String index, final NodeEnvironment.NodePath src, final NodeEnvironment.NodePath dst) throws IOException, InterruptedException {
-		logger.info("migrating index [{}] from {} to {}", index, src, dst);
-		// 2. migrate index - find all the shards in src path
-		Set<ShardId> shardIds = findAllShardsForIndex(src.indicesPath.resolve(index));
-		if (null == indicesService) {
-			// should not go here, just in case
-			logger.error("cannot get indexService for {}", index);
-			return;
+	/**
+	 * a trigger seeing the round still running leaves it pending, start it now
+	 */
+	private void finish() {
+		running.set(false);
+		if (pending.get() && !running.get())
+			start();
+	}
+
+	/**
+	 * What a round would migrate out of every path of the tiers now, without moving anything. Unlike a round, the paths
+	 * under the threshold and the ones still being migrated from are planned too. The targets are chosen like
+	 * {@link PriorStoreMigrationEngine} does, as if the shards were moved one by one.
+	 */
+	public NodePriorStorePlan plan(DiscoveryNode node) throws Exception {
+		NodeEnvironment.NodePath[] nodePaths = psEnv.getNodePaths();
+		String[] paths = new String[nodePaths.length];
+		PathCalibration[] calibrations = new PathCalibration[nodePaths.length];
+		for (int i = 0; i < nodePaths.length; ++i) {
+			paths[i] = nodePaths[i].path.toString();
+			calibrations[i] = psEnv.getCalibration(i);
 		}
 
+		long[] spaces = spaceService.snapshot();
+		// bytes planned to each path, by slot
+		long[] planned = new long[nodePaths.length];
+		ClusterState clusterState = clusterService.state();
+		List<NodePriorStorePlan.PathPlan> plans = new ArrayList<>();
+		for (NodeEnvironment.NodePath psNodePath : psEnv.getPriorStorePaths()) {
+			StorageTier tier = psEnv.tierOf(psNodePath);
+			double usedRatio = usedRatio(spaces, psNodePath);
+			List<NodeEnvironment.NodePath> targets = targetPaths(tier, spaces);
 
-		for (final ShardId shardId : shardIds) {
-			if(!migrating.tryAcquire(1, TimeUnit.HOURS)) {
-				logger.error("acquire 'migrating' semaphore timeout(1 hour) !!");
+			List<NodePriorStorePlan.ShardPlan> shards = new ArrayList<>();
+			// the targets write one shard after another
+			long[] targetMillis = new long[nodePaths.length];
+			boolean estimated = true;
+			MigrationInfo mgInfo = mgPolicies[tier.getLevel()].getMigrationIndices(psNodePath);
+			for (MigrationInfo.Shard shard : selectShards(mgInfo, psNodePath, targets, clusterState, shards)) {
+				ShardId shardId = shard.getShardId();
+				long bytes = shard.getSize();
+				NodeEnvironment.NodePath target = planTarget(psNodePath, targets, spaces, planned, bytes);
+				if (null == target) {
+					shards.add(new NodePriorStorePlan.ShardPlan(shardId, bytes, null, -1, "no target has room"));
+					continue;
+				}
+				int targetSlot = spaceService.slotOf(target);
+				planned[targetSlot] += bytes;
+				long millis = transferEngine.estimateMillis(psNodePath, target, bytes);
+				if (millis < 0)
+					estimated = false;
+				else
+					targetMillis[targetSlot] += millis;
+				shards.add(new NodePriorStorePlan.ShardPlan(shardId, bytes, target.path.toString(), millis, null));
 			}
+			long millis = -1;
+			if (estimated) {
+				for (long m : targetMillis) {
+					millis = Math.max(millis, m);
+				}
+			}
+			plans.add(new NodePriorStorePlan.PathPlan(psNodePath.path.toString(), usedRatio, usedRatio >= tier.getMigrationThreshold(),
+					migrationEngine.hasJobsFrom(psNodePath), shards.toArray(new NodePriorStorePlan.ShardPlan[shards.size()]), millis));
+		}
+		return new NodePriorStorePlan(node, paths, calibrations, plans.toArray(new NodePriorStorePlan.PathPlan[plans.size()]));
+	}
 
-			logger.info("migrating shard[{}]", shardId);
+	/**
+	 * choose the shards to move out of the path with {@link ShardSelector}, among the first
+	 * {@link #SELECTION_CANDIDATES} candidates of the policy which can be moved now. A candidate is offline for the
+	 * {@link #SELECTION_SHARD_DOWNTIME} plus the time to copy it to the fastest target, if the paths are calibrated,
+	 * and costs {@link #SELECTION_RANK_PENALTY} more for every position it's ranked lower.
+	 * If the shards are merged before being migrated, the ones which are no longer written come first, so that a
+	 * shard is merged once.
+	 *
+	 * @param skipped the ranked candidates which can't be moved now and why, ignored if null
+	 */
+	private List<MigrationInfo.Shard> selectShards(MigrationInfo mgInfo, NodeEnvironment.NodePath src, List<NodeEnvironment.NodePath> targets,
+												   ClusterState clusterState, List<NodePriorStorePlan.ShardPlan> skipped) {
+		Map<String, ClusterHealthStatus> indicesHealth = new HashMap<>();
+		List<MigrationInfo.Shard> ranked = mgInfo.getShards();
+		if (migrationEngine.mergeEnabled()) {
+			List<MigrationInfo.Shard> active = new ArrayList<>();
+			ranked = new ArrayList<>(ranked.size());
+			for (MigrationInfo.Shard shard : mgInfo.getShards()) {
+				if (migrationEngine.isMergeable(shard.getShardId()))
+					ranked.add(shard);
+				else
+					active.add(shard);
+			}
+			ranked.addAll(active);
+		}
+		List<MigrationInfo.Shard> candidates = new ArrayList<>();
+		for (MigrationInfo.Shard shard : ranked) {
+			if (candidates.size() >= selectionCandidates)
+				break;
+			ShardId shardId = shard.getShardId();
+			String index = shardId.index().name();
+			if (!indicesHealth.containsKey(index))
+				indicesHealth.put(index, indexHealth(clusterState, index));
+			ClusterHealthStatus indexStatus = indicesHealth.get(index);
+			if (indexStatus != ClusterHealthStatus.GREEN) {
+				logger.debug("index[{}] status is {}, ignore migration of {}", index, indexStatus, shardId);
+				if (null != skipped)
+					skipped.add(new NodePriorStorePlan.ShardPlan(shardId, shard.getSize(), null, -1, "index is " + indexStatus));
+				continue;
+			}
+			// a shard hot enough to be promoted would come back once its cooldown ends
+			if (promotionEnabled && heatService.heat(shardId) >= promotionMinHeat) {
+				logger.debug("{} is hot enough to be promoted, skip its migration", shardId);
+				if (null != skipped)
+					skipped.add(new NodePriorStorePlan.ShardPlan(shardId, shard.getSize(), null, -1, "hot enough to be promoted"));
+				continue;
+			}
+			// don't move the shards back and forth
+			if (migrationEngine.isMovingOrCooling(shardId)) {
+				logger.debug("{} is being moved or has been moved in the last [{}], skip it", shardId, migrationEngine.cooldown());
+				if (null != skipped)
+					skipped.add(new NodePriorStorePlan.ShardPlan(shardId, shard.getSize(), null, -1, "being moved or cooling down"));
+				continue;
+			}
+			candidates.add(shard);
+		}
 
-			// 3. unassign the shards in src path(release shard lock)
-			shardStateAction.unassignShards(new ShardId[]{shardId}, new LocalShardStateAction.Listener() {
-				@Override
-				public void onResponse(LocalShardStateAction.ShardStateResponse response) {
-					if (!response.ack()) {
-						logger.error("failed to remove shards {} with ack returned false", shardId);
-						migrating.release();
-						throw new IllegalStateException("failed to migrate: remove shards action returned false ack");
-					}
+		long[] downtimes = new long[candidates.size()];
+		for (int i = 0; i < downtimes.length; ++i) {
+			long copyMillis = -1;
+			for (NodeEnvironment.NodePath target : targets) {
+				if (target.fileStore.equals(src.fileStore))
+					continue;
+				long millis = transferEngine.estimateMillis(src, target, candidates.get(i).getSize());
+				if (millis >= 0 && (copyMillis < 0 || millis < copyMillis))
+					copyMillis = millis;
+			}
+			downtimes[i] = shardDowntimeMillis + Math.max(0, copyMillis);
+		}
+		long target = mgInfo.getTarget();
+		return ShardSelector.select(candidates, downtimes, rankPenaltyMillis, target, target + (long) (target * selectionOvershoot));
+	}
 
-					final Boolean[] hasError = new Boolean[]{false};
-					// 4. obtain shard lock
-					try (ShardLock shardLock = nodeEnv.shardLock(shardId, 60)) {
-						// do migrating shard file
-						Path srcShard = src.indicesPath.resolve(index).resolve(String.valueOf(shardId.id()));
-						Path dstShard = dst.indicesPath.resolve(index).resolve(String.valueOf(shardId.id()));
-						Files.createDirectories(dstShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
-						Files.createDirectories(dstShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
-						migrateDir(shardId, srcShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME), dstShard.resolve(AbstractIndexStore.INDEX_FOLDER_NAME));
-						migrateDir(shardId, srcShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME), dstShard.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME));
-					} catch (LockObtainFailedException e) {
-						hasError[0] = true;
-						throw new IllegalStateException("failed to obtain shard lock [{" + shardId + "}]", e);
-					} catch (Exception e) {
-						hasError[0] = true;
-						throw new IllegalStateException(e);
-					} finally {
-						// 5. re-assign the shard to local node
-						shardStateAction.startShards(new ShardId[]{shardId}, new LocalShardStateAction.Listener() {
-							@Override
-							public void onResponse(LocalShardStateAction.ShardStateResponse response) {
-								migrating.release();
-								if (!response.ack()) {
-									logger.error("failed to start shards {} with ack returned false", shardId);
-									throw new IllegalStateException("start shards action returned false ack");
-								}
-								if (hasError[0])
-									logger.info("restarted shard {} without migrating any data", shardId);
-								else
-									logger.info("successfully migrating shard[{}]", shardId);
-							}
-
-							@Override
-							public void onFailure(Throwable e) {
-								migrating.release();
-								throw new IllegalStateException("", e);
-							}
-						});
-					}
-				}
+	/**
+	 * @return the target which would finish writing its planned bytes and this shard first if calibrated, otherwise the
+	 * one with the most usable space left, null if none has room
+	 */
+	private NodeEnvironment.NodePath planTarget(NodeEnvironment.NodePath source, List<NodeEnvironment.NodePath> targets, long[] spaces,
+												long[] planned, long bytes) {
+		NodeEnvironment.NodePath best = null;
+		double bestEta = -1;
+		long bestSpace = Long.MIN_VALUE;
+		for (NodeEnvironment.NodePath target : targets) {
+			int slot = spaceService.slotOf(target);
+			if (slot < 0 || target.fileStore.equals(source.fileStore))
+				continue;
+			long space = PriorStoreSpaceService.usableSpace(spaces, slot) - planned[slot] - bytes;
+			if (space < 0)
+				continue;
+			PathCalibration calibration = psEnv.getCalibration(slot);
+			double eta = null == calibration || calibration.getWriteBytesPerSec() <= 0 ? -1 : (planned[slot] + bytes) * 1.0 / calibration.getWriteBytesPerSec();
+			boolean better;
+			if (null == best)
+				better = true;
+			else if (eta >= 0 && bestEta >= 0)
+				better = eta < bestEta || (eta == bestEta && space > bestSpace);
+			else
+				better = space > bestSpace;
+			if (better) {
+				best = target;
+				bestEta = eta;
+				bestSpace = space;
+			}
+		}
+		return best;
+	}
 
-				@Override
-				public void onFailure(Throwable e) {
-					logger.error("failed to unassign the shard[{}]", e, shardId);
-					migrating.release();
-					throw new IllegalStateException(e);
-				}
-			});
+	/**
+	 * @return the paths of the next tier down which are under its max threshold, or of the tier below it if there's
+	 * none. The bottom tier is returned as is, whether the shards fit is checked by {@link PriorStoreMigrationEngine}.
+	 */
+	private List<NodeEnvironment.NodePath> targetPaths(StorageTier tier, long[] spaces) {
+		StorageTier[] tiers = psEnv.getTiers();
+		while (true) {
+			List<NodeEnvironment.NodePath> lower = psEnv.lowerPaths(tier);
+			if (tier.getLevel() + 1 >= tiers.length)
+				return lower;
+			tier = tiers[tier.getLevel() + 1];
+			List<NodeEnvironment.NodePath> withRoom = new ArrayList<>();
+			for (NodeEnvironment.NodePath nodePath : lower) {
+				if (usedRatio(spaces, nodePath) < tier.getMaxThreshold())
+					withRoom.add(nodePath);
+			}
+			if (!withRoom.isEmpty())
+				return withRoom;
 		}
 	}
 
-	private void migrateDir(ShardId shard, Path sourceDir, Path targetDir) throws IOException {
-		List<Path> movedFiles = new ArrayList<>();
+	private double usedRatio(long[] spaces, NodeEnvironment.NodePath nodePath) {
+		int slot = spaceService.slotOf(nodePath);
+		if (slot < 0)
+			return 0;
+		long total = PriorStoreSpaceService.totalSpace(spaces, slot);
+		return total <= 0 ? 0 : 1.0 - PriorStoreSpaceService.usableSpace(spaces, slot) * 1.0 / total;
+	}
 
-		if (Files.exists(sourceDir)) {
-			logger.debug("{} migrating from [{}] to [{}]", shard, sourceDir, targetDir);
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir)) {
-				Files.createDirectories(targetDir);
-				for (Path file : stream) {
-					if (IndexWriter.WRITE_LOCK_NAME.equals(file.getFileName().toString()) || IndexFileNames.SEGMENTS_GEN.equals(file.getFileName().toString()) || Files.isDirectory(file)) {
-						continue; // skip write.lock and segments.gen
-					}
-					logger.trace("{} move file [{}] size: [{}]", shard, file.getFileName(), Files.size(file));
-					final Path targetFile = targetDir.resolve(file.getFileName());
-					/* We are pessimistic and do a copy first to the other path and then and atomic move to rename it such that
-					in the worst case the file exists twice but is never lost or half written.*/
-					final Path targetTempFile = Files.createTempFile(targetDir, "upgrade_", "_" + file.getFileName().toString());
-					Files.copy(file, targetTempFile, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-					Files.move(targetTempFile, targetFile, StandardCopyOption.ATOMIC_MOVE); // we are on the same FS - this must work otherwise all bets are off
-					Files.delete(file);
-					movedFiles.add(targetFile);
+	/**
+	 * @return health of the index in the local cluster state, null if the index doesn't exist
+	 */
+	private static ClusterHealthStatus indexHealth(ClusterState clusterState, String index) {
+		IndexMetaData indexMetaData = clusterState.metaData().index(index);
+		IndexRoutingTable indexRoutingTable = clusterState.routingTable().index(index);
+		if (null == indexMetaData || null == indexRoutingTable)
+			return null;
+		return new ClusterIndexHealth(indexMetaData, indexRoutingTable).getStatus();
+	}
+
+	/**
+	 * move the hottest shards of every tier up to the tier above it, as long as its paths stay under
+	 * {@link #PROMOTION_WATERMARK}. A shard climbs one tier per {@link PriorStoreMigrationEngine#MIGRATION_COOLDOWN}.
+	 */
+	private void promote() throws IOException {
+		long[] spaces = spaceService.snapshot();
+		ClusterState clusterState = clusterService.state();
+		for (StorageTier tier : psEnv.getTiers()) {
+			double watermark = Math.min(promotionWatermark, tier.getMigrationThreshold());
+			List<PromotionCandidate> candidates = null;
+			for (NodeEnvironment.NodePath psNodePath : tier.getPaths()) {
+				int slot = spaceService.slotOf(psNodePath);
+				if (slot < 0)
+					continue;
+				long total = PriorStoreSpaceService.totalSpace(spaces, slot);
+				long room = (long) (total * watermark) - (total - PriorStoreSpaceService.usableSpace(spaces, slot));
+				if (room <= 0)
+					continue;
+				if (null == candidates)
+					candidates = promotionCandidates(tier);
+				for (Iterator<PromotionCandidate> it = candidates.iterator(); it.hasNext(); ) {
+					PromotionCandidate candidate = it.next();
+					if (candidate.size > room || candidate.source.fileStore.equals(psNodePath.fileStore)
+							|| indexHealth(clusterState, candidate.shardId.index().name()) != ClusterHealthStatus.GREEN)
+						continue;
+					logger.info("promoting shard {} from {} to {}", candidate.shardId, candidate.source, psNodePath);
+					if (migrationEngine.submit(candidate.shardId, candidate.source, psNodePath))
+						room -= candidate.size;
+					it.remove();
 				}
 			}
 		}
+	}
 
-		if (!movedFiles.isEmpty()) {
-			// fsync later it might be on disk already
-			logger.trace("{} fsync files", shard);
-			for (Path moved : movedFiles) {
-				logger.trace("{} syncing [{}]", shard, moved.getFileName());
-				IOUtils.fsync(moved.toFile(), false);
+	/**
+	 * @return the shards of the tier below which are hot enough to be promoted, hottest bytes first
+	 */
+	private List<PromotionCandidate> promotionCandidates(StorageTier tier) {
+		List<PromotionCandidate> candidates = new ArrayList<>();
+		for (NodeEnvironment.NodePath nodePath : psEnv.lowerPaths(tier)) {
+			for (ObjectLongCursor<ShardId> cursor : usageIndex.shardsSize(nodePath)) {
+				double heat = heatService.heat(cursor.key);
+				if (heat < promotionMinHeat || migrationEngine.isMovingOrCooling(cursor.key))
+					continue;
+				candidates.add(new PromotionCandidate(cursor.key, nodePath, cursor.value, heat / cursor.value));
+			}
+		}
+		Collections.sort(candidates, new Comparator<PromotionCandidate>() {
+			@Override
+			public int compare(PromotionCandidate c1, PromotionCandidate c2) {
+				return Double.compare(c2.heatPerByte, c1.heatPerByte);
 			}
-			logger.trace("{} syncing directory [{}]", shard, targetDir);
-			IOUtils.fsync(targetDir.toFile(), true);
+		});
+		return candidates;
+	}
+
+	private void migrateShards(List<MigrationInfo.Shard> shards, long target, NodeEnvironment.NodePath src, NodeEnvironment.NodePath[] dsts) {
+		if (shards.isEmpty()) {
+			logger.debug("nothing can be migrated from {} now", src);
+			return;
+		}
+		long size = 0;
+		for (MigrationInfo.Shard shard : shards) {
+			size += shard.getSize();
+		}
+		logger.info("migrating [{}] shards of [{}] from {} to {}, [{}] wanted", shards.size(), new ByteSizeValue(size), src, Arrays.toString(dsts), new ByteSizeValue(target));
+		for (MigrationInfo.Shard shard : shards) {
+			migrationEngine.submit(shard.getShardId(), src, dsts);
 		}
 	}
 
+	private static class PromotionCandidate {
+		final ShardId shardId;
+		final NodeEnvironment.NodePath source;
+		final long size;
+		final double heatPerByte;
 
-	private static Set<ShardId> findAllShardsForIndex(Path indexPath) throws IOException {
-		Set<ShardId> shardIds = new HashSet<>();
-		if (Files.isDirectory(indexPath)) {
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexPath)) {
-				String currentIndex = indexPath.getFileName().toString();
-				for (Path shardPath : stream) {
-					if (Files.isDirectory(shardPath)) {
-						Integer shardId = Ints.tryParse(shardPath.getFileName().toString());
-						if (shardId != null) {
-							ShardId id = new ShardId(currentIndex, shardId);
-							shardIds.add(id);
-						}
-					}
-				}
-			}
+		PromotionCandidate(ShardId shardId, NodeEnvironment.NodePath source, long size, double heatPerByte) {
+			this.shardId = shardId;
+			this.source = source;
+			this.size = size;
+			this.heatPerByte = heatPerByte;
 		}
-		return shardIds;
 	}
 }
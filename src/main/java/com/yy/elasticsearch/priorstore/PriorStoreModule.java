@@ -4,6 +4,7 @@ import org.elasticsearch.cluster.routing.LocalShardStateAction;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 
 /**
  * @author colin.ke keqinwu@163.com
@@ -26,6 +27,28 @@ public class PriorStoreModule extends AbstractModule {
 	public static final String PRIOR_STORE_MAX_THRESHOLD = "store.prior.max.threshold";
 	public static final double DEFAULT_PRIOR_STORE_MAX_THRESHOLD = 0.85;
 
+	/**
+	 * merges whose estimated output is larger than this are written to non-prior-store paths directly, disabled by default
+	 */
+	public static final String LARGE_MERGE_SIZE = "store.prior.large_merge.size";
+	public static final ByteSizeValue DEFAULT_LARGE_MERGE_SIZE = new ByteSizeValue(-1);
+
+	/**
+	 * names of the storage tiers, fastest first. Without it, {@link Plugin#PRIOR_PATH_KEY} is the only tier
+	 */
+	public static final String TIERS = "store.prior.tiers";
+	/**
+	 * settings of the tier 'name' are store.prior.tier.name.path, .max.threshold, .migration.threshold and .migration.policy,
+	 * the thresholds and the policy default to the global ones
+	 */
+	public static final String TIER_PREFIX = "store.prior.tier.";
+
+	/**
+	 * keeps all the files of a segment in the path its first file is placed in
+	 */
+	public static final String SEGMENT_AFFINITY = "store.prior.placement.segment_affinity";
+	public static final boolean DEFAULT_SEGMENT_AFFINITY = false;
+
 	private final Settings settings;
 
 	@Inject
@@ -38,12 +61,21 @@ public class PriorStoreModule extends AbstractModule {
 		bind(LocalShardStateAction.class).asEagerSingleton();
 		if (Plugin.enabled()) {
 			bind(PriorStoreEnvironment.class).asEagerSingleton();
-			bind(MigrationPolicy.class).to(loadMgPolicy()).asEagerSingleton();
+			bind(PriorStoreSpaceService.class).asEagerSingleton();
+			bind(PriorStoreCalibrator.class).asEagerSingleton();
+			bind(PriorStoreStats.class).asEagerSingleton();
+			bind(ShardUsageIndex.class).asEagerSingleton();
+			bind(ShardHeatService.class).asEagerSingleton();
+			bind(PriorStoreTransferEngine.class).asEagerSingleton();
+			bind(MigrationPolicy.class).to(loadMgPolicy(settings)).asEagerSingleton();
+			bind(PriorStoreMigrationEngine.class).asEagerSingleton();
 			bind(PriorStoreMigrationScheduler.class).asEagerSingleton();
+			bind(MigrationThrottle.class).asEagerSingleton();
+			bind(PriorStoreService.class).asEagerSingleton();
 		}
 	}
 
-	private Class<? extends MigrationPolicy> loadMgPolicy() {
+	static Class<? extends MigrationPolicy> loadMgPolicy(Settings settings) {
 		return settings.getAsClass(MG_POLICY_KEY, YYOLAPMigrationPolicy.class);
 	}
 }
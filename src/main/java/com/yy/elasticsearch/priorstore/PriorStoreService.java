@@ -0,0 +1,38 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Releases what the migrations hold when the node is closed: the migration and copy threads and the journals.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreService extends AbstractLifecycleComponent<PriorStoreService> {
+
+	private final PriorStoreMigrationEngine migrationEngine;
+	private final PriorStoreTransferEngine transferEngine;
+
+	@Inject
+	public PriorStoreService(Settings settings, PriorStoreMigrationEngine migrationEngine, PriorStoreTransferEngine transferEngine) {
+		super(settings);
+		this.migrationEngine = migrationEngine;
+		this.transferEngine = transferEngine;
+	}
+
+	@Override
+	protected void doStart() throws ElasticsearchException {
+	}
+
+	@Override
+	protected void doStop() throws ElasticsearchException {
+	}
+
+	@Override
+	protected void doClose() throws ElasticsearchException {
+		migrationEngine.close();
+		transferEngine.close();
+	}
+}
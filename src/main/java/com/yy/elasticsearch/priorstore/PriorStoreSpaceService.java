@@ -0,0 +1,111 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Keeps a periodically refreshed snapshot of the usable/total space of every node path, so that
+ * hot paths (e.g. choosing a directory for every new Lucene file) don't have to do a statfs per call.
+ * <p/>
+ * The snapshot is an immutable array published through a volatile field, so reads are lock-free.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreSpaceService {
+
+	public static final String SPACE_REFRESH_INTERVAL = "store.prior.space.refresh.interval";
+	public static final TimeValue DEFAULT_SPACE_REFRESH_INTERVAL = TimeValue.timeValueSeconds(1);
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final NodeEnvironment.NodePath[] nodePaths;
+
+	/**
+	 * [usable0, total0, usable1, total1, ...], indexed by the slot of the node path
+	 */
+	private volatile long[] spaces;
+
+	@Inject
+	public PriorStoreSpaceService(ThreadPool threadPool, PriorStoreEnvironment psEnv, Settings settings) {
+		this.nodePaths = psEnv.getNodePaths();
+		refresh();
+		TimeValue interval = settings.getAsTime(SPACE_REFRESH_INTERVAL, DEFAULT_SPACE_REFRESH_INTERVAL);
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, interval);
+	}
+
+	/**
+	 * sample all the file stores and publish a new snapshot
+	 */
+	public void refresh() {
+		long[] newSpaces = new long[nodePaths.length * 2];
+		long[] oldSpaces = spaces;
+		for (int i = 0; i < nodePaths.length; ++i) {
+			try {
+				newSpaces[i * 2] = nodePaths[i].fileStore.getUsableSpace();
+				newSpaces[i * 2 + 1] = nodePaths[i].fileStore.getTotalSpace();
+			} catch (IOException e) {
+				logger.warn("failed to sample space of {}", e, nodePaths[i].path);
+				if (null != oldSpaces) { // keep the last known values
+					newSpaces[i * 2] = oldSpaces[i * 2];
+					newSpaces[i * 2 + 1] = oldSpaces[i * 2 + 1];
+				}
+			}
+		}
+		spaces = newSpaces;
+	}
+
+	/**
+	 * @return the slot of the node path which contains the given location, or -1 if none
+	 */
+	public int slotOf(Path location) {
+		for (int i = 0; i < nodePaths.length; ++i) {
+			if (location.startsWith(nodePaths[i].path))
+				return i;
+		}
+		return -1;
+	}
+
+	public int slotOf(NodeEnvironment.NodePath nodePath) {
+		for (int i = 0; i < nodePaths.length; ++i) {
+			if (nodePaths[i] == nodePath)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the current snapshot, use {@link #usableSpace(long[], int)} and {@link #totalSpace(long[], int)} to read it.
+	 * Callers that need several values should read the snapshot once so they see a consistent view.
+	 */
+	public long[] snapshot() {
+		return spaces;
+	}
+
+	public long usableSpace(int slot) {
+		return usableSpace(spaces, slot);
+	}
+
+	public long totalSpace(int slot) {
+		return totalSpace(spaces, slot);
+	}
+
+	public static long usableSpace(long[] snapshot, int slot) {
+		return snapshot[slot * 2];
+	}
+
+	public static long totalSpace(long[] snapshot, int slot) {
+		return snapshot[slot * 2 + 1];
+	}
+}
@@ -0,0 +1,115 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.yy.elasticsearch.priorstore.action.NodePriorStoreStats;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.env.NodeEnvironment;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the distributor and the migrations on this node.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreStats {
+
+	/**
+	 * upper bounds(exclusive, in millis) of the buckets of the shard unassigned time histogram, the last bucket is unbounded
+	 */
+	public static final long[] UNASSIGNED_TIME_BUCKETS = new long[]{10000, 30000, 60000, 5 * 60000, 15 * 60000, 30 * 60000, 60 * 60000};
+
+	private final PriorStoreEnvironment psEnv;
+	private final PriorStoreSpaceService spaceService;
+
+	// distributor
+	final CounterMetric priorPlacements = new CounterMetric();
+	final CounterMetric fallbackPlacements = new CounterMetric();
+	final CounterMetric largeMergePlacements = new CounterMetric();
+	final CounterMetric nonPriorPlacements = new CounterMetric();
+
+	// migration
+	final CounterMetric queuedShards = new CounterMetric();
+	final CounterMetric activeShards = new CounterMetric();
+	final CounterMetric migratedShards = new CounterMetric();
+	final CounterMetric failedShards = new CounterMetric();
+	final CounterMetric migratedFiles = new CounterMetric();
+	final CounterMetric copiedBytes = new CounterMetric();
+	final CounterMetric reusedBytes = new CounterMetric();
+	final CounterMetric copyTimeInMillis = new CounterMetric();
+	final CounterMetric recoveredShards = new CounterMetric();
+	final CounterMetric recoveryRecoveredBytes = new CounterMetric();
+	final CounterMetric recoveryReusedBytes = new CounterMetric();
+	private final AtomicLongArray unassignedTimeHistogram = new AtomicLongArray(UNASSIGNED_TIME_BUCKETS.length + 1);
+	private final CounterMetric unassignedTimeInMillis = new CounterMetric();
+	// throttle, set by MigrationThrottle
+	final CounterMetric throttleBackoffs = new CounterMetric();
+	volatile double throttleMbPerSec;
+	/**
+	 * -1 if the throttle is disabled
+	 */
+	volatile int throttleConcurrency = -1;
+
+	@Inject
+	public PriorStoreStats(PriorStoreEnvironment psEnv, PriorStoreSpaceService spaceService) {
+		this.psEnv = psEnv;
+		this.spaceService = spaceService;
+	}
+
+	void onShardMigrated(int files, long copied, long reused, long copyTimeMillis) {
+		migratedShards.inc();
+		migratedFiles.inc(files);
+		copiedBytes.inc(copied);
+		reusedBytes.inc(reused);
+		copyTimeInMillis.inc(copyTimeMillis);
+	}
+
+	/**
+	 * a migrated shard has been recovered after being reopened
+	 *
+	 * @param recovered bytes copied by the recovery, e.g. from the primary
+	 * @param reused bytes of the local files kept by the recovery
+	 */
+	void onShardRecovered(long recovered, long reused) {
+		recoveredShards.inc();
+		recoveryRecoveredBytes.inc(recovered);
+		recoveryReusedBytes.inc(reused);
+	}
+
+	/**
+	 * @param millis how long a shard stayed unassigned for migration
+	 */
+	void onShardReassigned(long millis) {
+		int bucket = 0;
+		while (bucket < UNASSIGNED_TIME_BUCKETS.length && millis >= UNASSIGNED_TIME_BUCKETS[bucket])
+			++bucket;
+		unassignedTimeHistogram.incrementAndGet(bucket);
+		unassignedTimeInMillis.inc(millis);
+	}
+
+	public NodePriorStoreStats stats(DiscoveryNode node) {
+		NodeEnvironment.NodePath[] nodePaths = psEnv.getNodePaths();
+		long[] spaces = spaceService.snapshot();
+		NodePriorStoreStats.PathStats[] pathStats = new NodePriorStoreStats.PathStats[nodePaths.length];
+		for (int i = 0; i < nodePaths.length; ++i) {
+			StorageTier tier = psEnv.tierOf(nodePaths[i]);
+			pathStats[i] = new NodePriorStoreStats.PathStats(nodePaths[i].path.toString(), null == tier ? null : tier.getName(),
+					null == tier ? psEnv.getMigrationThreshold() : tier.getMigrationThreshold(),
+					null == tier ? psEnv.getPriorStoreMaxThreshold() : tier.getMaxThreshold(),
+					PriorStoreSpaceService.totalSpace(spaces, i), PriorStoreSpaceService.usableSpace(spaces, i));
+		}
+
+		long[] histogram = new long[unassignedTimeHistogram.length()];
+		for (int i = 0; i < histogram.length; ++i) {
+			histogram[i] = unassignedTimeHistogram.get(i);
+		}
+
+		return new NodePriorStoreStats(node, psEnv.getMigrationThreshold(), psEnv.getPriorStoreMaxThreshold(), pathStats,
+				priorPlacements.count(), fallbackPlacements.count(), largeMergePlacements.count(), nonPriorPlacements.count(),
+				queuedShards.count(), activeShards.count(), migratedShards.count(), failedShards.count(), migratedFiles.count(),
+				copiedBytes.count(), reusedBytes.count(), copyTimeInMillis.count(),
+				recoveredShards.count(), recoveryRecoveredBytes.count(), recoveryReusedBytes.count(), UNASSIGNED_TIME_BUCKETS, histogram, unassignedTimeInMillis.count(),
+				throttleBackoffs.count(), (long) (throttleMbPerSec * 1024 * 1024), throttleConcurrency);
+	}
+}
@@ -0,0 +1,875 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.google.common.base.Charsets;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RateLimiter;
+import org.apache.lucene.util.CollectionUtil;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.store.support.AbstractIndexStore;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Copies shard files between node paths, throttled by a node wide rate limiter like es's store throttling, and by
+ * a rate limiter per device at {@link #DEVICE_RATE_RATIO} of its calibrated throughput(see {@link PriorStoreCalibrator}).
+ * Data is copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}(sendfile/copy_file_range
+ * on linux) and the footer of the copy is compared with the source's; with {@link #VERIFY_CHECKSUM} the data is read into
+ * user space instead and its checksum is verified against the lucene footer.
+ * With {@link #COPY_DROP_CACHE} the copied ranges are dropped from the page cache as the copy goes(see {@link PageCache}).
+ * Every transfer is recorded in the {@link MigrationJournal} of its source path, which is replayed when the node starts.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreTransferEngine {
+
+	/**
+	 * max bytes per second of all the migrations on this node, 0 means no limit
+	 */
+	public static final String MIGRATION_MAX_BYTES_PER_SEC = "store.prior.migration.max_bytes_per_sec";
+	public static final ByteSizeValue DEFAULT_MIGRATION_MAX_BYTES_PER_SEC = new ByteSizeValue(100, ByteSizeUnit.MB);
+
+	/**
+	 * copies from / to a device are limited to this ratio of its calibrated throughput(the slower of read and write),
+	 * leaving the rest to the searches and indexing. 0 means no limit per device.
+	 */
+	public static final String DEVICE_RATE_RATIO = "store.prior.migration.device_rate_ratio";
+	public static final double DEFAULT_DEVICE_RATE_RATIO = 0.5;
+
+	/**
+	 * bytes transferred per transferTo call, also the granularity of throttling
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * transferTo calls in a row which may copy nothing before the copy fails
+	 */
+	static final int MAX_STALLED_TRANSFERS = 3;
+
+	/**
+	 * how many files can be copied from one device simultaneously
+	 */
+	public static final String COPY_CONCURRENT_PER_DEVICE = "store.prior.migration.copy.concurrent_per_device";
+	public static final int DEFAULT_COPY_CONCURRENT_PER_DEVICE = 2;
+
+	/**
+	 * whether to verify lucene footer checksums while copying, it reads the data into user space instead of using transferTo
+	 */
+	public static final String VERIFY_CHECKSUM = "store.prior.migration.verify_checksum";
+	public static final boolean DEFAULT_VERIFY_CHECKSUM = false;
+
+	/**
+	 * drop the pages of the source and target files from the page cache after every {@link #DROP_CACHE_INTERVAL} bytes
+	 * copied, so that a migration doesn't evict the working set of the other shards
+	 */
+	public static final String COPY_DROP_CACHE = "store.prior.migration.copy.drop_cache";
+	static final int DROP_CACHE_INTERVAL = 16 * CHUNK_SIZE;
+
+	/**
+	 * Files are copied into this folder under the target shard path, and only moved to their final place once the
+	 * whole shard has been copied. If a migration fails, what's there is reused by the next attempt.
+	 */
+	public static final String STAGING_FOLDER_NAME = "_prior_migration";
+	static final String MANIFEST_FILE_NAME = "manifest";
+	static final String MANIFEST_VERIFIED = "crc";
+	static final String MANIFEST_UNVERIFIED = "footer";
+	static final String TEMP_FILE_PREFIX = "upgrade_";
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final PriorStoreEnvironment psEnv;
+	/**
+	 * null if there's no limit, its rate is adjusted by {@link MigrationThrottle} between 0 and {@link #maxMbPerSec}
+	 */
+	private final RateLimiter.SimpleRateLimiter rateLimiter;
+	private final double maxMbPerSec;
+	private final double deviceRateRatio;
+	private final ConcurrentMap<FileStore, RateLimiter.SimpleRateLimiter> deviceLimiters = ConcurrentCollections.newConcurrentMap();
+	private final int concurrentPerDevice;
+	private final boolean verifyChecksum;
+	private final boolean dropCache;
+	private final boolean prewarmPromotions;
+	private final ConcurrentMap<FileStore, Semaphore> copySlots = ConcurrentCollections.newConcurrentMap();
+	private final ExecutorService executor;
+	/**
+	 * by the path of the source node path
+	 */
+	private final Map<Path, MigrationJournal> journals = new HashMap<>();
+
+	@Inject
+	public PriorStoreTransferEngine(Settings settings, PriorStoreEnvironment psEnv) {
+		this.psEnv = psEnv;
+		deviceRateRatio = settings.getAsDouble(DEVICE_RATE_RATIO, DEFAULT_DEVICE_RATE_RATIO);
+		concurrentPerDevice = settings.getAsInt(COPY_CONCURRENT_PER_DEVICE, DEFAULT_COPY_CONCURRENT_PER_DEVICE);
+		verifyChecksum = settings.getAsBoolean(VERIFY_CHECKSUM, DEFAULT_VERIFY_CHECKSUM);
+		dropCache = settings.getAsBoolean(COPY_DROP_CACHE, true) && PageCache.available();
+		prewarmPromotions = settings.getAsBoolean(PriorStoreMigrationScheduler.PROMOTION_PREWARM, false) && PageCache.available();
+		// bounded by the device slots, so there are never more than concurrentPerDevice * devices copies running
+		executor = EsExecutors.newScaling(0, Math.max(1, concurrentPerDevice * psEnv.getNodePaths().length), 5, TimeUnit.MINUTES,
+				EsExecutors.daemonThreadFactory(settings, "prior_store_copier"));
+		ByteSizeValue maxBytesPerSec = settings.getAsBytesSize(MIGRATION_MAX_BYTES_PER_SEC, DEFAULT_MIGRATION_MAX_BYTES_PER_SEC);
+		maxMbPerSec = maxBytesPerSec.mbFrac();
+		if (maxBytesPerSec.bytes() <= 0)
+			rateLimiter = null;
+		else
+			rateLimiter = new RateLimiter.SimpleRateLimiter(maxMbPerSec);
+		for (NodeEnvironment.NodePath nodePath : psEnv.getNodePaths()) {
+			try {
+				int replayed = MigrationJournal.replay(nodePath.path);
+				if (replayed > 0)
+					logger.info("finished or rolled back [{}] interrupted migrations from {}", replayed, nodePath.path);
+			} catch (IOException e) {
+				logger.warn("failed to replay the migration journal of {}", e, nodePath.path);
+			}
+			journals.put(nodePath.path, new MigrationJournal(nodePath.path));
+		}
+		cleanupTempFiles(psEnv.getNodePaths());
+	}
+
+	/**
+	 * stop the copies and close the journals, the transfers still open are replayed when the node starts again
+	 */
+	void close() {
+		executor.shutdownNow();
+		for (MigrationJournal journal : journals.values()) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * @return {@link #MIGRATION_MAX_BYTES_PER_SEC} in mb, 0 or less if there's no limit
+	 */
+	public double maxMbPerSec() {
+		return maxMbPerSec;
+	}
+
+	/**
+	 * @return the current node wide rate, 0 if there's no limit
+	 */
+	public double mbPerSec() {
+		return null == rateLimiter ? 0 : rateLimiter.getMbPerSec();
+	}
+
+	/**
+	 * change the node wide rate of the copies, capped by {@link #MIGRATION_MAX_BYTES_PER_SEC}. Copies in progress pick
+	 * it up at their next chunk. Does nothing if there's no limit.
+	 */
+	public void setMbPerSec(double mbPerSec) {
+		if (null != rateLimiter)
+			rateLimiter.setMbPerSec(Math.min(maxMbPerSec, mbPerSec));
+	}
+
+	/**
+	 * @param source      the node path which the shard is moved from
+	 * @param target      the node path which the shard is moved to
+	 * @param targetShard the shard path which the shard is moved to
+	 */
+	public ShardTransfer newTransfer(ShardId shardId, NodeEnvironment.NodePath source, NodeEnvironment.NodePath target, Path targetShard) throws IOException {
+		Semaphore deviceSlots = copySlots.get(source.fileStore);
+		if (null == deviceSlots) {
+			Semaphore newSlots = new Semaphore(concurrentPerDevice);
+			deviceSlots = copySlots.putIfAbsent(source.fileStore, newSlots);
+			if (null == deviceSlots)
+				deviceSlots = newSlots;
+		}
+		List<RateLimiter> limiters = new ArrayList<>(3);
+		if (null != rateLimiter)
+			limiters.add(rateLimiter);
+		RateLimiter sourceLimiter = deviceLimiter(source);
+		if (null != sourceLimiter)
+			limiters.add(sourceLimiter);
+		RateLimiter targetLimiter = deviceLimiter(target);
+		if (null != targetLimiter && targetLimiter != sourceLimiter)
+			limiters.add(targetLimiter);
+		return new ShardTransfer(shardId, deviceSlots, limiters.toArray(new RateLimiter[limiters.size()]), targetShard.resolve(STAGING_FOLDER_NAME),
+				prewarmPromotions && isPromotion(source, target), journals.get(source.path));
+	}
+
+	/**
+	 * delete what an earlier attempt staged on a target which the shard won't be moved to anymore
+	 *
+	 * @param targetShard the shard path which the shard was being moved to
+	 */
+	public void discardStaging(ShardId shardId, Path targetShard) {
+		Path stagingDir = targetShard.resolve(STAGING_FOLDER_NAME);
+		if (!Files.exists(stagingDir))
+			return;
+		logger.debug("{} discarding the staged files in [{}]", shardId, stagingDir);
+		FileSystemUtils.deleteRecursively(stagingDir.toFile());
+	}
+
+	/**
+	 * @return whether the target is in a faster tier than the source
+	 */
+	private boolean isPromotion(NodeEnvironment.NodePath source, NodeEnvironment.NodePath target) {
+		StorageTier sourceTier = psEnv.tierOf(source), targetTier = psEnv.tierOf(target);
+		return null != targetTier && (null == sourceTier || targetTier.getLevel() < sourceTier.getLevel());
+	}
+
+	/**
+	 * @return the rate limiter of the device by its latest calibration, null if it's not calibrated or disabled
+	 */
+	private RateLimiter deviceLimiter(NodeEnvironment.NodePath nodePath) {
+		PathCalibration calibration = psEnv.getCalibration(nodePath);
+		if (deviceRateRatio <= 0 || null == calibration)
+			return null;
+		long bytesPerSec = Math.min(calibration.getReadBytesPerSec(), calibration.getWriteBytesPerSec());
+		if (bytesPerSec <= 0)
+			return null;
+		double mbPerSec = bytesPerSec * deviceRateRatio / 1024 / 1024;
+		RateLimiter.SimpleRateLimiter limiter = deviceLimiters.get(nodePath.fileStore);
+		if (null == limiter) {
+			RateLimiter.SimpleRateLimiter newLimiter = new RateLimiter.SimpleRateLimiter(mbPerSec);
+			limiter = deviceLimiters.putIfAbsent(nodePath.fileStore, newLimiter);
+			if (null == limiter)
+				return newLimiter;
+		}
+		if (limiter.getMbPerSec() != mbPerSec)
+			limiter.setMbPerSec(mbPerSec); // re-calibrated
+		return limiter;
+	}
+
+	/**
+	 * @return estimated millis to move the bytes between the node paths, by their calibrations and the rate limits,
+	 * -1 if unknown
+	 */
+	public long estimateMillis(NodeEnvironment.NodePath source, NodeEnvironment.NodePath target, long bytes) {
+		PathCalibration sourceCalibration = psEnv.getCalibration(source), targetCalibration = psEnv.getCalibration(target);
+		long millis = PathCalibration.estimateMillis(sourceCalibration, targetCalibration, bytes);
+		if (millis < 0)
+			return -1;
+		if (deviceRateRatio > 0)
+			millis = (long) (millis / deviceRateRatio);
+		if (null != rateLimiter)
+			millis = Math.max(millis, (long) (bytes * 1000 / (rateLimiter.getMbPerSec() * 1024 * 1024)));
+		return millis;
+	}
+
+	/**
+	 * delete the temp files left by interrupted copies, it is called once the node starts(before any shard is allocated)
+	 */
+	private void cleanupTempFiles(NodeEnvironment.NodePath[] nodePaths) {
+		for (NodeEnvironment.NodePath nodePath : nodePaths) {
+			if (!Files.isDirectory(nodePath.indicesPath))
+				continue; // a fresh node
+			try {
+				for (Path indexPath : FileSystemUtils.files(nodePath.indicesPath)) {
+					for (Path shardPath : FileSystemUtils.files(indexPath)) {
+						if (!Files.isDirectory(shardPath))
+							continue;
+						for (Path folder : new Path[]{shardPath.resolve(AbstractIndexStore.INDEX_FOLDER_NAME), shardPath.resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME),
+								shardPath.resolve(STAGING_FOLDER_NAME).resolve(AbstractIndexStore.INDEX_FOLDER_NAME),
+								shardPath.resolve(STAGING_FOLDER_NAME).resolve(AbstractIndexStore.TRANSLOG_FOLDER_NAME)}) {
+							if (!Files.isDirectory(folder))
+								continue;
+							try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, TEMP_FILE_PREFIX + "*")) {
+								for (Path tempFile : stream) {
+									logger.debug("deleting leftover temp file [{}]", tempFile);
+									Files.deleteIfExists(tempFile);
+								}
+							}
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.warn("failed to clean up temp files in {}", e, nodePath.indicesPath);
+			}
+		}
+	}
+
+	/**
+	 * copy the file's content to target, pausing by the rate limiter after every chunk. If checksum verification is
+	 * enabled the data is checksummed in the same pass, and a mismatch against the lucene footer fails the copy.
+	 * Otherwise only the footer of the copy is read back and compared with the source's, which catches a short or
+	 * misplaced copy but not corrupted data.
+	 * Both files are dropped from the page cache along the way if {@link #COPY_DROP_CACHE}, see {@link CacheDropper}.
+	 *
+	 * @param footerChecksum the checksum in the source's footer, null if the file has no footer
+	 * @return checksum of the copied data(excluding the footer checksum itself) if verified, otherwise the footer checksum or -1
+	 */
+	long copy(Path source, Path target, Long footerChecksum, RateLimiter[] limiters) throws IOException {
+		long checksum;
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			if (verifyChecksum) {
+				checksum = copyAndChecksum(source, in, out, size, null == footerChecksum ? size : size - 8, limiters);
+				if (null != footerChecksum && checksum != footerChecksum)
+					throw new CorruptIndexException("checksum failed (hardware problem?) : expected=" + Long.toHexString(footerChecksum) +
+							" actual=" + Long.toHexString(checksum) + " (resource=" + source + ")");
+			} else {
+				transfer(source, in, out, size, limiters);
+				checksum = null == footerChecksum ? -1 : footerChecksum;
+			}
+		}
+		if (!verifyChecksum && null != footerChecksum) {
+			Long copiedChecksum = readFooterChecksum(target);
+			if (!footerChecksum.equals(copiedChecksum))
+				throw new CorruptIndexException("footer of the copy doesn't match : expected=" + Long.toHexString(footerChecksum) +
+						" actual=" + (null == copiedChecksum ? "none" : Long.toHexString(copiedChecksum)) + " (resource=" + source + ")");
+		}
+		Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+		return checksum;
+	}
+
+	void transfer(Path source, FileChannel in, FileChannel out, long size, RateLimiter[] limiters) throws IOException {
+		long position = 0;
+		int stalled = 0;
+		CacheDropper dropper = dropCache ? new CacheDropper(in, out) : null;
+		while (position < size) {
+			long transferred = in.transferTo(position, Math.min(CHUNK_SIZE, size - position), out);
+			if (transferred <= 0) {
+				if (in.size() < size)
+					throw new IOException("file [" + source + "] was truncated while copying, expected " + size + " bytes, copied " + position);
+				if (++stalled >= MAX_STALLED_TRANSFERS)
+					throw new IOException("copy of [" + source + "] made no progress at " + position + " of " + size + " bytes");
+				continue;
+			}
+			stalled = 0;
+			position += transferred;
+			pause(limiters, transferred);
+			if (null != dropper)
+				dropper.copied(position);
+		}
+		if (null != dropper)
+			dropper.done(position);
+	}
+
+	/**
+	 * Drops the copied ranges of the source and target from the page cache every {@link #DROP_CACHE_INTERVAL} bytes.
+	 * The source pages are clean and dropped right away. The writeback of the target's is started without waiting,
+	 * and they are dropped one interval later, when the writeback is mostly done, so the copy is never stalled by a
+	 * fsync. Without sync_file_range only the source is dropped, the target pages are left to the kernel.
+	 */
+	private static final class CacheDropper {
+		private final FileChannel in;
+		private final FileChannel out;
+		/**
+		 * the target pages before it have been dropped
+		 */
+		private long dropped;
+		/**
+		 * the source pages before it have been dropped, and the writeback of the target's started
+		 */
+		private long written;
+
+		CacheDropper(FileChannel in, FileChannel out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		void copied(long position) {
+			if (position - written >= DROP_CACHE_INTERVAL)
+				advance(position);
+		}
+
+		void done(long position) {
+			advance(position);
+			dropWritten();
+		}
+
+		private void advance(long position) {
+			dropWritten();
+			PageCache.dontNeed(in, written, position - written);
+			PageCache.startWriteback(out, written, position - written);
+			written = position;
+		}
+
+		private void dropWritten() {
+			if (written > dropped && PageCache.writeback(out, dropped, written - dropped))
+				PageCache.dontNeed(out, dropped, written - dropped);
+			dropped = written;
+		}
+	}
+
+	/**
+	 * @param checksumEnd only bytes before this position are checksummed
+	 */
+	private long copyAndChecksum(Path source, FileChannel in, FileChannel out, long size, long checksumEnd, RateLimiter[] limiters) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		long position = 0;
+		CacheDropper dropper = dropCache ? new CacheDropper(in, out) : null;
+		while (position < size) {
+			buffer.clear();
+			int read = in.read(buffer, position);
+			if (read < 0)
+				throw new IOException("file [" + source + "] was truncated while copying, expected " + size + " bytes, copied " + position);
+			if (position < checksumEnd)
+				crc.update(buffer.array(), 0, (int) Math.min(read, checksumEnd - position));
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			position += read;
+			pause(limiters, read);
+			if (null != dropper)
+				dropper.copied(position);
+		}
+		if (null != dropper)
+			dropper.done(position);
+		return crc.getValue();
+	}
+
+	private static void pause(RateLimiter[] limiters, long bytes) {
+		for (RateLimiter limiter : limiters) {
+			limiter.pause(bytes);
+		}
+	}
+
+	/**
+	 * @return the checksum in the lucene codec footer of the file, null if the file doesn't have one
+	 */
+	static Long readFooterChecksum(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = in.size();
+			if (size < CodecUtil.footerLength())
+				return null;
+			ByteBuffer footer = ByteBuffer.allocate(CodecUtil.footerLength());
+			while (footer.hasRemaining()) {
+				if (in.read(footer, size - CodecUtil.footerLength() + footer.position()) < 0)
+					return null;
+			}
+			footer.flip();
+			int magic = footer.getInt();
+			int algorithmId = footer.getInt();
+			long checksum = footer.getLong();
+			if (magic != CodecUtil.FOOTER_MAGIC || algorithmId != 0 || (checksum & 0xFFFFFFFF00000000L) != 0)
+				return null;
+			return checksum;
+		}
+	}
+
+	/**
+	 * one file to be copied into the staging folder
+	 */
+	class FileCopy {
+		/**
+		 * folder/name, the key in the manifest
+		 */
+		final String key;
+		final Path source;
+		final Path staged;
+		final Path target;
+		/**
+		 * size when the file was added
+		 */
+		final long size;
+		/**
+		 * bytes staged, copied or reused
+		 */
+		long length;
+		boolean reused;
+
+		FileCopy(String key, Path source, Path staged, Path target, long size) {
+			this.key = key;
+			this.source = source;
+			this.staged = staged;
+			this.target = target;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Moves the files of one shard. Files of all the added directories are copied into the staging folder in parallel
+	 * by {@link #copy()}, largest first so that the tail of the copy is short. In {@link #finish()} they are fsync'ed
+	 * and moved to their final places at once, and only then the sources are deleted.
+	 * <p/>
+	 * Every staged file is recorded in a manifest with its length and checksum, and whether the checksum was verified
+	 * over the copied data, so if the migration is retried after a failure, lucene files whose footer checksum matches
+	 * the manifest and the staged copy are not copied again. Entries which weren't verified are copied again if
+	 * {@link #VERIFY_CHECKSUM} is enabled.
+	 */
+	public class ShardTransfer {
+
+		private final ShardId shardId;
+		private final Semaphore deviceSlots;
+		private final RateLimiter[] limiters;
+		private final Path stagingDir;
+		private final Map<String, ManifestEntry> manifest;
+		private final List<FileCopy> pending = new ArrayList<>();
+		private final List<FileCopy> copied = new ArrayList<>();
+		private final List<Path> installed = new ArrayList<>();
+		private final Set<Path> targetDirs = new LinkedHashSet<>();
+		private Writer manifestWriter;
+		private long bytes;
+		private long reusedBytes;
+		private boolean synced;
+		/**
+		 * read the moved files into the page cache once they're in place
+		 */
+		private final boolean prewarm;
+		private final MigrationJournal journal;
+		private boolean ended;
+
+		ShardTransfer(ShardId shardId, Semaphore deviceSlots, RateLimiter[] limiters, Path stagingDir, boolean prewarm, MigrationJournal journal) throws IOException {
+			this.shardId = shardId;
+			this.prewarm = prewarm;
+			this.journal = journal;
+			this.deviceSlots = deviceSlots;
+			this.limiters = limiters;
+			this.stagingDir = stagingDir;
+			this.manifest = readManifest(stagingDir.resolve(MANIFEST_FILE_NAME));
+			journal.begin(stagingDir, shardId.toString());
+		}
+
+		/**
+		 * add the files of the source dir to this transfer
+		 */
+		public void addDir(Path sourceDir, Path targetDir) throws IOException {
+			if (!Files.exists(sourceDir))
+				return;
+			logger.debug("{} migrating from [{}] to [{}]", shardId, sourceDir, targetDir);
+			String folder = targetDir.getFileName().toString();
+			Path stagingFolder = stagingDir.resolve(folder);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir)) {
+				Files.createDirectories(targetDir);
+				Files.createDirectories(stagingFolder);
+				targetDirs.add(targetDir);
+				for (Path file : stream) {
+					String name = file.getFileName().toString();
+					if (IndexWriter.WRITE_LOCK_NAME.equals(name) || IndexFileNames.SEGMENTS_GEN.equals(name) || name.startsWith(TEMP_FILE_PREFIX) || Files.isDirectory(file)) {
+						continue; // skip write.lock, segments.gen and temp files
+					}
+					pending.add(new FileCopy(folder + '/' + name, file, stagingFolder.resolve(name), targetDir.resolve(name), Files.size(file)));
+				}
+			}
+		}
+
+		/**
+		 * copy all the added files, at most {@link #COPY_CONCURRENT_PER_DEVICE} files are copied from the same
+		 * source device at the same time (shared with other shards' transfers). Once a file fails, no more files are
+		 * submitted and the ones waiting for a thread are cancelled, the running ones are waited for.
+		 */
+		public void copy() throws IOException {
+			// large segment files(.cfs, .fdt, .doc ...) first
+			CollectionUtil.timSort(pending, new Comparator<FileCopy>() {
+				@Override
+				public int compare(FileCopy o1, FileCopy o2) {
+					return Long.compare(o2.size, o1.size);
+				}
+			});
+			List<Future<FileCopy>> futures = new ArrayList<>(pending.size());
+			List<AtomicBoolean> claims = new ArrayList<>(pending.size());
+			// set by the first copy which fails, no more files are submitted after it
+			final AtomicReference<Throwable> failed = new AtomicReference<>();
+			Throwable failure = null;
+			try {
+				for (final FileCopy fileCopy : pending) {
+					deviceSlots.acquire();
+					if (null != failed.get()) {
+						deviceSlots.release();
+						break;
+					}
+					// claimed by the copy when it starts, or by the cancellation below if it never started
+					final AtomicBoolean claim = new AtomicBoolean();
+					try {
+						futures.add(executor.submit(new Callable<FileCopy>() {
+							@Override
+							public FileCopy call() throws Exception {
+								if (!claim.compareAndSet(false, true))
+									return null; // cancelled
+								try {
+									stage(fileCopy);
+									return fileCopy;
+								} catch (Throwable t) {
+									failed.compareAndSet(null, t);
+									throw t;
+								} finally {
+									deviceSlots.release();
+								}
+							}
+						}));
+						claims.add(claim);
+					} catch (RejectedExecutionException e) {
+						deviceSlots.release();
+						throw e;
+					}
+				}
+			} catch (InterruptedException | RejectedExecutionException e) {
+				failure = e;
+			}
+			if (null != failure || null != failed.get()) {
+				// the copies which haven't started won't, their slots are given back here
+				for (int i = 0; i < futures.size(); ++i) {
+					if (claims.get(i).compareAndSet(false, true)) {
+						futures.get(i).cancel(false);
+						deviceSlots.release();
+					}
+				}
+			}
+			// wait for all the running copies, so that none of them are left running
+			for (int i = 0; i < futures.size(); ++i) {
+				Future<FileCopy> future = futures.get(i);
+				try {
+					FileCopy done = future.get();
+					if (null == done)
+						continue;
+					if (done.reused)
+						reusedBytes += done.length;
+					else
+						bytes += done.length;
+					copied.add(done);
+				} catch (CancellationException e) {
+					// never started
+				} catch (ExecutionException e) {
+					if (null == failure)
+						failure = e.getCause();
+				} catch (InterruptedException e) {
+					if (null == failure)
+						failure = e;
+				}
+			}
+			if (null == failure)
+				failure = failed.get();
+			pending.clear();
+			closeManifest();
+			if (null != failure) {
+				if (failure instanceof IOException)
+					throw (IOException) failure;
+				throw new IOException("failed to copy files of " + shardId, failure);
+			}
+		}
+
+		/**
+		 * copy one file into the staging folder, unless a verified copy of it is already there
+		 */
+		private void stage(FileCopy fileCopy) throws IOException {
+			Long footerChecksum = readFooterChecksum(fileCopy.source);
+			ManifestEntry entry = manifest.get(fileCopy.key);
+			// an entry whose data wasn't verified is only trusted as far as the current setting asks
+			if (null != footerChecksum && null != entry && (entry.verified || !verifyChecksum) && entry.length == fileCopy.size
+					&& entry.checksum == footerChecksum && Files.exists(fileCopy.staged) && Files.size(fileCopy.staged) == fileCopy.size
+					&& footerChecksum.equals(readFooterChecksum(fileCopy.staged))) {
+				logger.trace("{} reuse staged file [{}]", shardId, fileCopy.key);
+				fileCopy.reused = true;
+				fileCopy.length = fileCopy.size;
+				return;
+			}
+
+			logger.trace("{} move file [{}] size: [{}]", shardId, fileCopy.key, fileCopy.size);
+			/* We are pessimistic and do a copy first to the other path and then and atomic move to rename it such that
+			in the worst case the file exists twice but is never lost or half written.*/
+			final Path tempFile = Files.createTempFile(fileCopy.staged.getParent(), TEMP_FILE_PREFIX, "_" + fileCopy.source.getFileName().toString());
+			boolean success = false;
+			try {
+				long checksum = PriorStoreTransferEngine.this.copy(fileCopy.source, tempFile, footerChecksum, limiters);
+				fileCopy.length = Files.size(tempFile);
+				Files.move(tempFile, fileCopy.staged, StandardCopyOption.ATOMIC_MOVE); // we are on the same FS - this must work otherwise all bets are off
+				appendManifest(fileCopy.key, fileCopy.length, checksum, verifyChecksum);
+				success = true;
+			} finally {
+				if (!success)
+					Files.deleteIfExists(tempFile);
+			}
+		}
+
+		/**
+		 * @param verified whether the checksum was computed over the copied data, rather than read from the footer
+		 */
+		private synchronized void appendManifest(String key, long length, long checksum, boolean verified) throws IOException {
+			if (null == manifestWriter)
+				manifestWriter = Files.newBufferedWriter(stagingDir.resolve(MANIFEST_FILE_NAME), Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			manifestWriter.write(key + '\t' + length + '\t' + Long.toHexString(checksum) + '\t' + (verified ? MANIFEST_VERIFIED : MANIFEST_UNVERIFIED) + '\n');
+			manifestWriter.flush();
+		}
+
+		private synchronized void closeManifest() {
+			IOUtils.closeWhileHandlingException(manifestWriter);
+			manifestWriter = null;
+		}
+
+		/**
+		 * fsync all the staged files and move them to the target directories, then delete the source files
+		 */
+		public void finish() throws IOException {
+			logger.trace("{} fsync files", shardId);
+			for (FileCopy fileCopy : copied) {
+				logger.trace("{} syncing [{}]", shardId, fileCopy.key);
+				IOUtils.fsync(fileCopy.staged.toFile(), false);
+			}
+			List<Path[]> files = new ArrayList<>(copied.size());
+			for (FileCopy fileCopy : copied) {
+				files.add(new Path[]{fileCopy.source, fileCopy.staged, fileCopy.target});
+			}
+			// from now on a crash is finished forward on startup
+			journal.staged(stagingDir, files);
+			for (FileCopy fileCopy : copied) {
+				Files.move(fileCopy.staged, fileCopy.target, StandardCopyOption.ATOMIC_MOVE);
+				installed.add(fileCopy.target);
+			}
+			for (Path targetDir : targetDirs) {
+				logger.trace("{} syncing directory [{}]", shardId, targetDir);
+				IOUtils.fsync(targetDir.toFile(), true);
+			}
+			synced = true;
+			journal.synced(stagingDir);
+			// the targets are durable now, it is safe to drop the sources
+			for (FileCopy fileCopy : copied) {
+				Files.deleteIfExists(fileCopy.source);
+			}
+			FileSystemUtils.deleteRecursively(stagingDir.toFile());
+			end(true);
+			if (prewarm)
+				prewarm();
+		}
+
+		private void end(boolean done) {
+			if (ended)
+				return;
+			ended = true;
+			try {
+				journal.end(stagingDir, done);
+			} catch (IOException e) {
+				logger.warn("{} failed to record the end of the migration in the journal", e, shardId);
+			}
+		}
+
+		/**
+		 * ask the kernel to read the moved files ahead, so the first queries after the shard is reopened don't wait
+		 * for the disk. It returns right away, the reads happen in the background.
+		 */
+		private void prewarm() {
+			for (Path path : installed) {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					PageCache.willNeed(channel, 0, channel.size());
+				} catch (IOException e) {
+					logger.debug("{} failed to prewarm [{}]", e, shardId, path);
+				}
+			}
+			logger.debug("{} prewarming [{}] files", shardId, installed.size());
+		}
+
+		/**
+		 * Make sure no file exists in both source and target after a failure: the files which have already been moved
+		 * to the target are moved back into the staging folder, so the next attempt reuses them along with the other
+		 * staged copies. Once they have all been fsync'ed, the remaining sources are deleted instead.
+		 */
+		public void abort() {
+			closeManifest();
+			if (synced) {
+				for (FileCopy fileCopy : copied) {
+					try {
+						Files.deleteIfExists(fileCopy.source);
+					} catch (IOException e) {
+						logger.warn("{} failed to delete [{}] after aborting migration", e, shardId, fileCopy.source);
+					}
+				}
+				FileSystemUtils.deleteRecursively(stagingDir.toFile());
+			} else {
+				for (FileCopy fileCopy : copied) {
+					if (installed.contains(fileCopy.target))
+						unstage(fileCopy);
+				}
+			}
+			installed.clear();
+			copied.clear();
+			end(false);
+		}
+
+		/**
+		 * move an installed file back to where it was staged, the reverse of {@link #finish()}
+		 */
+		private void unstage(FileCopy fileCopy) {
+			try {
+				Files.move(fileCopy.target, fileCopy.staged, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				logger.warn("{} failed to move [{}] back to staging after aborting migration", e, shardId, fileCopy.target);
+				try {
+					Files.deleteIfExists(fileCopy.target);
+				} catch (IOException deleteException) {
+					logger.warn("{} failed to delete [{}] after aborting migration", deleteException, shardId, fileCopy.target);
+				}
+			}
+		}
+
+		/**
+		 * @return bytes actually copied
+		 */
+		public long bytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return bytes reused from a previous attempt
+		 */
+		public long reusedBytes() {
+			return reusedBytes;
+		}
+
+		public int files() {
+			return copied.size();
+		}
+	}
+
+	static class ManifestEntry {
+		final long length;
+		final long checksum;
+		/**
+		 * the checksum was computed over the copied data, otherwise it was only read from the footer
+		 */
+		final boolean verified;
+
+		ManifestEntry(long length, long checksum, boolean verified) {
+			this.length = length;
+			this.checksum = checksum;
+			this.verified = verified;
+		}
+	}
+
+	private Map<String, ManifestEntry> readManifest(Path manifestFile) throws IOException {
+		Map<String, ManifestEntry> manifest = new HashMap<>();
+		if (!Files.exists(manifestFile))
+			return manifest;
+		for (String line : Files.readAllLines(manifestFile, Charsets.UTF_8)) {
+			String[] parts = line.split("\t");
+			if (parts.length != 4 || (!MANIFEST_VERIFIED.equals(parts[3]) && !MANIFEST_UNVERIFIED.equals(parts[3])))
+				continue; // the last line might be half written
+			try {
+				manifest.put(parts[0], new ManifestEntry(Long.parseLong(parts[1]), Long.parseLong(parts[2], 16), MANIFEST_VERIFIED.equals(parts[3])));
+			} catch (NumberFormatException e) {
+				logger.debug("ignore broken manifest line [{}] in {}", line, manifestFile);
+			}
+		}
+		return manifest;
+	}
+}
@@ -0,0 +1,213 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps all the files of a segment in one delegate of the shard. The distributor isn't told the name of the file it
+ * chooses a directory for, so the choice is corrected when the file is created: the first file of a segment pins the
+ * segment to the directory it's placed in, and later files of the segment placed elsewhere are redirected to that
+ * directory. Redirected files are still served through the directory they were placed in, since that's where
+ * {@link org.elasticsearch.index.store.DistributorDirectory} looks for them; once the shard is reopened they are found
+ * where they really are.
+ * <p/>
+ * Only segment files(_N*) are pinned. A pin is evicted once the segment's .si file or all the files it placed are deleted.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+class SegmentAffinityDirectory extends FilterDirectory {
+
+	private final int index;
+	private final Affinity affinity;
+
+	SegmentAffinityDirectory(Directory in, int index, Affinity affinity) {
+		super(in);
+		this.index = index;
+		this.affinity = affinity;
+	}
+
+	/**
+	 * @return the directory which really holds the file
+	 */
+	private Directory dirOf(String name) {
+		Redirect redirect = affinity.redirects.get(name);
+		if (null != redirect && redirect.from == index)
+			return affinity.dirs[redirect.to];
+		return in;
+	}
+
+	@Override
+	public IndexOutput createOutput(String name, IOContext context) throws IOException {
+		String segment = segmentName(name);
+		if (null == segment)
+			return in.createOutput(name, context);
+		Pin pin = affinity.pins.get(segment);
+		if (null == pin) {
+			Pin newPin = new Pin(existingDir(segment));
+			pin = affinity.pins.putIfAbsent(segment, newPin);
+			if (null == pin)
+				pin = newPin;
+		}
+		if (pin.dir == index || !affinity.placer.hasRoom(pin.dir))
+			return in.createOutput(name, context);
+		IndexOutput output = affinity.dirs[pin.dir].createOutput(name, context);
+		pin.files.add(name);
+		affinity.redirects.put(name, new Redirect(index, pin.dir));
+		return output;
+	}
+
+	/**
+	 * @return the directory which has the .si file of the segment, e.g. the shard is reopened, or this one if none
+	 */
+	private int existingDir(String segment) throws IOException {
+		String si = segment + ".si";
+		for (int i = 0; i < affinity.dirs.length; ++i) {
+			if (slowFileExists(affinity.dirs[i], si))
+				return i;
+		}
+		return index;
+	}
+
+	@Override
+	public void deleteFile(String name) throws IOException {
+		dirOf(name).deleteFile(name);
+		affinity.redirects.remove(name);
+		String segment = segmentName(name);
+		if (null == segment)
+			return;
+		Pin pin = affinity.pins.get(segment);
+		if (null != pin && (name.endsWith(".si") || (pin.files.remove(name) && pin.files.isEmpty())))
+			affinity.pins.remove(segment, pin);
+	}
+
+	@Override
+	public String[] listAll() throws IOException {
+		Set<String> names = new LinkedHashSet<>();
+		for (String name : in.listAll()) {
+			Redirect redirect = affinity.redirects.get(name);
+			if (null == redirect || redirect.to != index)
+				names.add(name);
+		}
+		for (ConcurrentMap.Entry<String, Redirect> entry : affinity.redirects.entrySet()) {
+			if (entry.getValue().from == index)
+				names.add(entry.getKey());
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	@Deprecated
+	public boolean fileExists(String name) throws IOException {
+		return slowFileExists(dirOf(name), name);
+	}
+
+	/**
+	 * {@link Directory#fileExists} is deprecated, ask for the length instead
+	 */
+	private static boolean slowFileExists(Directory dir, String name) throws IOException {
+		try {
+			dir.fileLength(name);
+			return true;
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public long fileLength(String name) throws IOException {
+		return dirOf(name).fileLength(name);
+	}
+
+	@Override
+	public IndexInput openInput(String name, IOContext context) throws IOException {
+		return dirOf(name).openInput(name, context);
+	}
+
+	@Override
+	public void sync(Collection<String> names) throws IOException {
+		List<String> local = new ArrayList<>(names.size());
+		for (String name : names) {
+			Directory dir = dirOf(name);
+			if (dir == in)
+				local.add(name);
+			else
+				dir.sync(Collections.singletonList(name));
+		}
+		in.sync(local);
+	}
+
+	/**
+	 * @return the segment of a segment file, null for segments_N, write.lock and other files
+	 */
+	static String segmentName(String fileName) {
+		if (!fileName.startsWith("_"))
+			return null;
+		return IndexFileNames.parseSegmentName(fileName);
+	}
+
+	interface Placer {
+		/**
+		 * @return false if new files shouldn't be placed in the directory any more, e.g. it's above the max threshold
+		 */
+		boolean hasRoom(int dir);
+	}
+
+	/**
+	 * the pins of one shard, shared by all its directories
+	 */
+	static class Affinity {
+		/**
+		 * the wrapped delegates, by index
+		 */
+		final Directory[] dirs;
+		final Placer placer;
+		final ConcurrentMap<String, Pin> pins = ConcurrentCollections.newConcurrentMap();
+		/**
+		 * file -> where it was placed and where it really is
+		 */
+		final ConcurrentMap<String, Redirect> redirects = ConcurrentCollections.newConcurrentMap();
+
+		Affinity(Directory[] dirs, Placer placer) {
+			this.dirs = dirs;
+			this.placer = placer;
+		}
+	}
+
+	static class Pin {
+		final int dir;
+		/**
+		 * files redirected to the directory by this pin
+		 */
+		final Set<String> files = ConcurrentCollections.newConcurrentSet();
+
+		Pin(int dir) {
+			this.dir = dir;
+		}
+	}
+
+	static class Redirect {
+		final int from;
+		final int to;
+
+		Redirect(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.Arrays;
+
+/**
+ * Keeps an exponentially decayed access heat of every shard on this node, sampled from the search, get and indexing
+ * counters of the shards. On each sample:
+ * <pre>
+ *     heat = heat * 0.5^(interval / half_life) + (queries + gets) + indexing_weight * indexed docs
+ * </pre>
+ * where the counts are the deltas since the last sample. Shards which are not on this node any more (e.g. being
+ * migrated) keep decaying and are forgotten once they are cold.
+ * <p/>
+ * The heats are kept in parallel primitive arrays addressed by a shard -> slot map, which are compacted on every sample.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class ShardHeatService {
+
+	public static final String HEAT_SAMPLE_INTERVAL = "store.prior.heat.interval";
+	public static final TimeValue DEFAULT_HEAT_SAMPLE_INTERVAL = TimeValue.timeValueMinutes(1);
+	public static final String HEAT_HALF_LIFE = "store.prior.heat.half_life";
+	public static final TimeValue DEFAULT_HEAT_HALF_LIFE = TimeValue.timeValueHours(6);
+	/**
+	 * how much an indexed doc counts comparing to a query or a get, new docs go to new segments which are in the prior path anyway
+	 */
+	public static final String HEAT_INDEXING_WEIGHT = "store.prior.heat.indexing_weight";
+	public static final double DEFAULT_HEAT_INDEXING_WEIGHT = 0.1;
+
+	/**
+	 * shards not on this node whose heat decayed under this are removed
+	 */
+	private static final double FORGET_HEAT = 0.01;
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final IndicesService indicesService;
+	private final double decay;
+	private final double indexingWeight;
+
+	private ObjectIntOpenHashMap<ShardId> slots = new ObjectIntOpenHashMap<>();
+	private ShardId[] shardIds = new ShardId[0];
+	private double[] heats = new double[0];
+	private long[] lastReads = new long[0];
+	private long[] lastWrites = new long[0];
+	/**
+	 * when new writes were last seen, 0 if none since the shard was opened
+	 */
+	private long[] writeTimes = new long[0];
+
+	@Inject
+	public ShardHeatService(ThreadPool threadPool, IndicesService indicesService, Settings settings) {
+		this.indicesService = indicesService;
+		TimeValue interval = settings.getAsTime(HEAT_SAMPLE_INTERVAL, DEFAULT_HEAT_SAMPLE_INTERVAL);
+		TimeValue halfLife = settings.getAsTime(HEAT_HALF_LIFE, DEFAULT_HEAT_HALF_LIFE);
+		this.decay = Math.pow(0.5, interval.millis() * 1.0 / Math.max(1, halfLife.millis()));
+		this.indexingWeight = settings.getAsDouble(HEAT_INDEXING_WEIGHT, DEFAULT_HEAT_INDEXING_WEIGHT);
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch (Exception e) {
+					logger.warn("failed to sample shard heat", e);
+				}
+			}
+		}, interval);
+	}
+
+	/**
+	 * read the counters of all the local shards and decay the heats
+	 */
+	public synchronized void sample() {
+		int capacity = shardIds.length;
+		for (IndexService indexService : indicesService) {
+			capacity += indexService.shardIds().size();
+		}
+		ObjectIntOpenHashMap<ShardId> newSlots = new ObjectIntOpenHashMap<>(capacity);
+		ShardId[] newShardIds = new ShardId[capacity];
+		double[] newHeats = new double[capacity];
+		long[] newReads = new long[capacity];
+		long[] newWrites = new long[capacity];
+		long[] newWriteTimes = new long[capacity];
+		int size = 0;
+		long now = System.currentTimeMillis();
+
+		for (IndexService indexService : indicesService) {
+			for (IndexShard indexShard : indexService) {
+				long reads, writes;
+				try {
+					reads = indexShard.searchStats().getTotal().getQueryCount() + indexShard.getStats().getCount();
+					writes = indexShard.indexingStats().getTotal().getIndexCount();
+				} catch (Exception e) {
+					logger.trace("failed to read stats of {}", e, indexShard.shardId());
+					continue;
+				}
+				ShardId shardId = indexShard.shardId();
+				if (size == capacity)
+					break; // shards created since counted, sample them next time
+				double heat = 0;
+				long lastRead = 0, lastWrite = 0, writeTime = 0;
+				if (slots.containsKey(shardId)) {
+					int slot = slots.lget();
+					heat = heats[slot] * decay;
+					lastRead = lastReads[slot];
+					lastWrite = lastWrites[slot];
+					writeTime = writeTimes[slot];
+				}
+				if (writes > lastWrite || (writes < lastWrite && writes > 0))
+					writeTime = now;
+				// the counters start from 0 again once the shard is reopened
+				heat += (reads >= lastRead ? reads - lastRead : reads) + indexingWeight * (writes >= lastWrite ? writes - lastWrite : writes);
+				newSlots.put(shardId, size);
+				newShardIds[size] = shardId;
+				newHeats[size] = heat;
+				newReads[size] = reads;
+				newWrites[size] = writes;
+				newWriteTimes[size] = writeTime;
+				++size;
+			}
+		}
+
+		// shards which are gone, keep decaying
+		for (int slot = 0; slot < shardIds.length; ++slot) {
+			double heat = heats[slot] * decay;
+			if (newSlots.containsKey(shardIds[slot]) || heat < FORGET_HEAT)
+				continue;
+			newSlots.put(shardIds[slot], size);
+			newShardIds[size] = shardIds[slot];
+			newHeats[size] = heat;
+			// the shard will be reopened with new counters
+			newReads[size] = 0;
+			newWrites[size] = 0;
+			newWriteTimes[size] = writeTimes[slot];
+			++size;
+		}
+
+		slots = newSlots;
+		shardIds = Arrays.copyOf(newShardIds, size);
+		heats = Arrays.copyOf(newHeats, size);
+		lastReads = Arrays.copyOf(newReads, size);
+		lastWrites = Arrays.copyOf(newWrites, size);
+		writeTimes = Arrays.copyOf(newWriteTimes, size);
+	}
+
+	/**
+	 * @return the decayed heat of the shard, 0 if it's unknown
+	 */
+	public synchronized double heat(ShardId shardId) {
+		if (slots.containsKey(shardId))
+			return heats[slots.lget()];
+		return 0;
+	}
+
+	/**
+	 * @return millis since the last write to the shard was seen, -1 if the shard hasn't been sampled yet. A shard
+	 * not written since it was opened is taken as written at 0.
+	 */
+	public synchronized long millisSinceLastWrite(ShardId shardId) {
+		if (!slots.containsKey(shardId))
+			return -1;
+		return System.currentTimeMillis() - writeTimes[slots.lget()];
+	}
+}
@@ -0,0 +1,102 @@
+package com.yy.elasticsearch.priorstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses the shards of a migration round out of the ranked candidates of a {@link MigrationPolicy}, a bounded 0/1
+ * knapsack: among the first candidates, the set whose bytes land between the target and the budget(the target plus
+ * the allowed overshoot) with the least cost: the downtime, i.e. the time the shards are offline being copied plus a
+ * fixed cost per shard, plus a penalty for every position a shard is ranked after the first, so the order of the
+ * policy(e.g. coldest or oldest first) still counts. Ties go to the set ranked higher. If no set reaches the target,
+ * the one closest to it. If no candidate fits in the budget at all, the
+ * smallest one is moved alone, so that a round always makes progress.
+ * <p/>
+ * Sizes are rounded up to {@link #RESOLUTION} units of the budget, which keeps the table small and never lets the
+ * chosen bytes exceed the budget.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+final class ShardSelector {
+
+	static final int RESOLUTION = 1000;
+
+	private ShardSelector() {
+	}
+
+	/**
+	 * @param candidates by rank, only the ones which can be moved now
+	 * @param downtimes  millis each candidate would be offline
+	 * @param rankPenalty millis added to the cost of a candidate for every position it's ranked after the first
+	 * @return the chosen candidates, in the order of the ranking
+	 */
+	static List<MigrationInfo.Shard> select(List<MigrationInfo.Shard> candidates, long[] downtimes, long rankPenalty, long target, long budget) {
+		if (candidates.isEmpty() || target <= 0)
+			return Collections.emptyList();
+		budget = Math.max(budget, target);
+		long unit = Math.max(1, (budget + RESOLUTION - 1) / RESOLUTION);
+		int capacity = (int) (budget / unit);
+		int targetUnits = (int) Math.min(capacity, target / unit);
+
+		int n = candidates.size();
+		// cost[c]: least cost of a set weighing exactly c units, -1 if none. ranks[c]: sum of its ranks
+		long[] cost = new long[capacity + 1];
+		long[] ranks = new long[capacity + 1];
+		Arrays.fill(cost, -1);
+		cost[0] = 0;
+		boolean[][] taken = new boolean[n][];
+		int smallest = -1;
+		for (int i = 0; i < n; ++i) {
+			long size = candidates.get(i).getSize();
+			if (smallest < 0 || size < candidates.get(smallest).getSize())
+				smallest = i;
+			taken[i] = new boolean[capacity + 1];
+			long weight = (size + unit - 1) / unit;
+			if (weight > capacity)
+				continue;
+			int w = (int) Math.max(1, weight);
+			for (int c = capacity; c >= w; --c) {
+				if (cost[c - w] < 0)
+					continue;
+				long with = cost[c - w] + downtimes[i] + i * rankPenalty;
+				if (isBetter(with, ranks[c - w] + i, cost[c], ranks[c])) {
+					cost[c] = with;
+					ranks[c] = ranks[c - w] + i;
+					taken[i][c] = true;
+				}
+			}
+		}
+
+		int best = -1;
+		for (int c = Math.max(1, targetUnits); c <= capacity; ++c) {
+			if (cost[c] >= 0 && (best < 0 || isBetter(cost[c], ranks[c], cost[best], ranks[best])))
+				best = c;
+		}
+		if (best < 0) {
+			for (int c = targetUnits - 1; c > 0; --c) {
+				if (cost[c] >= 0) {
+					best = c;
+					break;
+				}
+			}
+		}
+		if (best <= 0)
+			return Collections.singletonList(candidates.get(smallest));
+
+		List<MigrationInfo.Shard> chosen = new ArrayList<>();
+		for (int i = n - 1, c = best; i >= 0 && c > 0; --i) {
+			if (taken[i][c]) {
+				chosen.add(candidates.get(i));
+				c -= (int) Math.max(1, (candidates.get(i).getSize() + unit - 1) / unit);
+			}
+		}
+		Collections.reverse(chosen);
+		return chosen;
+	}
+
+	private static boolean isBetter(long cost, long ranks, long otherCost, long otherRanks) {
+		return otherCost < 0 || cost < otherCost || (cost == otherCost && ranks < otherRanks);
+	}
+}
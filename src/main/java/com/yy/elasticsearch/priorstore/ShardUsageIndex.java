@@ -0,0 +1,415 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.carrotsearch.hppc.ObjectLongOpenHashMap;
+import com.google.common.primitives.Ints;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maintains the size of every shard on every node path, so that migration policies don't have to walk
+ * the whole data path on each schedule.
+ * <p/>
+ * A shard is measured once(by listing its own shard directories) when its store is opened, and from then on
+ * {@link PriorStoreDistributor} adds the length of every file it writes once the file is closed, and subtracts the
+ * length of every file it deletes. Shards changed behind the directories(e.g. moved by a migration) are marked dirty
+ * and re-measured when sizes are requested. A full scan of all the node paths runs every {@link #RECONCILE_INTERVAL}
+ * in the background as a backstop, e.g. for closed indices or translog growth.
+ * <p/>
+ * The files being written are left out of a measurement, their length is added once they are closed. A measurement is
+ * only kept if no file of the shard was opened, closed or deleted on that path while it was being listed, so that a
+ * file isn't counted twice or left short.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class ShardUsageIndex {
+
+	public static final String RECONCILE_INTERVAL = "store.prior.usage.reconcile.interval";
+	public static final TimeValue DEFAULT_RECONCILE_INTERVAL = TimeValue.timeValueHours(6);
+
+	private final ESLogger logger = Loggers.getLogger(getClass());
+	private final NodeEnvironment.NodePath[] nodePaths;
+	private final ConcurrentMap<ShardId, ShardUsage> shards = ConcurrentCollections.newConcurrentMap();
+
+	@Inject
+	public ShardUsageIndex(final ThreadPool threadPool, PriorStoreEnvironment psEnv, IndicesService indicesService, Settings settings) {
+		this.nodePaths = psEnv.getNodePaths();
+
+		indicesService.indicesLifecycle().addListener(new IndicesLifecycle.Listener() {
+			@Override
+			public void afterIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+				ShardUsage usage = shards.get(shardId);
+				if (null != usage)
+					usage.tracked = false;
+			}
+
+			@Override
+			public void afterIndexShardDeleted(ShardId shardId, Settings indexSettings) {
+				shards.remove(shardId);
+			}
+
+			@Override
+			public void afterIndexDeleted(Index index, Settings indexSettings) {
+				for (Iterator<ShardId> it = shards.keySet().iterator(); it.hasNext(); ) {
+					if (it.next().index().equals(index))
+						it.remove();
+				}
+			}
+		});
+
+		final Runnable reconcileRunnable = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconcile();
+				} catch (Exception e) {
+					logger.warn("failed to reconcile shard usage", e);
+				}
+			}
+		};
+		threadPool.generic().execute(reconcileRunnable);
+		// never walk the data paths on the scheduler thread
+		threadPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				threadPool.generic().execute(reconcileRunnable);
+			}
+		}, settings.getAsTime(RECONCILE_INTERVAL, DEFAULT_RECONCILE_INTERVAL));
+	}
+
+	/**
+	 * register a shard whose store is being opened and measure it, nothing is written to it yet
+	 */
+	public ShardUsage register(ShardId shardId) {
+		ShardUsage usage = getOrCreate(shardId);
+		usage.tracked = true;
+		usage.dirty = true;
+		measure(usage);
+		return usage;
+	}
+
+	public void markDirty(ShardId shardId) {
+		ShardUsage usage = shards.get(shardId);
+		if (null != usage)
+			usage.dirty = true;
+	}
+
+	/**
+	 * @return index name -> bytes the index takes on the given node path, indices without any data there are excluded
+	 */
+	public ObjectLongOpenHashMap<String> indicesSize(NodeEnvironment.NodePath nodePath) {
+		int slot = slotOf(nodePath);
+		ObjectLongOpenHashMap<String> indicesSize = new ObjectLongOpenHashMap<>();
+		if (slot < 0)
+			return indicesSize;
+		for (ShardUsage usage : shards.values()) {
+			if (usage.dirty)
+				measure(usage);
+			long size = usage.size(slot);
+			if (size > 0)
+				indicesSize.putOrAdd(usage.shardId.index().name(), size, size);
+		}
+		return indicesSize;
+	}
+
+	/**
+	 * @return shard -> bytes the shard takes on the given node path, shards without any data there are excluded
+	 */
+	public ObjectLongOpenHashMap<ShardId> shardsSize(NodeEnvironment.NodePath nodePath) {
+		int slot = slotOf(nodePath);
+		ObjectLongOpenHashMap<ShardId> shardsSize = new ObjectLongOpenHashMap<>();
+		if (slot < 0)
+			return shardsSize;
+		for (ShardUsage usage : shards.values()) {
+			if (usage.dirty)
+				measure(usage);
+			long size = usage.size(slot);
+			if (size > 0)
+				shardsSize.put(usage.shardId, size);
+		}
+		return shardsSize;
+	}
+
+	/**
+	 * @return bytes of the given shard on the given node path
+	 */
+	public long shardSize(ShardId shardId, NodeEnvironment.NodePath nodePath) {
+		int slot = slotOf(nodePath);
+		ShardUsage usage = shards.get(shardId);
+		if (slot < 0 || null == usage)
+			return 0;
+		if (usage.dirty)
+			measure(usage);
+		return usage.size(slot);
+	}
+
+	/**
+	 * scan all the node paths and overwrite the maintained sizes
+	 */
+	public void reconcile() throws IOException {
+		long start = System.currentTimeMillis();
+		for (int slot = 0; slot < nodePaths.length; ++slot) {
+			Map<ShardUsage, Long> versions = new HashMap<>();
+			Map<ShardId, Set<String>> writing = new HashMap<>();
+			for (ShardUsage usage : shards.values()) {
+				versions.put(usage, usage.version(slot));
+				writing.put(usage.shardId, usage.writing(slot));
+			}
+			Map<ShardId, Long> scanned = scan(nodePaths[slot], writing);
+			for (ShardUsage usage : shards.values()) {
+				Long size = scanned.get(usage.shardId);
+				Long version = versions.get(usage);
+				// registered during the scan, it's measured by the registration
+				if (null != version)
+					usage.set(slot, null == size ? 0 : size, version);
+			}
+			for (Map.Entry<ShardId, Long> entry : scanned.entrySet()) {
+				if (!shards.containsKey(entry.getKey())) {
+					ShardUsage usage = getOrCreate(entry.getKey());
+					usage.set(slot, entry.getValue(), usage.version(slot));
+				}
+			}
+		}
+		for (Iterator<ShardUsage> it = shards.values().iterator(); it.hasNext(); ) {
+			ShardUsage usage = it.next();
+			if (!usage.dirty && !usage.tracked && usage.isEmpty())
+				it.remove();
+		}
+		logger.debug("reconciled usage of {} shards, took [{}]", shards.size(), TimeValue.timeValueMillis(System.currentTimeMillis() - start));
+	}
+
+	private ShardUsage getOrCreate(ShardId shardId) {
+		ShardUsage usage = shards.get(shardId);
+		if (null == usage) {
+			ShardUsage newUsage = new ShardUsage(shardId, nodePaths.length);
+			usage = shards.putIfAbsent(shardId, newUsage);
+			if (null == usage)
+				usage = newUsage;
+		}
+		return usage;
+	}
+
+	private int slotOf(NodeEnvironment.NodePath nodePath) {
+		for (int i = 0; i < nodePaths.length; ++i) {
+			if (nodePaths[i] == nodePath || nodePaths[i].path.equals(nodePath.path))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return slot of the node path the location is in, -1 if none
+	 */
+	public int slotOf(Path location) {
+		for (int i = 0; i < nodePaths.length; ++i) {
+			if (location.startsWith(nodePaths[i].path))
+				return i;
+		}
+		return -1;
+	}
+
+	private void measure(ShardUsage usage) {
+		// clear it before measuring, so that a shard marked dirty during the measurement will be measured again
+		usage.dirty = false;
+		for (int slot = 0; slot < nodePaths.length; ++slot) {
+			Path shardPath = nodePaths[slot].indicesPath.resolve(usage.shardId.index().name()).resolve(String.valueOf(usage.shardId.id()));
+			long version = usage.version(slot);
+			try {
+				if (!usage.set(slot, sizeOf(shardPath, usage.writing(slot)), version))
+					usage.dirty = true;
+			} catch (IOException e) {
+				logger.debug("failed to measure {} in {}", e, usage.shardId, shardPath);
+				usage.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * @param writing names of the files being written, which are left out
+	 */
+	private static long sizeOf(Path path, final Set<String> writing) throws IOException {
+		if (!Files.isDirectory(path))
+			return 0;
+		final long[] size = new long[]{0};
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() && !writing.contains(file.getFileName().toString()))
+					size[0] += attrs.size();
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size[0];
+	}
+
+	/**
+	 * walk through the whole node path
+	 *
+	 * @return shard -> bytes of the shard on the node path
+	 */
+	static Map<ShardId, Long> scan(NodeEnvironment.NodePath nodePath) throws IOException {
+		return scan(nodePath, Collections.<ShardId, Set<String>>emptyMap());
+	}
+
+	/**
+	 * @param writing shard -> names of its files being written, which are left out
+	 */
+	private static Map<ShardId, Long> scan(NodeEnvironment.NodePath nodePath, Map<ShardId, Set<String>> writing) throws IOException {
+		final Map<ShardId, Long> sizes = new HashMap<>();
+		if (!Files.isDirectory(nodePath.indicesPath))
+			return sizes;
+		try (DirectoryStream<Path> indices = Files.newDirectoryStream(nodePath.indicesPath)) {
+			for (Path indexPath : indices) {
+				if (!Files.isDirectory(indexPath))
+					continue;
+				String index = indexPath.getFileName().toString();
+				try (DirectoryStream<Path> shardPaths = Files.newDirectoryStream(indexPath)) {
+					for (Path shardPath : shardPaths) {
+						Integer id = Ints.tryParse(shardPath.getFileName().toString());
+						if (null == id || !Files.isDirectory(shardPath))
+							continue;
+						ShardId shardId = new ShardId(index, id);
+						Set<String> files = writing.get(shardId);
+						sizes.put(shardId, sizeOf(shardPath, null == files ? Collections.<String>emptySet() : files));
+					}
+				}
+			}
+		}
+		return sizes;
+	}
+
+	public static class ShardUsage {
+		final ShardId shardId;
+		/**
+		 * bytes of the shard on each node path, indexed by the slot of the node path, guarded by this
+		 */
+		private final long[] sizes;
+		/**
+		 * names of the files being written on each node path, guarded by this
+		 */
+		private final List<Set<String>> writing;
+		/**
+		 * bumped on every change of each node path, guarded by this
+		 */
+		private final long[] versions;
+		volatile boolean dirty;
+		/**
+		 * the store of the shard is open, and its directories report the changes
+		 */
+		volatile boolean tracked;
+
+		ShardUsage(ShardId shardId, int slots) {
+			this.shardId = shardId;
+			this.sizes = new long[slots];
+			this.writing = new ArrayList<>(slots);
+			for (int i = 0; i < slots; ++i) {
+				writing.add(new HashSet<String>());
+			}
+			this.versions = new long[slots];
+		}
+
+		public void markDirty() {
+			dirty = true;
+		}
+
+		synchronized long size(int slot) {
+			return sizes[slot];
+		}
+
+		synchronized long version(int slot) {
+			return versions[slot];
+		}
+
+		/**
+		 * @return names of the files being written on the node path, to be left out of a measurement
+		 */
+		synchronized Set<String> writing(int slot) {
+			return new HashSet<>(writing.get(slot));
+		}
+
+		/**
+		 * overwrite the size by a measurement, which leaves out the files being written
+		 *
+		 * @param version of the node path when the measurement started
+		 * @return false if the shard changed on the node path meanwhile, the measurement is dropped
+		 */
+		synchronized boolean set(int slot, long size, long version) {
+			if (versions[slot] != version)
+				return false;
+			sizes[slot] = size;
+			return true;
+		}
+
+		/**
+		 * a file starts being written on the node path
+		 */
+		public synchronized void opened(int slot, String name) {
+			if (slot < 0)
+				return;
+			writing.get(slot).add(name);
+			versions[slot]++;
+		}
+
+		/**
+		 * a file of the given length has been written on the node path
+		 */
+		public synchronized void closed(int slot, String name, long length) {
+			if (slot < 0)
+				return;
+			writing.get(slot).remove(name);
+			sizes[slot] += length;
+			versions[slot]++;
+		}
+
+		/**
+		 * a file of the given length has been deleted from the node path
+		 */
+		public synchronized void deleted(int slot, long length) {
+			if (slot < 0)
+				return;
+			sizes[slot] = Math.max(0, sizes[slot] - length);
+			versions[slot]++;
+		}
+
+		synchronized boolean isEmpty() {
+			for (long size : sizes) {
+				if (size != 0)
+					return false;
+			}
+			return true;
+		}
+	}
+}
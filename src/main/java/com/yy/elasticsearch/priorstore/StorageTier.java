@@ -0,0 +1,76 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.env.NodeEnvironment;
+
+/**
+ * One level of the storage hierarchy, e.g. NVMe / SSD. New files land in the fastest tier which has room, and each
+ * tier migrates down to the next one once it's above its migration threshold. The paths in no tier form the bottom
+ * tier, which is never migrated out of.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class StorageTier {
+
+	private final String name;
+	private final int level;
+	private final NodeEnvironment.NodePath[] paths;
+	private final double maxThreshold;
+	private final double migrationThreshold;
+	private final Class<? extends MigrationPolicy> policy;
+
+	public StorageTier(String name, int level, NodeEnvironment.NodePath[] paths, double maxThreshold, double migrationThreshold,
+					   Class<? extends MigrationPolicy> policy) {
+		this.name = name;
+		this.level = level;
+		this.paths = paths;
+		this.maxThreshold = maxThreshold;
+		this.migrationThreshold = migrationThreshold;
+		this.policy = policy;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return 0 for the fastest tier
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public NodeEnvironment.NodePath[] getPaths() {
+		return paths;
+	}
+
+	/**
+	 * @return new files aren't placed in the paths of the tier above this usage
+	 */
+	public double getMaxThreshold() {
+		return maxThreshold;
+	}
+
+	/**
+	 * @return shards are migrated down to the next tier once a path of the tier is above this usage
+	 */
+	public double getMigrationThreshold() {
+		return migrationThreshold;
+	}
+
+	public Class<? extends MigrationPolicy> getPolicy() {
+		return policy;
+	}
+
+	public boolean contains(NodeEnvironment.NodePath nodePath) {
+		for (NodeEnvironment.NodePath path : paths) {
+			if (path == nodePath)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "tier[" + name + "]";
+	}
+}
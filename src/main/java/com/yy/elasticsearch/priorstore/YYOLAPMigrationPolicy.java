@@ -1,15 +1,14 @@
 package com.yy.elasticsearch.priorstore;
 
+import com.carrotsearch.hppc.ObjectLongOpenHashMap;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectLongCursor;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 /**
@@ -21,10 +20,19 @@ public class YYOLAPMigrationPolicy implements MigrationPolicy {
 	public static final String MIGRATION_NONPARTION_THRESHOLD = "store.prior.migration.policy.yyolap.nonpartition.threshold";
 
 	private final Settings settings;
+	private final ShardUsageIndex usageIndex;
 
 	@Inject
-	public YYOLAPMigrationPolicy(Settings settings) {
+	public YYOLAPMigrationPolicy(Settings settings, ShardUsageIndex usageIndex) {
 		this.settings = settings;
+		this.usageIndex = usageIndex;
+	}
+
+	/**
+	 * without a {@link ShardUsageIndex}, the node path will be scanned on every call
+	 */
+	YYOLAPMigrationPolicy(Settings settings) {
+		this(settings, null);
 	}
 
 	@Override
@@ -32,46 +40,21 @@ public class YYOLAPMigrationPolicy implements MigrationPolicy {
 		PriorityQueue<YYOLAPIndex> pq;
 		final PriorityQueue<YYOLAPIndex> ptPQ = new PriorityQueue<>();
 		final Set<String> nonPtIndices = new HashSet<>();
-		final Map<String, Long> indicesSize = new HashMap<>();
-		final int[] depth = new int[]{0};
-		final String[] curIndex = new String[]{""};
-
-		Files.walkFileTree(nodePath.indicesPath, new FileVisitor<Path>() {
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-				if (depth[0] == 1) {
-					curIndex[0] = dir.getFileName().toString();
-					indicesSize.put(curIndex[0], 0L);
-					if (dir.getFileName().toString().indexOf('@') != -1) {
-						String[] pair = dir.getFileName().toString().split("@");
-						ptPQ.offer(new YYOLAPIndex(pair[0], pair[1]));
-					} else {
-						nonPtIndices.add(dir.getFileName().toString());
-					}
-				}
-				++depth[0];
-				return FileVisitResult.CONTINUE;
-			}
-
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-				if (attrs.isRegularFile()) {
-					indicesSize.put(curIndex[0], indicesSize.get(curIndex[0]) + attrs.size());
-				}
-				return FileVisitResult.CONTINUE;
-			}
-
-			@Override
-			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-				return FileVisitResult.CONTINUE;
-			}
+		final ObjectLongOpenHashMap<ShardId> shardsSize = shardsSize(nodePath);
+		final ObjectLongOpenHashMap<String> indicesSize = new ObjectLongOpenHashMap<>();
+		for (ObjectLongCursor<ShardId> cursor : shardsSize) {
+			indicesSize.putOrAdd(cursor.key.index().name(), cursor.value, cursor.value);
+		}
 
-			@Override
-			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-				--depth[0];
-				return FileVisitResult.CONTINUE;
+		for (ObjectCursor<String> cursor : indicesSize.keys()) {
+			String index = cursor.value;
+			if (index.indexOf('@') != -1) {
+				String[] pair = index.split("@");
+				ptPQ.offer(new YYOLAPIndex(pair[0], pair[1]));
+			} else {
+				nonPtIndices.add(index);
 			}
-		});
+		}
 
 		double mgPer = settings.getAsDouble(MIGRATION_PER, 0.1);
 		double nonPartitionThres = settings.getAsDouble(MIGRATION_NONPARTION_THRESHOLD, 0.2);
@@ -84,16 +67,7 @@ public class YYOLAPMigrationPolicy implements MigrationPolicy {
 			pq = new PriorityQueue<>(11, new Comparator<YYOLAPIndex>() {
 				@Override
 				public int compare(YYOLAPIndex index1, YYOLAPIndex index2) {
-					if (indicesSize.containsKey(index1.toString())) {
-						if (indicesSize.containsKey(index2.toString())) {
-							return indicesSize.get(index1.toString()).compareTo(indicesSize.get(index2.toString())) * -1;
-						}
-						return 1;
-					} else if (indicesSize.containsKey(index2.toString())) {
-						return -1;
-					} else {
-						return 0;
-					}
+					return Long.compare(indicesSize.get(index2.toString()), indicesSize.get(index1.toString()));
 				}
 			});
 			for (String nonPtIndex : nonPtIndices) {
@@ -103,22 +77,26 @@ public class YYOLAPMigrationPolicy implements MigrationPolicy {
 			pq = ptPQ;
 		}
 
-		Set<String> mgIndices = new HashSet<>();
-		long curSize = 0;
+		// 按索引的顺序排列所有分片, 具体迁移哪些分片由 ShardSelector 按目标大小决定
+		Map<String, List<MigrationInfo.Shard>> shardsByIndex = MigrationInfo.shardsByIndex(shardsSize);
+		MigrationInfo mgInfo = new MigrationInfo();
 		while (!pq.isEmpty()) {
-			YYOLAPIndex index = pq.poll();
-			mgIndices.add(index.toString());
-			curSize += indicesSize.get(index.toString());
-			if (curSize >= migrationSize)
-				break;
+			mgInfo.addShards(shardsByIndex.get(pq.poll().toString()));
 		}
-
-		MigrationInfo mgInfo = new MigrationInfo();
-		mgInfo.setIndices(mgIndices);
-		mgInfo.setSize(curSize);
+		mgInfo.setTarget(migrationSize);
 		return mgInfo;
 	}
 
+	private ObjectLongOpenHashMap<ShardId> shardsSize(NodeEnvironment.NodePath nodePath) throws IOException {
+		if (null != usageIndex)
+			return usageIndex.shardsSize(nodePath);
+		ObjectLongOpenHashMap<ShardId> shardsSize = new ObjectLongOpenHashMap<>();
+		for (Map.Entry<ShardId, Long> entry : ShardUsageIndex.scan(nodePath).entrySet()) {
+			shardsSize.put(entry.getKey(), entry.getValue());
+		}
+		return shardsSize;
+	}
+
 	static class YYOLAPIndex implements Comparable<YYOLAPIndex> {
 		final String partition;
 		final String baseIndex;
@@ -0,0 +1,254 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import com.yy.elasticsearch.priorstore.PathCalibration;
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+/**
+ * What the next migration round of one node would move, with the calibration of its data paths.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class NodePriorStorePlan extends NodeOperationResponse implements ToXContent {
+
+	private String[] paths;
+	/**
+	 * indexed like paths, null if not calibrated
+	 */
+	private PathCalibration[] calibrations;
+	private PathPlan[] plans;
+
+	NodePriorStorePlan() {
+	}
+
+	public NodePriorStorePlan(DiscoveryNode node, String[] paths, PathCalibration[] calibrations, PathPlan[] plans) {
+		super(node);
+		this.paths = paths;
+		this.calibrations = calibrations;
+		this.plans = plans;
+	}
+
+	public PathPlan[] getPlans() {
+		return plans;
+	}
+
+	public static NodePriorStorePlan readNodePlan(StreamInput in) throws IOException {
+		NodePriorStorePlan plan = new NodePriorStorePlan();
+		plan.readFrom(in);
+		return plan;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		paths = in.readStringArray();
+		calibrations = new PathCalibration[paths.length];
+		for (int i = 0; i < paths.length; ++i) {
+			if (in.readBoolean())
+				calibrations[i] = PathCalibration.readPathCalibration(in);
+		}
+		plans = new PathPlan[in.readVInt()];
+		for (int i = 0; i < plans.length; ++i) {
+			plans[i] = new PathPlan();
+			plans[i].readFrom(in);
+		}
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeStringArray(paths);
+		for (PathCalibration calibration : calibrations) {
+			out.writeBoolean(null != calibration);
+			if (null != calibration)
+				calibration.writeTo(out);
+		}
+		out.writeVInt(plans.length);
+		for (PathPlan plan : plans) {
+			plan.writeTo(out);
+		}
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("name", getNode().name());
+		builder.field("transport_address", getNode().address().toString());
+		builder.field("host", getNode().getHostName());
+
+		builder.startObject("calibrations");
+		for (int i = 0; i < paths.length; ++i) {
+			if (null == calibrations[i])
+				builder.nullField(paths[i]);
+			else
+				calibrations[i].toXContent(builder.field(paths[i]), params);
+		}
+		builder.endObject();
+
+		builder.startArray("plans");
+		for (PathPlan plan : plans) {
+			plan.toXContent(builder);
+		}
+		builder.endArray();
+		return builder;
+	}
+
+	/**
+	 * shards to be moved out of one prior path
+	 */
+	public static class PathPlan implements Streamable {
+		private String path;
+		private double usedRatio;
+		private boolean aboveMigrationThreshold;
+		private boolean migrating;
+		private ShardPlan[] shards;
+		private long estimatedMillis;
+
+		PathPlan() {
+		}
+
+		/**
+		 * @param migrating       whether shards are still being moved out of it, a round skips such paths
+		 * @param estimatedMillis to move all the shards, -1 if unknown
+		 */
+		public PathPlan(String path, double usedRatio, boolean aboveMigrationThreshold, boolean migrating, ShardPlan[] shards, long estimatedMillis) {
+			this.path = path;
+			this.usedRatio = usedRatio;
+			this.aboveMigrationThreshold = aboveMigrationThreshold;
+			this.migrating = migrating;
+			this.shards = shards;
+			this.estimatedMillis = estimatedMillis;
+		}
+
+		public ShardPlan[] getShards() {
+			return shards;
+		}
+
+		public long getEstimatedMillis() {
+			return estimatedMillis;
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			path = in.readString();
+			usedRatio = in.readDouble();
+			aboveMigrationThreshold = in.readBoolean();
+			migrating = in.readBoolean();
+			shards = new ShardPlan[in.readVInt()];
+			for (int i = 0; i < shards.length; ++i) {
+				shards[i] = new ShardPlan();
+				shards[i].readFrom(in);
+			}
+			estimatedMillis = in.readLong();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			out.writeString(path);
+			out.writeDouble(usedRatio);
+			out.writeBoolean(aboveMigrationThreshold);
+			out.writeBoolean(migrating);
+			out.writeVInt(shards.length);
+			for (ShardPlan shard : shards) {
+				shard.writeTo(out);
+			}
+			out.writeLong(estimatedMillis);
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			long bytes = 0;
+			for (ShardPlan shard : shards) {
+				if (null == shard.skipped)
+					bytes += shard.bytes;
+			}
+			builder.startObject();
+			builder.field("path", path);
+			builder.field("used_ratio", usedRatio);
+			builder.field("above_migration_threshold", aboveMigrationThreshold);
+			builder.field("migrating", migrating);
+			builder.byteSizeField(Fields.TOTAL_IN_BYTES, Fields.TOTAL, bytes);
+			if (estimatedMillis >= 0)
+				builder.timeValueField(Fields.ESTIMATED_TIME_IN_MILLIS, Fields.ESTIMATED_TIME, estimatedMillis);
+			builder.startArray("shards");
+			for (ShardPlan shard : shards) {
+				shard.toXContent(builder);
+			}
+			builder.endArray();
+			builder.endObject();
+		}
+	}
+
+	public static class ShardPlan implements Streamable {
+		private ShardId shardId;
+		private long bytes;
+		private String target;
+		private long estimatedMillis;
+		private String skipped;
+
+		ShardPlan() {
+		}
+
+		/**
+		 * @param target          null if no target has room for it
+		 * @param estimatedMillis -1 if unknown
+		 * @param skipped         why the shard won't be moved, null if it will be
+		 */
+		public ShardPlan(ShardId shardId, long bytes, String target, long estimatedMillis, String skipped) {
+			this.shardId = shardId;
+			this.bytes = bytes;
+			this.target = target;
+			this.estimatedMillis = estimatedMillis;
+			this.skipped = skipped;
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			shardId = ShardId.readShardId(in);
+			bytes = in.readVLong();
+			target = in.readOptionalString();
+			estimatedMillis = in.readLong();
+			skipped = in.readOptionalString();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			shardId.writeTo(out);
+			out.writeVLong(bytes);
+			out.writeOptionalString(target);
+			out.writeLong(estimatedMillis);
+			out.writeOptionalString(skipped);
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			builder.startObject();
+			builder.field("index", shardId.index().name());
+			builder.field("shard", shardId.id());
+			builder.byteSizeField(Fields.SIZE_IN_BYTES, Fields.SIZE, bytes);
+			if (null != skipped) {
+				builder.field("skipped", skipped);
+			} else {
+				builder.field("target", target);
+				if (estimatedMillis >= 0)
+					builder.timeValueField(Fields.ESTIMATED_TIME_IN_MILLIS, Fields.ESTIMATED_TIME, estimatedMillis);
+			}
+			builder.endObject();
+		}
+	}
+
+	static final class Fields {
+		static final XContentBuilderString ESTIMATED_TIME = new XContentBuilderString("estimated_time");
+		static final XContentBuilderString ESTIMATED_TIME_IN_MILLIS = new XContentBuilderString("estimated_time_in_millis");
+		static final XContentBuilderString SIZE = new XContentBuilderString("size");
+		static final XContentBuilderString SIZE_IN_BYTES = new XContentBuilderString("size_in_bytes");
+		static final XContentBuilderString TOTAL = new XContentBuilderString("total");
+		static final XContentBuilderString TOTAL_IN_BYTES = new XContentBuilderString("total_in_bytes");
+	}
+}
@@ -0,0 +1,350 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Prior store stats of one node.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class NodePriorStoreStats extends NodeOperationResponse implements ToXContent {
+
+	private double migrationThreshold;
+	private double maxThreshold;
+	private PathStats[] paths;
+
+	private long priorPlacements;
+	private long fallbackPlacements;
+	private long largeMergePlacements;
+	private long nonPriorPlacements;
+
+	private long queuedShards;
+	private long activeShards;
+	private long migratedShards;
+	private long failedShards;
+	private long migratedFiles;
+	private long copiedBytes;
+	private long reusedBytes;
+	private long copyTimeInMillis;
+	private long recoveredShards;
+	private long recoveryRecoveredBytes;
+	private long recoveryReusedBytes;
+	private long[] unassignedTimeBuckets;
+	private long[] unassignedTimeHistogram;
+	private long unassignedTimeInMillis;
+	private long throttleBackoffs;
+	private long throttleBytesPerSec;
+	private int throttleConcurrency;
+
+	NodePriorStoreStats() {
+	}
+
+	public NodePriorStoreStats(DiscoveryNode node, double migrationThreshold, double maxThreshold, PathStats[] paths,
+							   long priorPlacements, long fallbackPlacements, long largeMergePlacements, long nonPriorPlacements,
+							   long queuedShards, long activeShards, long migratedShards, long failedShards, long migratedFiles,
+							   long copiedBytes, long reusedBytes, long copyTimeInMillis,
+							   long recoveredShards, long recoveryRecoveredBytes, long recoveryReusedBytes,
+							   long[] unassignedTimeBuckets, long[] unassignedTimeHistogram, long unassignedTimeInMillis,
+							   long throttleBackoffs, long throttleBytesPerSec, int throttleConcurrency) {
+		super(node);
+		this.migrationThreshold = migrationThreshold;
+		this.maxThreshold = maxThreshold;
+		this.paths = paths;
+		this.priorPlacements = priorPlacements;
+		this.fallbackPlacements = fallbackPlacements;
+		this.largeMergePlacements = largeMergePlacements;
+		this.nonPriorPlacements = nonPriorPlacements;
+		this.queuedShards = queuedShards;
+		this.activeShards = activeShards;
+		this.migratedShards = migratedShards;
+		this.failedShards = failedShards;
+		this.migratedFiles = migratedFiles;
+		this.copiedBytes = copiedBytes;
+		this.reusedBytes = reusedBytes;
+		this.copyTimeInMillis = copyTimeInMillis;
+		this.recoveredShards = recoveredShards;
+		this.recoveryRecoveredBytes = recoveryRecoveredBytes;
+		this.recoveryReusedBytes = recoveryReusedBytes;
+		this.unassignedTimeBuckets = unassignedTimeBuckets;
+		this.unassignedTimeHistogram = unassignedTimeHistogram;
+		this.unassignedTimeInMillis = unassignedTimeInMillis;
+		this.throttleBackoffs = throttleBackoffs;
+		this.throttleBytesPerSec = throttleBytesPerSec;
+		this.throttleConcurrency = throttleConcurrency;
+	}
+
+	public PathStats[] getPaths() {
+		return paths;
+	}
+
+	public long getMigratedShards() {
+		return migratedShards;
+	}
+
+	public long getFailedShards() {
+		return failedShards;
+	}
+
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	/**
+	 * @return bytes copied by the recoveries of the migrated shards, should be close to 0
+	 */
+	public long getRecoveryRecoveredBytes() {
+		return recoveryRecoveredBytes;
+	}
+
+	/**
+	 * @return average bytes per second while copying
+	 */
+	public long getCopyThroughput() {
+		return copyTimeInMillis <= 0 ? 0 : copiedBytes * 1000 / copyTimeInMillis;
+	}
+
+	public static NodePriorStoreStats readNodeStats(StreamInput in) throws IOException {
+		NodePriorStoreStats stats = new NodePriorStoreStats();
+		stats.readFrom(in);
+		return stats;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		migrationThreshold = in.readDouble();
+		maxThreshold = in.readDouble();
+		paths = new PathStats[in.readVInt()];
+		for (int i = 0; i < paths.length; ++i) {
+			paths[i] = new PathStats();
+			paths[i].readFrom(in);
+		}
+		priorPlacements = in.readVLong();
+		fallbackPlacements = in.readVLong();
+		largeMergePlacements = in.readVLong();
+		nonPriorPlacements = in.readVLong();
+		queuedShards = in.readVLong();
+		activeShards = in.readVLong();
+		migratedShards = in.readVLong();
+		failedShards = in.readVLong();
+		migratedFiles = in.readVLong();
+		copiedBytes = in.readVLong();
+		reusedBytes = in.readVLong();
+		copyTimeInMillis = in.readVLong();
+		recoveredShards = in.readVLong();
+		recoveryRecoveredBytes = in.readVLong();
+		recoveryReusedBytes = in.readVLong();
+		unassignedTimeBuckets = in.readLongArray();
+		unassignedTimeHistogram = in.readLongArray();
+		unassignedTimeInMillis = in.readVLong();
+		throttleBackoffs = in.readVLong();
+		throttleBytesPerSec = in.readVLong();
+		throttleConcurrency = in.readInt();
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeDouble(migrationThreshold);
+		out.writeDouble(maxThreshold);
+		out.writeVInt(paths.length);
+		for (PathStats path : paths) {
+			path.writeTo(out);
+		}
+		out.writeVLong(priorPlacements);
+		out.writeVLong(fallbackPlacements);
+		out.writeVLong(largeMergePlacements);
+		out.writeVLong(nonPriorPlacements);
+		out.writeVLong(queuedShards);
+		out.writeVLong(activeShards);
+		out.writeVLong(migratedShards);
+		out.writeVLong(failedShards);
+		out.writeVLong(migratedFiles);
+		out.writeVLong(copiedBytes);
+		out.writeVLong(reusedBytes);
+		out.writeVLong(copyTimeInMillis);
+		out.writeVLong(recoveredShards);
+		out.writeVLong(recoveryRecoveredBytes);
+		out.writeVLong(recoveryReusedBytes);
+		out.writeLongArray(unassignedTimeBuckets);
+		out.writeLongArray(unassignedTimeHistogram);
+		out.writeVLong(unassignedTimeInMillis);
+		out.writeVLong(throttleBackoffs);
+		out.writeVLong(throttleBytesPerSec);
+		out.writeInt(throttleConcurrency);
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("name", getNode().name());
+		builder.field("transport_address", getNode().address().toString());
+		builder.field("host", getNode().getHostName());
+
+		builder.startArray("paths");
+		for (PathStats path : paths) {
+			path.toXContent(builder);
+		}
+		builder.endArray();
+
+		builder.startObject("placements");
+		builder.field("prior", priorPlacements);
+		builder.field("fallback", fallbackPlacements);
+		builder.field("large_merge", largeMergePlacements);
+		builder.field("non_prior", nonPriorPlacements);
+		builder.endObject();
+
+		builder.startObject("migration");
+		builder.field("queued_shards", queuedShards);
+		builder.field("active_shards", activeShards);
+		builder.field("migrated_shards", migratedShards);
+		builder.field("failed_shards", failedShards);
+		builder.field("migrated_files", migratedFiles);
+		builder.byteSizeField(Fields.COPIED_IN_BYTES, Fields.COPIED, copiedBytes);
+		builder.byteSizeField(Fields.REUSED_IN_BYTES, Fields.REUSED, reusedBytes);
+		builder.timeValueField(Fields.COPY_TIME_IN_MILLIS, Fields.COPY_TIME, copyTimeInMillis);
+		builder.byteSizeField(Fields.COPY_THROUGHPUT_IN_BYTES_PER_SEC, Fields.COPY_THROUGHPUT_PER_SEC, getCopyThroughput());
+		builder.startObject("recovery");
+		builder.field("shards", recoveredShards);
+		builder.byteSizeField(Fields.RECOVERED_IN_BYTES, Fields.RECOVERED, recoveryRecoveredBytes);
+		builder.byteSizeField(Fields.REUSED_IN_BYTES, Fields.REUSED, recoveryReusedBytes);
+		builder.endObject();
+		if (throttleConcurrency >= 0) {
+			builder.startObject("throttle");
+			if (throttleBytesPerSec > 0)
+				builder.byteSizeField(Fields.RATE_IN_BYTES_PER_SEC, Fields.RATE_PER_SEC, throttleBytesPerSec);
+			builder.field("concurrent", throttleConcurrency);
+			builder.field("backoffs", throttleBackoffs);
+			builder.endObject();
+		}
+		builder.endObject();
+
+		builder.startObject("unassigned_time");
+		builder.timeValueField(Fields.TOTAL_IN_MILLIS, Fields.TOTAL, unassignedTimeInMillis);
+		builder.startArray("histogram");
+		for (int i = 0; i < unassignedTimeHistogram.length; ++i) {
+			builder.startObject();
+			if (i < unassignedTimeBuckets.length)
+				builder.field("lt", TimeValue.timeValueMillis(unassignedTimeBuckets[i]).toString());
+			else
+				builder.field("gte", TimeValue.timeValueMillis(unassignedTimeBuckets[unassignedTimeBuckets.length - 1]).toString());
+			builder.field("count", unassignedTimeHistogram[i]);
+			builder.endObject();
+		}
+		builder.endArray();
+		builder.endObject();
+		return builder;
+	}
+
+	public static class PathStats implements Streamable {
+		private String path;
+		private String tier;
+		private double migrationThreshold;
+		private double maxThreshold;
+		private long total;
+		private long usable;
+
+		PathStats() {
+		}
+
+		/**
+		 * @param tier null if the path is in no tier
+		 * @param migrationThreshold of the tier, the global one if it's in no tier
+		 * @param maxThreshold of the tier, the global one if it's in no tier
+		 */
+		public PathStats(String path, String tier, double migrationThreshold, double maxThreshold, long total, long usable) {
+			this.path = path;
+			this.tier = tier;
+			this.migrationThreshold = migrationThreshold;
+			this.maxThreshold = maxThreshold;
+			this.total = total;
+			this.usable = usable;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public boolean isPrior() {
+			return null != tier;
+		}
+
+		public String getTier() {
+			return tier;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public long getUsable() {
+			return usable;
+		}
+
+		public double getUsedRatio() {
+			return total <= 0 ? 0 : 1.0 - (usable * 1.0 / total);
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			path = in.readString();
+			tier = in.readOptionalString();
+			migrationThreshold = in.readDouble();
+			maxThreshold = in.readDouble();
+			total = in.readVLong();
+			usable = in.readVLong();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			out.writeString(path);
+			out.writeOptionalString(tier);
+			out.writeDouble(migrationThreshold);
+			out.writeDouble(maxThreshold);
+			out.writeVLong(total);
+			out.writeVLong(usable);
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			builder.startObject();
+			builder.field("path", path);
+			builder.field("prior", isPrior());
+			builder.field("tier", tier);
+			builder.byteSizeField(Fields.TOTAL_IN_BYTES, Fields.TOTAL, total);
+			builder.byteSizeField(Fields.USABLE_IN_BYTES, Fields.USABLE, usable);
+			builder.field("used_ratio", getUsedRatio());
+			builder.field("above_migration_threshold", getUsedRatio() > migrationThreshold);
+			builder.field("above_max_threshold", getUsedRatio() >= maxThreshold);
+			builder.endObject();
+		}
+	}
+
+	static final class Fields {
+		static final XContentBuilderString RATE_PER_SEC = new XContentBuilderString("rate_per_sec");
+		static final XContentBuilderString RATE_IN_BYTES_PER_SEC = new XContentBuilderString("rate_in_bytes_per_sec");
+		static final XContentBuilderString COPIED = new XContentBuilderString("copied");
+		static final XContentBuilderString COPIED_IN_BYTES = new XContentBuilderString("copied_in_bytes");
+		static final XContentBuilderString COPY_THROUGHPUT_IN_BYTES_PER_SEC = new XContentBuilderString("copy_throughput_in_bytes_per_sec");
+		static final XContentBuilderString COPY_THROUGHPUT_PER_SEC = new XContentBuilderString("copy_throughput_per_sec");
+		static final XContentBuilderString COPY_TIME = new XContentBuilderString("copy_time");
+		static final XContentBuilderString COPY_TIME_IN_MILLIS = new XContentBuilderString("copy_time_in_millis");
+		static final XContentBuilderString RECOVERED = new XContentBuilderString("recovered");
+		static final XContentBuilderString RECOVERED_IN_BYTES = new XContentBuilderString("recovered_in_bytes");
+		static final XContentBuilderString REUSED = new XContentBuilderString("reused");
+		static final XContentBuilderString REUSED_IN_BYTES = new XContentBuilderString("reused_in_bytes");
+		static final XContentBuilderString TOTAL = new XContentBuilderString("total");
+		static final XContentBuilderString TOTAL_IN_BYTES = new XContentBuilderString("total_in_bytes");
+		static final XContentBuilderString TOTAL_IN_MILLIS = new XContentBuilderString("total_in_millis");
+		static final XContentBuilderString USABLE = new XContentBuilderString("usable");
+		static final XContentBuilderString USABLE_IN_BYTES = new XContentBuilderString("usable_in_bytes");
+	}
+}
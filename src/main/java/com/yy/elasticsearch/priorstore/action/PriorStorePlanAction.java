@@ -0,0 +1,27 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStorePlanAction extends ClusterAction<PriorStorePlanRequest, PriorStorePlanResponse, PriorStorePlanRequestBuilder> {
+
+	public static final PriorStorePlanAction INSTANCE = new PriorStorePlanAction();
+	public static final String NAME = "cluster:monitor/prior_store/plan";
+
+	private PriorStorePlanAction() {
+		super(NAME);
+	}
+
+	@Override
+	public PriorStorePlanResponse newResponse() {
+		return new PriorStorePlanResponse();
+	}
+
+	@Override
+	public PriorStorePlanRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+		return new PriorStorePlanRequestBuilder(client);
+	}
+}
@@ -0,0 +1,50 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStorePlanRequest extends NodesOperationRequest<PriorStorePlanRequest> {
+
+	private boolean calibrate;
+
+	public PriorStorePlanRequest() {
+	}
+
+	/**
+	 * Get the migration plans of the nodes based on the nodes ids specified. If none are passed, plans
+	 * of all nodes will be returned.
+	 */
+	public PriorStorePlanRequest(String... nodesIds) {
+		super(nodesIds);
+	}
+
+	/**
+	 * measure the data paths again before planning
+	 */
+	public PriorStorePlanRequest calibrate(boolean calibrate) {
+		this.calibrate = calibrate;
+		return this;
+	}
+
+	public boolean calibrate() {
+		return calibrate;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		calibrate = in.readBoolean();
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(calibrate);
+	}
+}
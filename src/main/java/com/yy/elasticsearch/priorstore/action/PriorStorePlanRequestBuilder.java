@@ -0,0 +1,25 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStorePlanRequestBuilder extends NodesOperationRequestBuilder<PriorStorePlanRequest, PriorStorePlanResponse, PriorStorePlanRequestBuilder> {
+
+	public PriorStorePlanRequestBuilder(ClusterAdminClient client) {
+		super(client, new PriorStorePlanRequest());
+	}
+
+	public PriorStorePlanRequestBuilder setCalibrate(boolean calibrate) {
+		request.calibrate(calibrate);
+		return this;
+	}
+
+	@Override
+	protected void doExecute(ActionListener<PriorStorePlanResponse> listener) {
+		client.execute(PriorStorePlanAction.INSTANCE, request, listener);
+	}
+}
@@ -0,0 +1,27 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreStatsAction extends ClusterAction<PriorStoreStatsRequest, PriorStoreStatsResponse, PriorStoreStatsRequestBuilder> {
+
+	public static final PriorStoreStatsAction INSTANCE = new PriorStoreStatsAction();
+	public static final String NAME = "cluster:monitor/prior_store/stats";
+
+	private PriorStoreStatsAction() {
+		super(NAME);
+	}
+
+	@Override
+	public PriorStoreStatsResponse newResponse() {
+		return new PriorStoreStatsResponse();
+	}
+
+	@Override
+	public PriorStoreStatsRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+		return new PriorStoreStatsRequestBuilder(client);
+	}
+}
@@ -0,0 +1,20 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreStatsRequest extends NodesOperationRequest<PriorStoreStatsRequest> {
+
+	public PriorStoreStatsRequest() {
+	}
+
+	/**
+	 * Get prior store stats from nodes based on the nodes ids specified. If none are passed, stats
+	 * for all nodes will be returned.
+	 */
+	public PriorStoreStatsRequest(String... nodesIds) {
+		super(nodesIds);
+	}
+}
@@ -0,0 +1,20 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreStatsRequestBuilder extends NodesOperationRequestBuilder<PriorStoreStatsRequest, PriorStoreStatsResponse, PriorStoreStatsRequestBuilder> {
+
+	public PriorStoreStatsRequestBuilder(ClusterAdminClient client) {
+		super(client, new PriorStoreStatsRequest());
+	}
+
+	@Override
+	protected void doExecute(ActionListener<PriorStoreStatsResponse> listener) {
+		client.execute(PriorStoreStatsAction.INSTANCE, request, listener);
+	}
+}
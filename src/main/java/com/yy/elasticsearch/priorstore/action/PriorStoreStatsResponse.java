@@ -0,0 +1,54 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreStatsResponse extends NodesOperationResponse<NodePriorStoreStats> implements ToXContent {
+
+	PriorStoreStatsResponse() {
+	}
+
+	public PriorStoreStatsResponse(ClusterName clusterName, NodePriorStoreStats[] nodes) {
+		super(clusterName, nodes);
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		nodes = new NodePriorStoreStats[in.readVInt()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = NodePriorStoreStats.readNodeStats(in);
+		}
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeVInt(nodes.length);
+		for (NodePriorStoreStats node : nodes) {
+			node.writeTo(out);
+		}
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("cluster_name", getClusterName().value());
+		builder.startObject("nodes");
+		for (NodePriorStoreStats nodeStats : this) {
+			builder.startObject(nodeStats.getNode().id());
+			nodeStats.toXContent(builder, params);
+			builder.endObject();
+		}
+		builder.endObject();
+		return builder;
+	}
+}
@@ -0,0 +1,118 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import com.yy.elasticsearch.priorstore.PriorStoreCalibrator;
+import com.yy.elasticsearch.priorstore.PriorStoreMigrationScheduler;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class TransportPriorStorePlanAction extends TransportNodesOperationAction<PriorStorePlanRequest, PriorStorePlanResponse,
+		TransportPriorStorePlanAction.NodeRequest, NodePriorStorePlan> {
+
+	private final PriorStoreMigrationScheduler scheduler;
+	private final PriorStoreCalibrator calibrator;
+
+	@Inject
+	public TransportPriorStorePlanAction(Settings settings, ClusterName clusterName, ThreadPool threadPool, ClusterService clusterService,
+										 TransportService transportService, PriorStoreMigrationScheduler scheduler, PriorStoreCalibrator calibrator,
+										 ActionFilters actionFilters) {
+		super(settings, PriorStorePlanAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+		this.scheduler = scheduler;
+		this.calibrator = calibrator;
+	}
+
+	@Override
+	protected String executor() {
+		return ThreadPool.Names.MANAGEMENT;
+	}
+
+	@Override
+	protected PriorStorePlanRequest newRequest() {
+		return new PriorStorePlanRequest();
+	}
+
+	@Override
+	protected PriorStorePlanResponse newResponse(PriorStorePlanRequest request, AtomicReferenceArray responses) {
+		final List<NodePriorStorePlan> nodePlans = new ArrayList<>();
+		for (int i = 0; i < responses.length(); i++) {
+			Object resp = responses.get(i);
+			if (resp instanceof NodePriorStorePlan) {
+				nodePlans.add((NodePriorStorePlan) resp);
+			}
+		}
+		return new PriorStorePlanResponse(clusterName, nodePlans.toArray(new NodePriorStorePlan[nodePlans.size()]));
+	}
+
+	@Override
+	protected NodeRequest newNodeRequest() {
+		return new NodeRequest();
+	}
+
+	@Override
+	protected NodeRequest newNodeRequest(String nodeId, PriorStorePlanRequest request) {
+		return new NodeRequest(nodeId, request);
+	}
+
+	@Override
+	protected NodePriorStorePlan newNodeResponse() {
+		return new NodePriorStorePlan();
+	}
+
+	@Override
+	protected NodePriorStorePlan nodeOperation(NodeRequest request) throws ElasticsearchException {
+		if (request.calibrate)
+			calibrator.calibrate();
+		try {
+			return scheduler.plan(clusterService.localNode());
+		} catch (Exception e) {
+			throw new ElasticsearchException("failed to plan the migrations", e);
+		}
+	}
+
+	@Override
+	protected boolean accumulateExceptions() {
+		return false;
+	}
+
+	static class NodeRequest extends NodeOperationRequest {
+
+		boolean calibrate;
+
+		NodeRequest() {
+		}
+
+		NodeRequest(String nodeId, PriorStorePlanRequest request) {
+			super(request, nodeId);
+			calibrate = request.calibrate();
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			super.readFrom(in);
+			calibrate = in.readBoolean();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			super.writeTo(out);
+			out.writeBoolean(calibrate);
+		}
+	}
+}
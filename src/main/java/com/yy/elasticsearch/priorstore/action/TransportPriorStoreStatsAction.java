@@ -0,0 +1,90 @@
+package com.yy.elasticsearch.priorstore.action;
+
+import com.yy.elasticsearch.priorstore.PriorStoreStats;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class TransportPriorStoreStatsAction extends TransportNodesOperationAction<PriorStoreStatsRequest, PriorStoreStatsResponse,
+		TransportPriorStoreStatsAction.NodeRequest, NodePriorStoreStats> {
+
+	private final PriorStoreStats stats;
+
+	@Inject
+	public TransportPriorStoreStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool, ClusterService clusterService,
+										  TransportService transportService, PriorStoreStats stats, ActionFilters actionFilters) {
+		super(settings, PriorStoreStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+		this.stats = stats;
+	}
+
+	@Override
+	protected String executor() {
+		return ThreadPool.Names.MANAGEMENT;
+	}
+
+	@Override
+	protected PriorStoreStatsRequest newRequest() {
+		return new PriorStoreStatsRequest();
+	}
+
+	@Override
+	protected PriorStoreStatsResponse newResponse(PriorStoreStatsRequest request, AtomicReferenceArray responses) {
+		final List<NodePriorStoreStats> nodeStats = new ArrayList<>();
+		for (int i = 0; i < responses.length(); i++) {
+			Object resp = responses.get(i);
+			if (resp instanceof NodePriorStoreStats) {
+				nodeStats.add((NodePriorStoreStats) resp);
+			}
+		}
+		return new PriorStoreStatsResponse(clusterName, nodeStats.toArray(new NodePriorStoreStats[nodeStats.size()]));
+	}
+
+	@Override
+	protected NodeRequest newNodeRequest() {
+		return new NodeRequest();
+	}
+
+	@Override
+	protected NodeRequest newNodeRequest(String nodeId, PriorStoreStatsRequest request) {
+		return new NodeRequest(nodeId, request);
+	}
+
+	@Override
+	protected NodePriorStoreStats newNodeResponse() {
+		return new NodePriorStoreStats();
+	}
+
+	@Override
+	protected NodePriorStoreStats nodeOperation(NodeRequest request) throws ElasticsearchException {
+		return stats.stats(clusterService.localNode());
+	}
+
+	@Override
+	protected boolean accumulateExceptions() {
+		return false;
+	}
+
+	static class NodeRequest extends NodeOperationRequest {
+
+		NodeRequest() {
+		}
+
+		NodeRequest(String nodeId, PriorStoreStatsRequest request) {
+			super(request, nodeId);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.yy.elasticsearch.priorstore.rest;
+
+import com.yy.elasticsearch.priorstore.action.PriorStorePlanAction;
+import com.yy.elasticsearch.priorstore.action.PriorStorePlanRequest;
+import com.yy.elasticsearch.priorstore.action.PriorStorePlanResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * GET /_prior_store/plan, GET /_prior_store/{nodeId}/plan, with calibrate=true to measure the data paths again first
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class RestPriorStorePlanAction extends BaseRestHandler {
+
+	@Inject
+	public RestPriorStorePlanAction(Settings settings, RestController controller, Client client) {
+		super(settings, controller, client);
+		controller.registerHandler(GET, "/_prior_store/plan", this);
+		controller.registerHandler(GET, "/_prior_store/{nodeId}/plan", this);
+	}
+
+	@Override
+	protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+		String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+		PriorStorePlanRequest planRequest = new PriorStorePlanRequest(nodesIds);
+		planRequest.calibrate(request.paramAsBoolean("calibrate", false));
+		planRequest.timeout(request.param("timeout"));
+		client.admin().cluster().execute(PriorStorePlanAction.INSTANCE, planRequest, new RestToXContentListener<PriorStorePlanResponse>(channel));
+	}
+}
@@ -0,0 +1,39 @@
+package com.yy.elasticsearch.priorstore.rest;
+
+import com.yy.elasticsearch.priorstore.action.PriorStoreStatsAction;
+import com.yy.elasticsearch.priorstore.action.PriorStoreStatsRequest;
+import com.yy.elasticsearch.priorstore.action.PriorStoreStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * GET /_prior_store/stats, GET /_prior_store/{nodeId}/stats
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class RestPriorStoreStatsAction extends BaseRestHandler {
+
+	@Inject
+	public RestPriorStoreStatsAction(Settings settings, RestController controller, Client client) {
+		super(settings, controller, client);
+		controller.registerHandler(GET, "/_prior_store/stats", this);
+		controller.registerHandler(GET, "/_prior_store/{nodeId}/stats", this);
+	}
+
+	@Override
+	protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+		String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+		PriorStoreStatsRequest statsRequest = new PriorStoreStatsRequest(nodesIds);
+		statsRequest.timeout(request.param("timeout"));
+		client.admin().cluster().execute(PriorStoreStatsAction.INSTANCE, statsRequest, new RestToXContentListener<PriorStoreStatsResponse>(channel));
+	}
+}
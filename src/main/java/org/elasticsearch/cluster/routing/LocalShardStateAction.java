@@ -1,5 +1,6 @@
 package org.elasticsearch.cluster.routing;
 
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.ProcessedClusterStateUpdateTask;
@@ -10,6 +11,8 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.discovery.MasterNotDiscoveredException;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.threadpool.ThreadPool;
@@ -17,35 +20,80 @@ import org.elasticsearch.transport.*;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 
 /**
+ * Unassigns / starts shards of the local node through the master, for migrating them between the data paths.
+ * <p/>
+ * The master leases a shard to the node which unassigns it until the node starts it again, so only one copy of a
+ * shard is out for migration at a time in the whole cluster: an unassign is rejected for the shards leased to another
+ * node, or having any other copy which isn't active. The leases live on the master only, the check of the other
+ * copies still holds after the master changes.
+ * <p/>
+ * The rejected shards are answered by {@link #LEASED_UNASSIGN_SHARD_ACTION_NAME}, the older builds of the plugin only
+ * know {@link #UNASSIGN_SHARD_ACTION_NAME}, whose response doesn't carry them. So in a cluster of mixed builds an
+ * older master is asked by the old action, and the unassigns of older nodes are never rejected, only leased.
+ *
  * @author colin.ke keqinwu@163.com
  */
 public class LocalShardStateAction extends AbstractComponent {
 
 	public static final String START_SHARD_ACTION_NAME = "internal:cluster/shard/localStart";
 	public static final String UNASSIGN_SHARD_ACTION_NAME = "internal:cluster/shard/localUnassign";
+	public static final String LEASED_UNASSIGN_SHARD_ACTION_NAME = "internal:cluster/shard/localUnassign/leased";
+	/**
+	 * a lease not released by starting the shard expires after this, e.g. the node gave up starting it
+	 */
+	public static final String MIGRATION_LEASE_TIMEOUT = "store.prior.migration.lease_timeout";
+	public static final TimeValue DEFAULT_MIGRATION_LEASE_TIMEOUT = TimeValue.timeValueHours(1);
+
 	private final ClusterService clusterService;
 	private final TransportService transportService;
+	private final long leaseTimeoutMillis;
+	/**
+	 * shard -> lease, only accessed by the cluster state update tasks, which run one by one
+	 */
+	private final Map<ShardId, Lease> leases = new HashMap<>();
 
 	@Inject
 	public LocalShardStateAction(Settings settings, TransportService transportService, ClusterService clusterService) {
 		super(settings);
 		this.transportService = transportService;
 		this.clusterService = clusterService;
+		this.leaseTimeoutMillis = settings.getAsTime(MIGRATION_LEASE_TIMEOUT, DEFAULT_MIGRATION_LEASE_TIMEOUT).millis();
 		transportService.registerHandler(START_SHARD_ACTION_NAME, new StartShardHandler());
-		transportService.registerHandler(UNASSIGN_SHARD_ACTION_NAME, new UnassignShardHandler());
+		transportService.registerHandler(UNASSIGN_SHARD_ACTION_NAME, new UnassignShardHandler(false));
+		transportService.registerHandler(LEASED_UNASSIGN_SHARD_ACTION_NAME, new UnassignShardHandler(true));
 	}
 
 	public void startShards(ShardId[] shardIds, Listener listener) {
-		sendRequest(START_SHARD_ACTION_NAME, shardIds, listener);
+		sendRequest(START_SHARD_ACTION_NAME, shardIds, false, listener);
 	}
 
-	public void unassignShards(ShardId[] shardIds, Listener listener) {
-		sendRequest(UNASSIGN_SHARD_ACTION_NAME, shardIds, listener);
+	public void unassignShards(final ShardId[] shardIds, final Listener listener) {
+		sendRequest(LEASED_UNASSIGN_SHARD_ACTION_NAME, shardIds, true, new Listener() {
+			@Override
+			public void onResponse(ShardStateResponse response) {
+				listener.onResponse(response);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				if (ExceptionsHelper.unwrapCause(e) instanceof ActionNotFoundTransportException) {
+					// the master runs an older build of the plugin, which neither leases nor rejects
+					logger.debug("master doesn't know [{}], unassign by [{}]", LEASED_UNASSIGN_SHARD_ACTION_NAME, UNASSIGN_SHARD_ACTION_NAME);
+					sendRequest(UNASSIGN_SHARD_ACTION_NAME, shardIds, false, listener);
+				} else {
+					listener.onFailure(e);
+				}
+			}
+		});
 	}
 
-	private void sendRequest(String action, ShardId[] shardIds, final Listener listener) {
+	/**
+	 * @param withRejected whether the response of the action carries the rejected shards
+	 */
+	private void sendRequest(String action, ShardId[] shardIds, final boolean withRejected, final Listener listener) {
 		ClusterState clusterState = clusterService.state();
 		DiscoveryNode masterNode = clusterState.nodes().masterNode();
 		if (masterNode == null) {
@@ -57,7 +105,7 @@ public class LocalShardStateAction extends AbstractComponent {
 
 			@Override
 			public ShardStateResponse newInstance() {
-				return new ShardStateResponse();
+				return new ShardStateResponse(withRejected);
 			}
 
 			@Override
@@ -78,39 +126,60 @@ public class LocalShardStateAction extends AbstractComponent {
 	}
 
 
-	class UnassignShardHandler extends BaseTransportRequestHandler<ChangeShardStateRequest> {
+	/**
+	 * Requests are queued and coalesced: whichever update task runs first drains all the pending requests(from any node)
+	 * and applies them in one cluster state rebuild, the tasks of the drained requests become no-ops.
+	 */
+	abstract class BatchedShardStateHandler extends BaseTransportRequestHandler<ChangeShardStateRequest> {
+
+		private final BlockingQueue<PendingRequest> pendingRequests = ConcurrentCollections.newBlockingQueue();
+		private final String name;
+		/**
+		 * whether the responses carry the rejected shards, which the older builds can't read
+		 */
+		private final boolean withRejected;
+
+		BatchedShardStateHandler(String name, boolean withRejected) {
+			this.name = name;
+			this.withRejected = withRejected;
+		}
 
 		@Override
 		public ChangeShardStateRequest newInstance() {
 			return new ChangeShardStateRequest();
 		}
 
+		/**
+		 * apply one request on the routing nodes
+		 *
+		 * @return the shards of the request which are rejected
+		 */
+		abstract List<ShardId> apply(RoutingNodes nodes, ChangeShardStateRequest request);
+
 		@Override
 		public void messageReceived(final ChangeShardStateRequest request, final TransportChannel channel) throws Exception {
-			clusterService.submitStateUpdateTask("remove shards " + Arrays.toString(request.shardIds), Priority.URGENT, new ProcessedClusterStateUpdateTask() {
+			final PendingRequest pendingRequest = new PendingRequest(request, channel);
+			pendingRequests.add(pendingRequest);
+			clusterService.submitStateUpdateTask(name + " " + Arrays.toString(request.shardIds), Priority.URGENT, new ProcessedClusterStateUpdateTask() {
+
+				private final List<PendingRequest> drained = new ArrayList<>();
 
 				@Override
 				public ClusterState execute(ClusterState currentState) throws Exception {
+					if (pendingRequest.processed)
+						return currentState; // already applied by another task
+					pendingRequests.drainTo(drained);
+					if (drained.isEmpty())
+						return currentState;
 
 					RoutingTable.Builder rtBuilder = RoutingTable.builder(currentState.routingTable());
 					// it returns a new RoutingNodes object
 					RoutingNodes nodes = currentState.routingNodes();
-					RoutingNode node = nodes.node(request.fromNode.id());
-					Set<ShardId> shardIdSet = new HashSet<>(Arrays.asList(request.shardIds));
-
-					for (MutableShardRouting sr : node) {
-
-						if (!shardIdSet.contains(sr.shardId()) || !request.fromNode.id().equals(sr.currentNodeId))
-							continue;
-						if (sr.primary()) {
-							MutableShardRouting replica = nodes.activeReplica(sr);
-							if (null != replica) {
-								nodes.swapPrimaryFlag(replica);
-								nodes.swapPrimaryFlag(sr);
-							}
-						}
-						sr.moveToUnassigned(new UnassignedInfo(UnassignedInfo.Reason.UNKNOWN, "for prior store migration"));
+					for (PendingRequest pending : drained) {
+						pending.processed = true;
+						pending.rejected = apply(nodes, pending.request);
 					}
+					logger.debug("[{}] applied {} requests in one cluster state update", name, drained.size());
 
 					return ClusterState.builder(currentState).routingTable(rtBuilder.updateNodes(nodes)).build();
 				}
@@ -118,19 +187,23 @@ public class LocalShardStateAction extends AbstractComponent {
 				@Override
 				public void onFailure(String source, Throwable t) {
 					logger.error("unexpected failure during [{}]", t, source);
-					try {
-						channel.sendResponse(t);
-					} catch (Exception e) {
-						logger.warn("failed send response for removing shard", e);
+					for (PendingRequest pending : drained) {
+						try {
+							pending.channel.sendResponse(t);
+						} catch (Exception e) {
+							logger.warn("failed send response for [{}]", e, name);
+						}
 					}
 				}
 
 				@Override
 				public void clusterStateProcessed(String source, ClusterState oldState, ClusterState newState) {
-					try {
-						channel.sendResponse(new ShardStateResponse(true));
-					} catch (IOException e) {
-						logger.warn("failed send response for removing shards", e);
+					for (PendingRequest pending : drained) {
+						try {
+							pending.channel.sendResponse(new ShardStateResponse(true, withRejected ? pending.rejected : null));
+						} catch (IOException e) {
+							logger.warn("failed send response for [{}]", e, name);
+						}
 					}
 				}
 			});
@@ -142,63 +215,125 @@ public class LocalShardStateAction extends AbstractComponent {
 		}
 	}
 
-	class StartShardHandler extends BaseTransportRequestHandler<ChangeShardStateRequest> {
+	static class PendingRequest {
+		final ChangeShardStateRequest request;
+		final TransportChannel channel;
+		volatile boolean processed;
+		volatile List<ShardId> rejected = Collections.emptyList();
 
-		@Override
-		public ChangeShardStateRequest newInstance() {
-			return new ChangeShardStateRequest();
+		PendingRequest(ChangeShardStateRequest request, TransportChannel channel) {
+			this.request = request;
+			this.channel = channel;
 		}
+	}
 
-		@Override
-		public void messageReceived(final ChangeShardStateRequest request, final TransportChannel channel) throws Exception {
-			clusterService.submitStateUpdateTask("reinitialize shards " + Arrays.toString(request.shardIds), Priority.URGENT, new ProcessedClusterStateUpdateTask() {
+	class UnassignShardHandler extends BatchedShardStateHandler {
 
-				@Override
-				public ClusterState execute(ClusterState currentState) throws Exception {
+		/**
+		 * false for the nodes of older builds, which take any unassign as done
+		 */
+		private final boolean leased;
 
-					RoutingTable.Builder rtBuilder = RoutingTable.builder(currentState.routingTable());
-					// warn: it returns a new RoutingNodes object
-					RoutingNodes nodes = currentState.routingNodes();
-					Set<ShardId> shardIdSet = new HashSet<>(Arrays.asList(request.shardIds));
-					Map<ShardId, MutableShardRouting> map = new HashMap<>();
-					for (MutableShardRouting sr : nodes.unassigned()) {
-						if (shardIdSet.contains(sr.shardId())) {
-							if (!map.containsKey(sr.shardId()) || sr.primary())
-								map.put(sr.shardId(), sr);
-						}
-					}
+		UnassignShardHandler(boolean leased) {
+			super("remove shards", leased);
+			this.leased = leased;
+		}
 
-					for (Map.Entry<ShardId, MutableShardRouting> entry : map.entrySet()) {
-						nodes.assign(entry.getValue(), request.fromNode.id());
-					}
+		@Override
+		List<ShardId> apply(RoutingNodes nodes, ChangeShardStateRequest request) {
+			RoutingNode node = nodes.node(request.fromNode.id());
+			if (null == node)
+				return Collections.emptyList();
+			Set<ShardId> shardIdSet = new HashSet<>(Arrays.asList(request.shardIds));
+			List<ShardId> rejected = new ArrayList<>();
+			long now = System.currentTimeMillis();
+			for (Iterator<Lease> it = leases.values().iterator(); it.hasNext(); ) {
+				Lease lease = it.next();
+				if (null == nodes.node(lease.nodeId) || now - lease.acquiredAt >= leaseTimeoutMillis)
+					it.remove();
+			}
 
-					return ClusterState.builder(currentState).routingTable(rtBuilder.updateNodes(nodes)).build();
-				}
+			for (MutableShardRouting sr : node) {
 
-				@Override
-				public void onFailure(String source, Throwable t) {
-					logger.error("unexpected failure during [{}]", t, source);
-					try {
-						channel.sendResponse(t);
-					} catch (Exception e) {
-						logger.warn("failed send response for re-init shards", e);
-					}
+				if (!shardIdSet.contains(sr.shardId()) || !request.fromNode.id().equals(sr.currentNodeId))
+					continue;
+				Lease lease = leases.get(sr.shardId());
+				if (leased && null != lease && !lease.nodeId.equals(request.fromNode.id())) {
+					logger.debug("reject unassigning {} of [{}], leased to [{}]", sr.shardId(), request.fromNode, lease.nodeId);
+					rejected.add(sr.shardId());
+					continue;
 				}
-
-				@Override
-				public void clusterStateProcessed(String source, ClusterState oldState, ClusterState newState) {
-					try {
-						channel.sendResponse(new ShardStateResponse(true));
-					} catch (IOException e) {
-						logger.warn("failed send response for re-init shards", e);
+				if (leased && hasInactiveCopy(nodes, sr)) {
+					logger.debug("reject unassigning {} of [{}], another copy isn't active", sr.shardId(), request.fromNode);
+					rejected.add(sr.shardId());
+					continue;
+				}
+				leases.put(sr.shardId(), new Lease(request.fromNode.id(), now));
+				if (sr.primary()) {
+					MutableShardRouting replica = nodes.activeReplica(sr);
+					if (null != replica) {
+						nodes.swapPrimaryFlag(replica);
+						nodes.swapPrimaryFlag(sr);
 					}
 				}
-			});
+				sr.moveToUnassigned(new UnassignedInfo(UnassignedInfo.Reason.UNKNOWN, "for prior store migration"));
+			}
+			return rejected;
+		}
+
+		/**
+		 * @return true if any other copy of the shard is unassigned, initializing or relocating
+		 */
+		private boolean hasInactiveCopy(RoutingNodes nodes, MutableShardRouting shard) {
+			for (MutableShardRouting copy : nodes.assignedShards(shard)) {
+				if (copy != shard && !copy.active())
+					return true;
+			}
+			for (MutableShardRouting copy : nodes.unassigned()) {
+				if (copy.shardId().equals(shard.shardId()))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	class StartShardHandler extends BatchedShardStateHandler {
+
+		StartShardHandler() {
+			super("reinitialize shards", false);
 		}
 
 		@Override
-		public String executor() {
-			return ThreadPool.Names.SAME;
+		List<ShardId> apply(RoutingNodes nodes, ChangeShardStateRequest request) {
+			// warn: the routing nodes might have been changed by the requests applied before
+			Set<ShardId> shardIdSet = new HashSet<>(Arrays.asList(request.shardIds));
+			Map<ShardId, MutableShardRouting> map = new HashMap<>();
+			for (MutableShardRouting sr : nodes.unassigned()) {
+				if (shardIdSet.contains(sr.shardId())) {
+					if (!map.containsKey(sr.shardId()) || sr.primary())
+						map.put(sr.shardId(), sr);
+				}
+			}
+
+			for (Map.Entry<ShardId, MutableShardRouting> entry : map.entrySet()) {
+				nodes.assign(entry.getValue(), request.fromNode.id());
+			}
+			for (ShardId shardId : request.shardIds) {
+				Lease lease = leases.get(shardId);
+				if (null != lease && lease.nodeId.equals(request.fromNode.id()))
+					leases.remove(shardId);
+			}
+			return Collections.emptyList();
+		}
+	}
+
+	static class Lease {
+		final String nodeId;
+		final long acquiredAt;
+
+		Lease(String nodeId, long acquiredAt) {
+			this.nodeId = nodeId;
+			this.acquiredAt = acquiredAt;
 		}
 	}
 
@@ -240,28 +375,60 @@ public class LocalShardStateAction extends AbstractComponent {
 	public static class ShardStateResponse extends TransportResponse {
 
 		private boolean ack;
-
-		ShardStateResponse() {
+		/**
+		 * whether the rejected shards are on the wire, only in the response of {@link #LEASED_UNASSIGN_SHARD_ACTION_NAME}
+		 */
+		private boolean withRejected;
+		private Set<ShardId> rejected = Collections.emptySet();
+
+		ShardStateResponse(boolean withRejected) {
+			this.withRejected = withRejected;
 		}
 
-		ShardStateResponse(boolean ack) {
+		/**
+		 * @param rejected null for the actions the older builds know
+		 */
+		ShardStateResponse(boolean ack, Collection<ShardId> rejected) {
 			this.ack = ack;
+			this.withRejected = null != rejected;
+			if (withRejected)
+				this.rejected = new HashSet<>(rejected);
 		}
 
 		public boolean ack() {
 			return ack;
 		}
 
+		/**
+		 * @return the shards the request isn't applied to, e.g. another copy is out for migration
+		 */
+		public Set<ShardId> rejected() {
+			return rejected;
+		}
+
 		@Override
 		public void readFrom(StreamInput in) throws IOException {
 			super.readFrom(in);
 			ack = in.readBoolean();
+			if (withRejected) {
+				int size = in.readVInt();
+				rejected = new HashSet<>(size);
+				for (int i = 0; i < size; ++i) {
+					rejected.add(ShardId.readShardId(in));
+				}
+			}
 		}
 
 		@Override
 		public void writeTo(StreamOutput out) throws IOException {
 			super.writeTo(out);
 			out.writeBoolean(ack);
+			if (withRejected) {
+				out.writeVInt(rejected.size());
+				for (ShardId shardId : rejected) {
+					shardId.writeTo(out);
+				}
+			}
 		}
 	}
 
@@ -0,0 +1,133 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.carrotsearch.hppc.ObjectLongOpenHashMap;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.joda.time.format.DateTimeFormat;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class AgeMigrationPolicyTest {
+
+	private static final long DAY = TimeValue.timeValueHours(24).millis();
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final long now = System.currentTimeMillis();
+
+	@Test
+	public void testDateOfTheName() {
+		AgeMigrationPolicy policy = policy(ImmutableSettings.builder().put(AgeMigrationPolicy.DATE_FORMAT, "yyyy.MM.dd").build(), null, null);
+		assertEquals(DateTimeFormat.forPattern("yyyy.MM.dd").withZoneUTC().parseMillis("2016.02.01"), policy.dateOf(index("logs-2016.02.01", 1000)));
+		// falls back to the creation date
+		assertEquals(1000, policy.dateOf(index("logs-2016.02", 1000)));
+		assertEquals(1000, policy.dateOf(index("logs-2016.02.xx", 1000)));
+		assertEquals(1000, policy.dateOf(index("a", 1000)));
+		assertEquals(-1, policy.dateOf(index("logs", -1)));
+	}
+
+	@Test
+	public void testCreationDateWithoutFormat() {
+		AgeMigrationPolicy policy = policy(ImmutableSettings.EMPTY, null, null);
+		assertEquals(1000, policy.dateOf(index("logs-2016.02.01", 1000)));
+	}
+
+	@Test
+	public void testOldestFirst() throws Exception {
+		List<IndexMetaData> indices = Arrays.asList(
+				index(named(1), -1),
+				index("created", now - 20 * DAY),
+				index(named(10), -1),
+				index("unknown", -1));
+		MigrationInfo mgInfo = migrationInfo(ImmutableSettings.EMPTY, indices);
+		assertEquals(Arrays.asList("created", named(10), named(1), "unknown"), indexNames(mgInfo));
+	}
+
+	@Test
+	public void testIndicesAboutToBeDeletedAreSkipped() throws Exception {
+		Settings settings = ImmutableSettings.builder()
+				.put(AgeMigrationPolicy.RETENTION, "30d")
+				.put(AgeMigrationPolicy.RETENTION_HORIZON, "2d")
+				.build();
+		List<IndexMetaData> indices = Arrays.asList(
+				index(named(40), -1),
+				index(named(28), -1),
+				index(named(10), -1),
+				index("created", now - 29 * DAY),
+				index("unknown", -1));
+		MigrationInfo mgInfo = migrationInfo(settings, indices);
+		assertEquals(Arrays.asList(named(10), "unknown"), indexNames(mgInfo));
+	}
+
+	private MigrationInfo migrationInfo(Settings settings, List<IndexMetaData> indices) throws Exception {
+		MetaData.Builder metaData = MetaData.builder();
+		ObjectLongOpenHashMap<ShardId> shardsSize = new ObjectLongOpenHashMap<>();
+		for (IndexMetaData index : indices) {
+			metaData.put(index, false);
+			shardsSize.put(new ShardId(index.index(), 0), 100);
+		}
+		// a shard whose index was just deleted
+		shardsSize.put(new ShardId("deleted", 0), 100);
+		ClusterService clusterService = mock(ClusterService.class);
+		when(clusterService.state()).thenReturn(ClusterState.builder(ClusterName.DEFAULT).metaData(metaData).build());
+		NodeEnvironment.NodePath nodePath = nodePath();
+		ShardUsageIndex usageIndex = mock(ShardUsageIndex.class);
+		when(usageIndex.shardsSize(nodePath)).thenReturn(shardsSize);
+
+		settings = ImmutableSettings.builder().put(settings).put(AgeMigrationPolicy.DATE_FORMAT, "yyyy.MM.dd").build();
+		return policy(settings, clusterService, usageIndex).getMigrationIndices(nodePath);
+	}
+
+	private static AgeMigrationPolicy policy(Settings settings, ClusterService clusterService, ShardUsageIndex usageIndex) {
+		return new AgeMigrationPolicy(settings, clusterService, usageIndex);
+	}
+
+	private NodeEnvironment.NodePath nodePath() throws IOException {
+		return new NodeEnvironment.NodePath(tmp.newFolder().toPath());
+	}
+
+	/**
+	 * @return the name of a daily index of the given days ago
+	 */
+	private String named(int daysAgo) {
+		return "logs-" + DateTimeFormat.forPattern("yyyy.MM.dd").withZoneUTC().print(now - daysAgo * DAY);
+	}
+
+	private static IndexMetaData index(String name, long creationDate) {
+		ImmutableSettings.Builder settings = ImmutableSettings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT);
+		if (creationDate >= 0)
+			settings.put(IndexMetaData.SETTING_CREATION_DATE, creationDate);
+		return IndexMetaData.builder(name).settings(settings).numberOfShards(1).numberOfReplicas(0).build();
+	}
+
+	private static List<String> indexNames(MigrationInfo mgInfo) {
+		List<String> names = new ArrayList<>();
+		for (MigrationInfo.Shard shard : mgInfo.getShards()) {
+			names.add(shard.getShardId().index().name());
+		}
+		return names;
+	}
+}
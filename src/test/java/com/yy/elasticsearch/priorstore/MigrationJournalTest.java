@@ -0,0 +1,163 @@
+package com.yy.elasticsearch.priorstore;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class MigrationJournalTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Path dir;
+	private Path source;
+	private Path staging;
+	private Path staged;
+	private Path target;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = tmp.newFolder("source").toPath();
+		Path targetShard = tmp.newFolder("target").toPath();
+		source = write(dir.resolve("index").resolve("_0.cfs"));
+		staging = targetShard.resolve(PriorStoreTransferEngine.STAGING_FOLDER_NAME);
+		staged = write(staging.resolve("index").resolve("_0.cfs"));
+		target = targetShard.resolve("index").resolve("_0.cfs");
+		Files.createDirectories(target.getParent());
+	}
+
+	@Test
+	public void testNothingToReplay() throws IOException {
+		assertEquals(0, MigrationJournal.replay(dir));
+	}
+
+	@Test
+	public void testCopyingIsRolledBackAndStagingKept() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.close();
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		assertTrue(Files.exists(source));
+		assertTrue(Files.exists(staged));
+		assertFalse(Files.exists(target));
+		assertFalse(Files.exists(dir.resolve(MigrationJournal.FILE_NAME)));
+	}
+
+	@Test
+	public void testStagedIsFinished() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.staged(staging, Collections.singletonList(new Path[]{source, staged, target}));
+		journal.close();
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		assertTrue(Files.exists(target));
+		assertEquals("data", new String(Files.readAllBytes(target), Charsets.UTF_8));
+		assertFalse(Files.exists(source));
+		assertFalse(Files.exists(staging));
+	}
+
+	@Test
+	public void testSyncedDeletesTheSources() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.staged(staging, Collections.singletonList(new Path[]{source, staged, target}));
+		Files.move(staged, target);
+		journal.synced(staging);
+		journal.close();
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		assertTrue(Files.exists(target));
+		assertFalse(Files.exists(source));
+		assertFalse(Files.exists(staging));
+	}
+
+	@Test
+	public void testSourcesWithoutTargetAreKept() throws IOException {
+		// the staged file was lost, so the source must stay
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.staged(staging, Collections.singletonList(new Path[]{source, staged, target}));
+		Files.delete(staged);
+		journal.close();
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		assertTrue(Files.exists(source));
+		assertFalse(Files.exists(target));
+	}
+
+	@Test
+	public void testEndedTransfersAreSkipped() throws IOException {
+		Path otherStaging = tmp.newFolder("other").toPath().resolve(PriorStoreTransferEngine.STAGING_FOLDER_NAME);
+		Path otherStaged = write(otherStaging.resolve("index").resolve("_1.cfs"));
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.begin(otherStaging, "[index][1]");
+		journal.staged(otherStaging, Collections.<Path[]>emptyList());
+		journal.end(otherStaging, false);
+		journal.close();
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		// an ended transfer was cleaned up by itself
+		assertTrue(Files.exists(otherStaged));
+		assertTrue(Files.exists(staged));
+	}
+
+	@Test
+	public void testEmptiedOnceAllEnded() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.end(staging, true);
+		journal.close();
+
+		assertEquals(0, Files.size(dir.resolve(MigrationJournal.FILE_NAME)));
+		assertEquals(0, MigrationJournal.replay(dir));
+	}
+
+	@Test
+	public void testTornLinesAreIgnored() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.begin(staging, "[index][0]");
+		journal.close();
+		Files.write(dir.resolve(MigrationJournal.FILE_NAME), Arrays.asList(MigrationJournal.STAGED), Charsets.UTF_8, StandardOpenOption.APPEND);
+
+		assertEquals(1, MigrationJournal.replay(dir));
+		assertTrue(Files.exists(source));
+		assertTrue(Files.exists(staged));
+	}
+
+	@Test
+	public void testClosedJournalRejectsAppends() throws IOException {
+		MigrationJournal journal = new MigrationJournal(dir);
+		journal.close();
+		try {
+			journal.begin(staging, "[index][0]");
+			fail("appended to a closed journal");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static Path write(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		return Files.write(file, "data".getBytes(Charsets.UTF_8));
+	}
+}
@@ -0,0 +1,149 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.admin.indices.stats.CommonStatsFlags;
+import org.elasticsearch.action.admin.indices.stats.IndexShardStats;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.search.stats.SearchStats;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.NodeIndicesStats;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class MigrationThrottleTest {
+
+	private ThreadPool threadPool;
+	private IndicesService indicesService;
+	private PriorStoreMigrationEngine migrationEngine;
+	private PriorStoreTransferEngine transferEngine;
+	private PriorStoreStats stats;
+	private MigrationThrottle throttle;
+
+	@Before
+	public void setUp() {
+		threadPool = mock(ThreadPool.class);
+		indicesService = mock(IndicesService.class);
+		migrationEngine = mock(PriorStoreMigrationEngine.class);
+		transferEngine = mock(PriorStoreTransferEngine.class);
+		stats = new PriorStoreStats(mock(PriorStoreEnvironment.class), mock(PriorStoreSpaceService.class));
+		when(transferEngine.maxMbPerSec()).thenReturn(100.0);
+		when(transferEngine.mbPerSec()).thenReturn(100.0);
+		when(migrationEngine.concurrencyLimit()).thenReturn(5);
+		poolStats(0, 0);
+		searchStats(0, 0);
+		// sampled by hand
+		throttle = new MigrationThrottle(ImmutableSettings.builder().put(MigrationThrottle.ADAPTIVE_ENABLED, false).build(),
+				threadPool, indicesService, migrationEngine, transferEngine, stats);
+	}
+
+	@Test
+	public void testGrowsBackAdditively() {
+		when(transferEngine.mbPerSec()).thenReturn(40.0);
+		when(migrationEngine.concurrencyLimit()).thenReturn(2);
+		throttle.adjust();
+		verify(transferEngine).setMbPerSec(50.0);
+		verify(migrationEngine).setConcurrencyLimit(3);
+		assertEquals(0, stats.throttleBackoffs.count());
+	}
+
+	@Test
+	public void testHalvesWhenQueuesFillUp() {
+		poolStats(MigrationThrottle.DEFAULT_ADAPTIVE_QUEUE_SIZE, 0);
+		throttle.adjust();
+		verify(transferEngine).setMbPerSec(50.0);
+		verify(migrationEngine).setConcurrencyLimit(2);
+		assertEquals(1, stats.throttleBackoffs.count());
+	}
+
+	@Test
+	public void testNeverUnderTheMinRate() {
+		when(transferEngine.mbPerSec()).thenReturn(6.0);
+		poolStats(MigrationThrottle.DEFAULT_ADAPTIVE_QUEUE_SIZE, 0);
+		throttle.adjust();
+		verify(transferEngine).setMbPerSec(MigrationThrottle.DEFAULT_ADAPTIVE_MIN_BYTES_PER_SEC.mbFrac());
+	}
+
+	@Test
+	public void testOnlyTheShardsAreAdaptedWithoutARateLimit() {
+		when(transferEngine.maxMbPerSec()).thenReturn(0.0);
+		poolStats(MigrationThrottle.DEFAULT_ADAPTIVE_QUEUE_SIZE, 0);
+		throttle.adjust();
+		verify(transferEngine, never()).setMbPerSec(any(Double.class));
+		verify(migrationEngine).setConcurrencyLimit(2);
+	}
+
+	@Test
+	public void testBusyOnNewRejections() {
+		poolStats(0, 3);
+		// the first sample only learns the counter
+		throttle.adjust();
+		verify(migrationEngine).setConcurrencyLimit(6);
+		reset(migrationEngine);
+		when(migrationEngine.concurrencyLimit()).thenReturn(5);
+
+		poolStats(0, 4);
+		throttle.adjust();
+		verify(migrationEngine).setConcurrencyLimit(2);
+	}
+
+	@Test
+	public void testBusyWhenTheLatencyRisesWhileMigrating() {
+		// 10ms per query while idle, then 20ms per query while migrating
+		when(indicesService.stats(anyBoolean(), any(CommonStatsFlags.class))).thenReturn(
+				nodeStats(0, 0), nodeStats(100, 1000), nodeStats(200, 3000));
+		when(migrationEngine.activeCount()).thenReturn(0);
+		throttle.adjust();
+		throttle.adjust();
+		verify(migrationEngine, never()).setConcurrencyLimit(2);
+
+		when(migrationEngine.activeCount()).thenReturn(1);
+		throttle.adjust();
+		verify(migrationEngine).setConcurrencyLimit(2);
+	}
+
+	@Test
+	public void testTooFewQueriesTellNothing() {
+		when(indicesService.stats(anyBoolean(), any(CommonStatsFlags.class))).thenReturn(
+				nodeStats(0, 0), nodeStats(100, 1000), nodeStats(105, 2000));
+		throttle.adjust();
+		throttle.adjust();
+		when(migrationEngine.activeCount()).thenReturn(1);
+		throttle.adjust();
+		verify(migrationEngine, never()).setConcurrencyLimit(2);
+	}
+
+	private void poolStats(int queue, long rejected) {
+		when(threadPool.stats()).thenReturn(new ThreadPoolStats(Arrays.asList(
+				new ThreadPoolStats.Stats(ThreadPool.Names.SEARCH, 1, queue, 1, rejected, 1, 0),
+				new ThreadPoolStats.Stats(ThreadPool.Names.GENERIC, 1, 1000, 1, 1000, 1, 0))));
+	}
+
+	private void searchStats(long queries, long millis) {
+		when(indicesService.stats(anyBoolean(), any(CommonStatsFlags.class))).thenReturn(nodeStats(queries, millis));
+	}
+
+	private static NodeIndicesStats nodeStats(long queries, long millis) {
+		CommonStats common = new CommonStats();
+		common.search = new SearchStats(new SearchStats.Stats(queries, millis, 0, 0, 0, 0), 0, null);
+		return new NodeIndicesStats(common, Collections.<Index, List<IndexShardStats>>emptyMap());
+	}
+}
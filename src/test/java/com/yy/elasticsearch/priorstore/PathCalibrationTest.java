@@ -0,0 +1,83 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.env.NodeEnvironment;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PathCalibrationTest {
+
+	private static final int MB = 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testMeasuresTheScratchFileWithoutIndexFiles() throws IOException {
+		NodeEnvironment.NodePath nodePath = nodePath();
+		PathCalibration calibration = PathCalibration.measure(nodePath, 2 * MB);
+
+		assertTrue(calibration.getWriteBytesPerSec() > 0);
+		assertTrue(calibration.getReadBytesPerSec() > 0);
+		assertTrue(calibration.getFsyncMicros() >= 0);
+		assertTrue(calibration.toString().contains("(cached)"));
+		assertFalse(Files.exists(nodePath.path.resolve(PathCalibration.SCRATCH_FILE_NAME)));
+	}
+
+	@Test
+	public void testReadsTheIndexFiles() throws IOException {
+		NodeEnvironment.NodePath nodePath = nodePath();
+		Path indexDir = nodePath.indicesPath.resolve("index").resolve("0").resolve("index");
+		Files.createDirectories(indexDir);
+		Files.write(indexDir.resolve("_0.cfs"), new byte[2 * MB]);
+		// too small to tell the throughput
+		Files.write(indexDir.resolve("_0.si"), new byte[100]);
+
+		PathCalibration calibration = PathCalibration.measure(nodePath, MB);
+		assertTrue(calibration.getReadBytesPerSec() > 0);
+		assertFalse(calibration.toString().contains("(cached)"));
+		assertTrue(Files.exists(indexDir.resolve("_0.cfs")));
+		assertFalse(Files.exists(nodePath.path.resolve(PathCalibration.SCRATCH_FILE_NAME)));
+	}
+
+	@Test
+	public void testOnTheWire() throws IOException {
+		PathCalibration calibration = new PathCalibration(300 * MB, 100 * MB, 250, true, 1000);
+		BytesStreamOutput out = new BytesStreamOutput();
+		calibration.writeTo(out);
+		PathCalibration read = PathCalibration.readPathCalibration(new BytesStreamInput(out.bytes()));
+		assertEquals(calibration.toString(), read.toString());
+		assertEquals(calibration.getReadBytesPerSec(), read.getReadBytesPerSec());
+		assertEquals(calibration.getWriteBytesPerSec(), read.getWriteBytesPerSec());
+		assertEquals(calibration.getFsyncMicros(), read.getFsyncMicros());
+	}
+
+	@Test
+	public void testEstimateBySlowerPath() {
+		PathCalibration fast = new PathCalibration(400 * MB, 200 * MB, 100, true, 0);
+		PathCalibration slow = new PathCalibration(100 * MB, 50 * MB, 10000, true, 0);
+		// read by the slow one
+		assertEquals(1000, PathCalibration.estimateMillis(slow, fast, 100 * MB));
+		// written by the slow one
+		assertEquals(2000, PathCalibration.estimateMillis(fast, slow, 100 * MB));
+		assertEquals(250, PathCalibration.estimateMillis(fast, null, 100 * MB));
+		assertEquals(-1, PathCalibration.estimateMillis(null, null, 100 * MB));
+	}
+
+	private NodeEnvironment.NodePath nodePath() throws IOException {
+		return new NodeEnvironment.NodePath(tmp.newFolder().toPath());
+	}
+}
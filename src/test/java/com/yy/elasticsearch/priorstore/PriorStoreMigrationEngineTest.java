@@ -0,0 +1,249 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.flush.FlushRequest;
+import org.elasticsearch.cluster.routing.LocalShardStateAction;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.env.ShardLock;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.flush.ShardsSyncedFlushResult;
+import org.elasticsearch.indices.flush.SyncedFlushService;
+import org.elasticsearch.indices.recovery.RecoveryState;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs a shard through the flush, unassign, copy and start steps against mocked services.
+ *
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreMigrationEngineTest {
+
+	private static final long TIMEOUT = 10000;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final ShardId shardId = new ShardId("index", 0);
+	private NodeEnvironment.NodePath source;
+	private NodeEnvironment.NodePath target;
+	private NodeEnvironment nodeEnv;
+	private PriorStoreTransferEngine transferEngine;
+	private PriorStoreStats stats;
+	private LocalShardStateAction shardStateAction;
+	private PriorStoreSpaceService spaceService;
+	private IndicesService indicesService;
+	private IndicesLifecycle indicesLifecycle;
+	private SyncedFlushService syncedFlushService;
+	private IndexShard indexShard;
+	private PriorStoreMigrationEngine engine;
+
+	@Before
+	public void setUp() throws IOException {
+		source = nodePath("source");
+		target = nodePath("target");
+		nodeEnv = mock(NodeEnvironment.class);
+		when(nodeEnv.shardLock(eq(shardId), anyLong())).thenReturn(new ShardLock(shardId) {
+			@Override
+			protected void closeInternal() {
+			}
+		});
+		transferEngine = mock(PriorStoreTransferEngine.class);
+		when(transferEngine.newTransfer(eq(shardId), eq(source), eq(target), any(Path.class)))
+				.thenReturn(mock(PriorStoreTransferEngine.ShardTransfer.class));
+		stats = new PriorStoreStats(mock(PriorStoreEnvironment.class), mock(PriorStoreSpaceService.class));
+
+		shardStateAction = mock(LocalShardStateAction.class);
+		Answer<Void> ack = new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				LocalShardStateAction.ShardStateResponse response = mock(LocalShardStateAction.ShardStateResponse.class);
+				when(response.ack()).thenReturn(true);
+				when(response.rejected()).thenReturn(Collections.<ShardId>emptySet());
+				((LocalShardStateAction.Listener) invocation.getArguments()[1]).onResponse(response);
+				return null;
+			}
+		};
+		doAnswer(ack).when(shardStateAction).unassignShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		doAnswer(ack).when(shardStateAction).startShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+
+		spaceService = mock(PriorStoreSpaceService.class);
+		when(spaceService.slotOf(source)).thenReturn(0);
+		when(spaceService.slotOf(target)).thenReturn(1);
+		when(spaceService.snapshot()).thenReturn(new long[]{1000, 1000, 1000, 1000});
+
+		indexShard = mock(IndexShard.class);
+		when(indexShard.shardId()).thenReturn(shardId);
+		IndexService indexService = mock(IndexService.class);
+		when(indexService.shard(shardId.id())).thenReturn(indexShard);
+		indicesService = mock(IndicesService.class);
+		when(indicesService.indexService(shardId.index().name())).thenReturn(indexService);
+		indicesLifecycle = mock(IndicesLifecycle.class);
+		when(indicesService.indicesLifecycle()).thenReturn(indicesLifecycle);
+		syncedFlushService = mock(SyncedFlushService.class);
+	}
+
+	@After
+	public void tearDown() {
+		if (null != engine)
+			engine.close();
+	}
+
+	@Test
+	public void testSyncedFlushBeforeUnassigning() throws Exception {
+		syncedFlush(false);
+		engine(true);
+		assertTrue(engine.submit(shardId, source, target));
+
+		InOrder inOrder = inOrder(syncedFlushService, shardStateAction);
+		inOrder.verify(syncedFlushService, timeout(TIMEOUT)).attemptSyncedFlush(eq(shardId), any(ActionListener.class));
+		inOrder.verify(shardStateAction, timeout(TIMEOUT)).unassignShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		inOrder.verify(shardStateAction, timeout(TIMEOUT)).startShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		verify(indexShard, never()).flush(any(FlushRequest.class));
+	}
+
+	@Test
+	public void testFlushedLocallyIfTheSyncedFlushFails() throws Exception {
+		syncedFlush(true);
+		engine(true);
+		engine.submit(shardId, source, target);
+
+		InOrder inOrder = inOrder(indexShard, shardStateAction);
+		inOrder.verify(indexShard, timeout(TIMEOUT)).flush(any(FlushRequest.class));
+		inOrder.verify(shardStateAction, timeout(TIMEOUT)).unassignShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+	}
+
+	@Test
+	public void testFlushedLocallyWithoutSyncedFlush() throws Exception {
+		engine(false);
+		engine.submit(shardId, source, target);
+
+		InOrder inOrder = inOrder(indexShard, shardStateAction);
+		inOrder.verify(indexShard, timeout(TIMEOUT)).flush(any(FlushRequest.class));
+		inOrder.verify(shardStateAction, timeout(TIMEOUT)).unassignShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		verify(syncedFlushService, never()).attemptSyncedFlush(any(ShardId.class), any(ActionListener.class));
+	}
+
+	@Test
+	public void testRecoveryOfTheMovedShardIsReported() throws Exception {
+		engine(false);
+		ArgumentCaptor<IndicesLifecycle.Listener> listener = ArgumentCaptor.forClass(IndicesLifecycle.Listener.class);
+		verify(indicesLifecycle).addListener(listener.capture());
+		engine.submit(shardId, source, target);
+		verify(shardStateAction, timeout(TIMEOUT)).startShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		waitUntilDone();
+
+		RecoveryState recoveryState = mock(RecoveryState.class);
+		RecoveryState.Index index = mock(RecoveryState.Index.class);
+		when(index.recoveredBytes()).thenReturn(10L);
+		when(index.reusedBytes()).thenReturn(90L);
+		when(recoveryState.getIndex()).thenReturn(index);
+		when(recoveryState.getTranslog()).thenReturn(mock(RecoveryState.Translog.class));
+		when(indexShard.recoveryState()).thenReturn(recoveryState);
+		listener.getValue().afterIndexShardPostRecovery(indexShard);
+		// only the first recovery after the migration
+		listener.getValue().afterIndexShardPostRecovery(indexShard);
+
+		assertEquals(1, stats.recoveredShards.count());
+		assertEquals(10, stats.recoveryRecoveredBytes.count());
+		assertEquals(90, stats.recoveryReusedBytes.count());
+	}
+
+	@Test
+	public void testDeletedShardIsNotReported() throws Exception {
+		engine(false);
+		ArgumentCaptor<IndicesLifecycle.Listener> listener = ArgumentCaptor.forClass(IndicesLifecycle.Listener.class);
+		verify(indicesLifecycle).addListener(listener.capture());
+		engine.submit(shardId, source, target);
+		verify(shardStateAction, timeout(TIMEOUT)).startShards(any(ShardId[].class), any(LocalShardStateAction.Listener.class));
+		waitUntilDone();
+
+		listener.getValue().afterIndexShardDeleted(shardId, ImmutableSettings.EMPTY);
+		when(indexShard.recoveryState()).thenReturn(mock(RecoveryState.class));
+		listener.getValue().afterIndexShardPostRecovery(indexShard);
+		assertEquals(0, stats.recoveredShards.count());
+	}
+
+	private void engine(boolean syncedFlush) {
+		Settings settings = ImmutableSettings.builder()
+				.put(PriorStoreMigrationEngine.MIGRATION_SYNCED_FLUSH, syncedFlush)
+				.put(PriorStoreMigrationEngine.MIGRATION_MAX_RETRIES, 0)
+				.build();
+		ShardUsageIndex usageIndex = mock(ShardUsageIndex.class);
+		when(usageIndex.shardSize(shardId, source)).thenReturn(100L);
+		engine = new PriorStoreMigrationEngine(settings, mock(ThreadPool.class), nodeEnv, usageIndex, transferEngine, stats, shardStateAction,
+				spaceService, mock(PriorStoreEnvironment.class), indicesService, syncedFlushService, mock(ShardHeatService.class));
+	}
+
+	private void syncedFlush(final boolean failed) {
+		doAnswer(new Answer<Void>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) {
+				ShardsSyncedFlushResult result = mock(ShardsSyncedFlushResult.class);
+				when(result.failed()).thenReturn(failed);
+				((ActionListener<ShardsSyncedFlushResult>) invocation.getArguments()[1]).onResponse(result);
+				return null;
+			}
+		}).when(syncedFlushService).attemptSyncedFlush(eq(shardId), any(ActionListener.class));
+	}
+
+	/**
+	 * the wave is finished on the executor once the shard is started, wait till its slot is released
+	 */
+	private void waitUntilDone() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (engine.activeCount() > 0) {
+			assertTrue("migration didn't finish", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * a node path on a device of its own, the engine never moves a shard within a device
+	 */
+	private NodeEnvironment.NodePath nodePath(String name) throws IOException {
+		NodeEnvironment.NodePath nodePath = new NodeEnvironment.NodePath(tmp.newFolder(name).toPath());
+		try {
+			Field fileStore = NodeEnvironment.NodePath.class.getField("fileStore");
+			fileStore.setAccessible(true);
+			fileStore.set(nodePath, mock(FileStore.class));
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+		return nodePath;
+	}
+}
@@ -0,0 +1,237 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RateLimiter;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.store.support.AbstractIndexStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class PriorStoreTransferEngineTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final ShardId shardId = new ShardId("index", 0);
+	private final List<PriorStoreTransferEngine> engines = new ArrayList<>();
+	private PriorStoreEnvironment psEnv;
+	private NodeEnvironment.NodePath source;
+	private NodeEnvironment.NodePath target;
+	private Path sourceDir;
+	private Path targetDir;
+	private long totalBytes;
+
+	@Before
+	public void setUp() throws IOException {
+		source = new NodeEnvironment.NodePath(tmp.newFolder("source").toPath());
+		target = new NodeEnvironment.NodePath(tmp.newFolder("target").toPath());
+		psEnv = mock(PriorStoreEnvironment.class);
+		when(psEnv.getNodePaths()).thenReturn(new NodeEnvironment.NodePath[]{source, target});
+		sourceDir = shardPath(source).resolve(AbstractIndexStore.INDEX_FOLDER_NAME);
+		targetDir = shardPath(target).resolve(AbstractIndexStore.INDEX_FOLDER_NAME);
+		Files.createDirectories(sourceDir);
+		totalBytes = writeLuceneFile(sourceDir, "_0.cfs", 1000) + writeLuceneFile(sourceDir, "_0.si", 100);
+	}
+
+	@After
+	public void tearDown() {
+		for (PriorStoreTransferEngine engine : engines) {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void testMovesTheFiles() throws IOException {
+		byte[] content = Files.readAllBytes(sourceDir.resolve("_0.cfs"));
+		PriorStoreTransferEngine.ShardTransfer transfer = transfer(engine(false));
+		transfer.copy();
+		transfer.finish();
+
+		assertEquals(totalBytes, transfer.bytes());
+		assertEquals(0, transfer.reusedBytes());
+		assertArrayEquals(content, Files.readAllBytes(targetDir.resolve("_0.cfs")));
+		assertTrue(Files.exists(targetDir.resolve("_0.si")));
+		assertFalse(Files.exists(sourceDir.resolve("_0.cfs")));
+		assertFalse(Files.exists(sourceDir.resolve("_0.si")));
+		assertFalse(Files.exists(shardPath(target).resolve(PriorStoreTransferEngine.STAGING_FOLDER_NAME)));
+	}
+
+	@Test
+	public void testRetryReusesTheStagedCopies() throws IOException {
+		PriorStoreTransferEngine engine = engine(false);
+		PriorStoreTransferEngine.ShardTransfer first = transfer(engine);
+		first.copy();
+		first.abort();
+		assertTrue(Files.exists(sourceDir.resolve("_0.cfs")));
+
+		PriorStoreTransferEngine.ShardTransfer retry = transfer(engine);
+		retry.copy();
+		assertEquals(0, retry.bytes());
+		assertEquals(totalBytes, retry.reusedBytes());
+		retry.finish();
+		assertTrue(Files.exists(targetDir.resolve("_0.cfs")));
+		assertFalse(Files.exists(sourceDir.resolve("_0.cfs")));
+	}
+
+	@Test
+	public void testInstalledCopiesGoBackToStaging() throws IOException {
+		PriorStoreTransferEngine engine = engine(false);
+		// one of the files can't be moved in place
+		Path blocker = Files.createDirectories(targetDir.resolve("_0.si"));
+		Files.createFile(blocker.resolve("file"));
+		PriorStoreTransferEngine.ShardTransfer first = transfer(engine);
+		first.copy();
+		try {
+			first.finish();
+			fail("moved onto a directory");
+		} catch (IOException e) {
+			first.abort();
+		}
+		assertFalse(Files.exists(targetDir.resolve("_0.cfs")));
+		assertTrue(Files.exists(sourceDir.resolve("_0.cfs")));
+		assertTrue(Files.exists(sourceDir.resolve("_0.si")));
+
+		FileSystemUtils.deleteRecursively(blocker.toFile());
+		PriorStoreTransferEngine.ShardTransfer retry = transfer(engine);
+		retry.copy();
+		assertEquals(0, retry.bytes());
+		assertEquals(totalBytes, retry.reusedBytes());
+		retry.finish();
+		assertTrue(Files.exists(targetDir.resolve("_0.cfs")));
+		assertTrue(Files.exists(targetDir.resolve("_0.si")));
+	}
+
+	@Test
+	public void testChangedStagedCopyIsCopiedAgain() throws IOException {
+		PriorStoreTransferEngine engine = engine(false);
+		PriorStoreTransferEngine.ShardTransfer first = transfer(engine);
+		first.copy();
+		first.abort();
+		// the source was rewritten with other content since
+		long cfsBytes = writeLuceneFile(sourceDir, "_0.cfs", 2000);
+		byte[] content = Files.readAllBytes(sourceDir.resolve("_0.cfs"));
+
+		PriorStoreTransferEngine.ShardTransfer retry = transfer(engine);
+		retry.copy();
+		assertEquals(cfsBytes, retry.bytes());
+		assertEquals(Files.size(sourceDir.resolve("_0.si")), retry.reusedBytes());
+		retry.finish();
+		assertArrayEquals(content, Files.readAllBytes(targetDir.resolve("_0.cfs")));
+	}
+
+	@Test
+	public void testUnverifiedCopiesAreNotReusedWithVerification() throws IOException {
+		PriorStoreTransferEngine.ShardTransfer first = transfer(engine(false));
+		first.copy();
+		first.abort();
+
+		PriorStoreTransferEngine.ShardTransfer retry = transfer(engine(true));
+		retry.copy();
+		assertEquals(totalBytes, retry.bytes());
+		assertEquals(0, retry.reusedBytes());
+
+		retry.abort();
+		PriorStoreTransferEngine.ShardTransfer verified = transfer(engine(true));
+		verified.copy();
+		assertEquals(totalBytes, verified.reusedBytes());
+	}
+
+	@Test
+	public void testStalledTransferFails() throws IOException {
+		FileChannel in = mock(FileChannel.class);
+		when(in.size()).thenReturn(100L);
+		when(in.transferTo(anyLong(), anyLong(), any(WritableByteChannel.class))).thenReturn(10L, 0L, 10L, 0L, 0L, 0L);
+		try {
+			engine(false).transfer(sourceDir.resolve("_0.cfs"), in, mock(FileChannel.class), 100, new RateLimiter[0]);
+			fail("copied without progress");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("no progress at 20 of 100"));
+		}
+		verify(in, times(6)).transferTo(anyLong(), anyLong(), any(WritableByteChannel.class));
+	}
+
+	@Test
+	public void testTruncatedTransferFails() throws IOException {
+		FileChannel in = mock(FileChannel.class);
+		when(in.size()).thenReturn(100L, 10L);
+		when(in.transferTo(anyLong(), anyLong(), any(WritableByteChannel.class))).thenReturn(10L, 0L);
+		try {
+			engine(false).transfer(sourceDir.resolve("_0.cfs"), in, mock(FileChannel.class), 100, new RateLimiter[0]);
+			fail("copied a truncated file");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("truncated"));
+		}
+	}
+
+	private PriorStoreTransferEngine engine(boolean verifyChecksum) {
+		Settings settings = ImmutableSettings.builder()
+				.put(PriorStoreTransferEngine.VERIFY_CHECKSUM, verifyChecksum)
+				.put(PriorStoreTransferEngine.COPY_DROP_CACHE, false)
+				.put(PriorStoreTransferEngine.MIGRATION_MAX_BYTES_PER_SEC, "0b")
+				.build();
+		PriorStoreTransferEngine engine = new PriorStoreTransferEngine(settings, psEnv);
+		engines.add(engine);
+		return engine;
+	}
+
+	private PriorStoreTransferEngine.ShardTransfer transfer(PriorStoreTransferEngine engine) throws IOException {
+		PriorStoreTransferEngine.ShardTransfer transfer = engine.newTransfer(shardId, source, target, shardPath(target));
+		transfer.addDir(sourceDir, targetDir);
+		return transfer;
+	}
+
+	private Path shardPath(NodeEnvironment.NodePath nodePath) {
+		return nodePath.indicesPath.resolve(shardId.index().name()).resolve(String.valueOf(shardId.id()));
+	}
+
+	/**
+	 * @return the length of the file, with a lucene header and footer around the given bytes of data
+	 */
+	private static long writeLuceneFile(Path dir, String name, int bytes) throws IOException {
+		byte[] data = new byte[bytes];
+		Arrays.fill(data, (byte) bytes);
+		Files.deleteIfExists(dir.resolve(name));
+		try (Directory directory = FSDirectory.open(dir.toFile());
+			 IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+			CodecUtil.writeHeader(out, "test", 0);
+			out.writeBytes(data, data.length);
+			CodecUtil.writeFooter(out);
+		}
+		return Files.size(dir.resolve(name));
+	}
+}
@@ -0,0 +1,148 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class ShardSelectorTest {
+
+	@Test
+	public void testReachesTargetWithinBudget() {
+		List<MigrationInfo.Shard> candidates = shards(10, 20, 30, 40);
+		List<MigrationInfo.Shard> chosen = ShardSelector.select(candidates, downtimes(candidates), 0, 50, 55);
+		long size = size(chosen);
+		assertTrue("moved " + size, size >= 50 && size <= 55);
+		assertEquals(2, chosen.size());
+	}
+
+	@Test
+	public void testBacktracksPastTheFirstCandidate() {
+		// the first one alone overshoots the budget with any other, only the two after it land on the target
+		List<MigrationInfo.Shard> candidates = shards(60, 50, 50);
+		List<MigrationInfo.Shard> chosen = ShardSelector.select(candidates, downtimes(candidates), 0, 100, 100);
+		assertEquals(Arrays.asList(candidates.get(1), candidates.get(2)), chosen);
+	}
+
+	@Test
+	public void testFallsBackToTheSmallestShard() {
+		List<MigrationInfo.Shard> candidates = shards(500, 300, 400);
+		List<MigrationInfo.Shard> chosen = ShardSelector.select(candidates, downtimes(candidates), 0, 100, 110);
+		assertEquals(Arrays.asList(candidates.get(1)), chosen);
+	}
+
+	@Test
+	public void testClosestToTargetIfUnreachable() {
+		List<MigrationInfo.Shard> candidates = shards(10, 20, 500);
+		List<MigrationInfo.Shard> chosen = ShardSelector.select(candidates, downtimes(candidates), 0, 100, 110);
+		assertEquals(Arrays.asList(candidates.get(0), candidates.get(1)), chosen);
+	}
+
+	@Test
+	public void testNothingToMove() {
+		assertTrue(ShardSelector.select(shards(), new long[0], 0, 100, 110).isEmpty());
+		List<MigrationInfo.Shard> candidates = shards(10);
+		assertTrue(ShardSelector.select(candidates, downtimes(candidates), 0, 0, 0).isEmpty());
+	}
+
+	@Test
+	public void testRankPenalty() {
+		List<MigrationInfo.Shard> candidates = shards(10, 10, 10, 10);
+		long[] downtimes = new long[]{100, 100, 90, 90};
+		// without the penalty the cheaper ones ranked last win
+		assertEquals(Arrays.asList(candidates.get(2), candidates.get(3)), ShardSelector.select(candidates, downtimes, 0, 20, 20));
+		assertEquals(Arrays.asList(candidates.get(0), candidates.get(1)), ShardSelector.select(candidates, downtimes, 20, 20, 20));
+	}
+
+	@Test
+	public void testTiesGoToTheHigherRanked() {
+		List<MigrationInfo.Shard> candidates = shards(10, 10, 10, 10);
+		long[] downtimes = new long[]{50, 50, 50, 50};
+		assertEquals(Arrays.asList(candidates.get(0), candidates.get(1)), ShardSelector.select(candidates, downtimes, 0, 20, 20));
+	}
+
+	@Test
+	public void testMatchesExhaustiveSearch() {
+		Random random = new Random(0);
+		for (int round = 0; round < 500; ++round) {
+			int n = 1 + random.nextInt(10);
+			long[] sizes = new long[n];
+			long[] downtimes = new long[n];
+			for (int i = 0; i < n; ++i) {
+				sizes[i] = 1 + random.nextInt(200);
+				downtimes[i] = 30 + sizes[i] / 2 + random.nextInt(20);
+			}
+			List<MigrationInfo.Shard> candidates = shards(sizes);
+			long target = 1 + random.nextInt(400);
+			long budget = target + random.nextInt(50);
+			List<MigrationInfo.Shard> chosen = ShardSelector.select(candidates, downtimes, 0, target, budget);
+
+			// the cheapest subset between the target and the budget, by brute force
+			long bestCost = -1, reachable = 0;
+			for (int mask = 1; mask < 1 << n; ++mask) {
+				long size = 0, cost = 0;
+				for (int i = 0; i < n; ++i) {
+					if ((mask & 1 << i) != 0) {
+						size += sizes[i];
+						cost += downtimes[i];
+					}
+				}
+				if (size <= budget)
+					reachable = Math.max(reachable, size);
+				if (size >= target && size <= budget && (bestCost < 0 || cost < bestCost))
+					bestCost = cost;
+			}
+			long size = size(chosen);
+			String msg = "sizes " + Arrays.toString(sizes) + " target " + target + " budget " + budget;
+			if (bestCost >= 0) {
+				assertTrue(msg, size >= target && size <= budget);
+				assertEquals(msg, bestCost, cost(candidates, downtimes, chosen));
+			} else if (reachable > 0) {
+				assertEquals(msg, reachable, size);
+			} else {
+				assertEquals(msg, 1, chosen.size());
+			}
+		}
+	}
+
+	private static List<MigrationInfo.Shard> shards(long... sizes) {
+		List<MigrationInfo.Shard> shards = new ArrayList<>();
+		for (int i = 0; i < sizes.length; ++i) {
+			shards.add(new MigrationInfo.Shard(new ShardId("index", i), sizes[i]));
+		}
+		return shards;
+	}
+
+	private static long[] downtimes(List<MigrationInfo.Shard> shards) {
+		long[] downtimes = new long[shards.size()];
+		for (int i = 0; i < downtimes.length; ++i) {
+			downtimes[i] = 30 + shards.get(i).getSize();
+		}
+		return downtimes;
+	}
+
+	private static long size(List<MigrationInfo.Shard> shards) {
+		long size = 0;
+		for (MigrationInfo.Shard shard : shards) {
+			size += shard.getSize();
+		}
+		return size;
+	}
+
+	private static long cost(List<MigrationInfo.Shard> candidates, long[] downtimes, List<MigrationInfo.Shard> chosen) {
+		long cost = 0;
+		for (MigrationInfo.Shard shard : chosen) {
+			cost += downtimes[candidates.indexOf(shard)];
+		}
+		return cost;
+	}
+}
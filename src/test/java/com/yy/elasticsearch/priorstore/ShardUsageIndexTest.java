@@ -0,0 +1,99 @@
+package com.yy.elasticsearch.priorstore;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.store.support.AbstractIndexStore;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class ShardUsageIndexTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final ShardId shardId = new ShardId("index", 0);
+	private NodeEnvironment.NodePath nodePath;
+	private Path indexDir;
+	private ShardUsageIndex usageIndex;
+
+	@Before
+	public void setUp() throws IOException {
+		nodePath = new NodeEnvironment.NodePath(tmp.newFolder().toPath());
+		indexDir = nodePath.indicesPath.resolve("index").resolve("0").resolve(AbstractIndexStore.INDEX_FOLDER_NAME);
+		Files.createDirectories(indexDir);
+		Files.write(indexDir.resolve("_0.cfs"), new byte[100]);
+
+		ThreadPool threadPool = mock(ThreadPool.class);
+		// reconciled by hand
+		when(threadPool.generic()).thenReturn(mock(Executor.class));
+		IndicesService indicesService = mock(IndicesService.class);
+		when(indicesService.indicesLifecycle()).thenReturn(mock(IndicesLifecycle.class));
+		PriorStoreEnvironment psEnv = mock(PriorStoreEnvironment.class);
+		when(psEnv.getNodePaths()).thenReturn(new NodeEnvironment.NodePath[]{nodePath});
+		usageIndex = new ShardUsageIndex(threadPool, psEnv, indicesService, ImmutableSettings.EMPTY);
+	}
+
+	@Test
+	public void testFilesWrittenAndDeleted() throws IOException {
+		ShardUsageIndex.ShardUsage usage = usageIndex.register(shardId);
+		assertEquals(100, usageIndex.shardSize(shardId, nodePath));
+
+		usage.opened(0, "_1.cfs");
+		Files.write(indexDir.resolve("_1.cfs"), new byte[50]);
+		usage.closed(0, "_1.cfs", 50);
+		assertEquals(150, usageIndex.shardSize(shardId, nodePath));
+
+		usage.deleted(0, 100);
+		Files.delete(indexDir.resolve("_0.cfs"));
+		assertEquals(50, usageIndex.shardSize(shardId, nodePath));
+	}
+
+	@Test
+	public void testMeasuredWhileFilesAreWritten() throws IOException {
+		ShardUsageIndex.ShardUsage usage = usageIndex.register(shardId);
+		usage.opened(0, "_1.cfs");
+		// half written when the shard is measured
+		Files.write(indexDir.resolve("_1.cfs"), new byte[20]);
+		Files.write(indexDir.resolve("_2.cfs"), new byte[30]);
+		usageIndex.markDirty(shardId);
+
+		assertEquals(130, usageIndex.shardSize(shardId, nodePath));
+		assertFalse(usage.dirty);
+
+		Files.write(indexDir.resolve("_1.cfs"), new byte[50]);
+		usage.closed(0, "_1.cfs", 50);
+		assertEquals(180, usageIndex.shardSize(shardId, nodePath));
+	}
+
+	@Test
+	public void testReconcileLeavesOutFilesBeingWritten() throws IOException {
+		ShardUsageIndex.ShardUsage usage = usageIndex.register(shardId);
+		usage.opened(0, "_1.cfs");
+		Files.write(indexDir.resolve("_1.cfs"), new byte[20]);
+		usageIndex.reconcile();
+		assertEquals(100, usageIndex.shardSize(shardId, nodePath));
+
+		Files.write(indexDir.resolve("_1.cfs"), new byte[50]);
+		usage.closed(0, "_1.cfs", 50);
+		assertEquals(150, usageIndex.shardSize(shardId, nodePath));
+	}
+}
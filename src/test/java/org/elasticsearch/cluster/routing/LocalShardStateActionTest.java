@@ -0,0 +1,160 @@
+package org.elasticsearch.cluster.routing;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.DummyTransportAddress;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author colin.ke keqinwu@163.com
+ */
+public class LocalShardStateActionTest {
+
+	private static final String INDEX = "test";
+	private final ShardId shardId = new ShardId(INDEX, 0);
+	private final DiscoveryNode node1 = new DiscoveryNode("node1", DummyTransportAddress.INSTANCE, Version.CURRENT);
+	private final DiscoveryNode node2 = new DiscoveryNode("node2", DummyTransportAddress.INSTANCE, Version.CURRENT);
+
+	@Test
+	public void testUnassignLeasesTheShard() {
+		LocalShardStateAction action = action(ImmutableSettings.EMPTY);
+		ClusterState state = state(ShardRoutingState.STARTED);
+
+		RoutingNodes nodes = state.routingNodes();
+		assertTrue(unassign(action, nodes, node1).isEmpty());
+		assertFalse(nodes.node(node1.id()).iterator().next().assignedToNode());
+
+		// the other copy is still active in this state, only the lease holds it back
+		assertEquals(Collections.singletonList(shardId), unassign(action, state.routingNodes(), node2));
+		// the holder itself is never rejected
+		assertTrue(unassign(action, state.routingNodes(), node1).isEmpty());
+	}
+
+	@Test
+	public void testStartReleasesTheLease() {
+		LocalShardStateAction action = action(ImmutableSettings.EMPTY);
+		ClusterState state = state(ShardRoutingState.STARTED);
+
+		RoutingNodes nodes = state.routingNodes();
+		unassign(action, nodes, node1);
+		action.new StartShardHandler().apply(nodes, new LocalShardStateAction.ChangeShardStateRequest(node1, shardId));
+
+		assertTrue(unassign(action, state.routingNodes(), node2).isEmpty());
+	}
+
+	@Test
+	public void testLeaseExpires() {
+		LocalShardStateAction action = action(ImmutableSettings.builder().put(LocalShardStateAction.MIGRATION_LEASE_TIMEOUT, "0s").build());
+		ClusterState state = state(ShardRoutingState.STARTED);
+
+		unassign(action, state.routingNodes(), node1);
+		assertTrue(unassign(action, state.routingNodes(), node2).isEmpty());
+	}
+
+	@Test
+	public void testRejectedWhileAnotherCopyIsInactive() {
+		LocalShardStateAction action = action(ImmutableSettings.EMPTY);
+		for (ShardRoutingState replicaState : new ShardRoutingState[]{ShardRoutingState.INITIALIZING, ShardRoutingState.UNASSIGNED}) {
+			RoutingNodes nodes = state(replicaState).routingNodes();
+			assertEquals(replicaState.toString(), Collections.singletonList(shardId), unassign(action, nodes, node1));
+			assertTrue(nodes.node(node1.id()).iterator().next().active());
+		}
+	}
+
+	@Test
+	public void testOlderNodesAreLeasedButNotRejected() {
+		LocalShardStateAction action = action(ImmutableSettings.EMPTY);
+		ClusterState state = state(ShardRoutingState.INITIALIZING);
+
+		RoutingNodes nodes = state.routingNodes();
+		assertTrue(unassign(action, nodes, node1, false).isEmpty());
+		assertFalse(nodes.node(node1.id()).iterator().next().assignedToNode());
+		assertEquals(Collections.singletonList(shardId), unassign(action, state(ShardRoutingState.STARTED).routingNodes(), node2));
+	}
+
+	@Test
+	public void testRejectedShardsOnTheWire() throws IOException {
+		LocalShardStateAction.ShardStateResponse response = new LocalShardStateAction.ShardStateResponse(true, Collections.singletonList(shardId));
+		assertEquals(Collections.singleton(shardId), roundTrip(response, true).rejected());
+	}
+
+	@Test
+	public void testResponseOfOlderBuilds() throws IOException {
+		LocalShardStateAction.ShardStateResponse response = new LocalShardStateAction.ShardStateResponse(true, null);
+		BytesStreamOutput out = new BytesStreamOutput();
+		response.writeTo(out);
+		// an older build only reads the ack
+		BytesStreamInput in = new BytesStreamInput(out.bytes());
+		new TransportResponse.Empty().readFrom(in);
+		assertTrue(in.readBoolean());
+		assertEquals(0, in.available());
+
+		LocalShardStateAction.ShardStateResponse read = roundTrip(response, false);
+		assertTrue(read.ack());
+		assertTrue(read.rejected().isEmpty());
+	}
+
+	private static LocalShardStateAction.ShardStateResponse roundTrip(LocalShardStateAction.ShardStateResponse response, boolean withRejected) throws IOException {
+		BytesStreamOutput out = new BytesStreamOutput();
+		response.writeTo(out);
+		BytesStreamInput in = new BytesStreamInput(out.bytes());
+		LocalShardStateAction.ShardStateResponse read = new LocalShardStateAction.ShardStateResponse(withRejected);
+		read.readFrom(in);
+		assertEquals(0, in.available());
+		return read;
+	}
+
+	private List<ShardId> unassign(LocalShardStateAction action, RoutingNodes nodes, DiscoveryNode node) {
+		return unassign(action, nodes, node, true);
+	}
+
+	private List<ShardId> unassign(LocalShardStateAction action, RoutingNodes nodes, DiscoveryNode node, boolean leased) {
+		return action.new UnassignShardHandler(leased).apply(nodes, new LocalShardStateAction.ChangeShardStateRequest(node, shardId));
+	}
+
+	private static LocalShardStateAction action(Settings settings) {
+		return new LocalShardStateAction(settings, mock(TransportService.class), mock(ClusterService.class));
+	}
+
+	/**
+	 * the primary started on node1, the replica in the given state on node2
+	 */
+	private ClusterState state(ShardRoutingState replicaState) {
+		MetaData metaData = MetaData.builder()
+				.put(IndexMetaData.builder(INDEX).settings(ImmutableSettings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT))
+						.numberOfShards(1).numberOfReplicas(1))
+				.build();
+		ImmutableShardRouting replica = replicaState == ShardRoutingState.UNASSIGNED
+				? new ImmutableShardRouting(INDEX, 0, null, null, null, false, replicaState, 1, new UnassignedInfo(UnassignedInfo.Reason.INDEX_CREATED, null))
+				: new ImmutableShardRouting(INDEX, 0, node2.id(), false, replicaState, 1);
+		IndexShardRoutingTable shardTable = new IndexShardRoutingTable.Builder(shardId, true)
+				.addShard(new ImmutableShardRouting(INDEX, 0, node1.id(), true, ShardRoutingState.STARTED, 1))
+				.addShard(replica)
+				.build();
+		RoutingTable routingTable = RoutingTable.builder().add(new IndexRoutingTable.Builder(INDEX).addIndexShard(shardTable)).build();
+		DiscoveryNodes nodes = DiscoveryNodes.builder().put(node1).put(node2).localNodeId(node1.id()).masterNodeId(node1.id()).build();
+		return ClusterState.builder(ClusterName.DEFAULT).metaData(metaData).routingTable(routingTable).nodes(nodes).build();
+	}
+}